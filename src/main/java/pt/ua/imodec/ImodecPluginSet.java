@@ -9,12 +9,21 @@ import pt.ua.dicoogle.sdk.JettyPluginInterface;
 import pt.ua.dicoogle.sdk.PluginSet;
 import pt.ua.dicoogle.sdk.StorageInterface;
 import pt.ua.dicoogle.sdk.settings.ConfigurationHolder;
+import pt.ua.imodec.codecs.CodecCircuitBreaker;
+import pt.ua.imodec.codecs.CodecScheduler;
 import pt.ua.imodec.storage.ImodecStoragePlugin;
+import pt.ua.imodec.storage.engines.MappedSegmentStorageEngine;
+import pt.ua.imodec.storage.engines.HeapStorageEngine;
+import pt.ua.imodec.storage.engines.OffHeapSlabStorageEngine;
+import pt.ua.imodec.storage.engines.TieredStorageEngine;
 import pt.ua.imodec.datastructs.formats.Format;
 import pt.ua.imodec.datastructs.formats.Native;
 import pt.ua.imodec.datastructs.formats.NewFormat;
+import pt.ua.imodec.util.FrameEncoder;
+import pt.ua.imodec.util.NewFormatsCodecs;
 import pt.ua.imodec.webservice.ImodecJettyPlugin;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
@@ -44,6 +53,7 @@ public class ImodecPluginSet implements PluginSet {
     // Additional resources
     public static Format chosenFormat = null;
     public static final Path TMP_DIR_PATH = Paths.get("/tmp/imodec");
+    private static final String DEFAULT_STORAGE_DIR = "imodec-storage";
 
     private ConfigurationHolder settings;
 
@@ -52,6 +62,7 @@ public class ImodecPluginSet implements PluginSet {
         this.storage = new ImodecStoragePlugin();
 
         tmpMkdirs();
+        Runtime.getRuntime().addShutdownHook(new Thread(this.storage::close, "imodec-storage-shutdown"));
 
         logger.info("Imodec Plugin Set is ready");
     }
@@ -80,13 +91,159 @@ public class ImodecPluginSet implements PluginSet {
     public void setSettings(ConfigurationHolder xmlSettings) {
 
         if (chosenFormat == null) {
+            setStorageEngine(xmlSettings);
             setImageCompressionFormat(xmlSettings);
             setEncoderOptions(xmlSettings);
+            setEncodingWorkers(xmlSettings);
+            setCodecScheduling(xmlSettings);
+            setCodecFailureHandling(xmlSettings);
         }
 
         this.settings = xmlSettings;
     }
 
+    /**
+     * Sets the backing store of the storage plugin, given the "storage" tag, e.g.:
+     * <pre>
+     * &lt;storage engine="mapped" directory="/var/lib/imodec" segment-size="1024" /&gt;
+     * </pre>
+     * Engines: "memory" (default), "mapped", "offheap" (with a "budget" attribute) or "tiered" (memory up to a
+     * "hot-budget", then mapped segments, by default under {@link #TMP_DIR_PATH}). Sizes are in MiB.
+     * Mapped segments wait for the disk on every store, unless sync="false".
+     */
+    private void setStorageEngine(ConfigurationHolder xmlSettings) {
+
+        String engineId = xmlSettings.getConfiguration().getString("storage[@engine]", "memory");
+        boolean durable = xmlSettings.getConfiguration().getBoolean("storage[@sync]", true);
+
+        switch (engineId) {
+            case "memory":
+                break;
+            case "mapped":
+                Path directory = Paths.get(xmlSettings.getConfiguration()
+                        .getString("storage[@directory]", DEFAULT_STORAGE_DIR));
+                long segmentSize = xmlSettings.getConfiguration()
+                        .getLong("storage[@segment-size]", MappedSegmentStorageEngine.DEFAULT_SEGMENT_SIZE >> 20) << 20;
+                try {
+                    this.storage.setEngine(new MappedSegmentStorageEngine(directory, segmentSize, durable));
+                } catch (IOException | IllegalArgumentException e) {
+                    logger.error("Could not open the mapped storage at '{}'. Keeping objects in memory.",
+                            directory, e);
+                }
+                break;
+            case "offheap":
+                long budget = xmlSettings.getConfiguration()
+                        .getLong("storage[@budget]", OffHeapSlabStorageEngine.DEFAULT_BUDGET >> 20) << 20;
+                try {
+                    this.storage.setEngine(new OffHeapSlabStorageEngine(budget));
+                } catch (IllegalArgumentException e) {
+                    logger.error("Invalid off-heap storage budget. Keeping objects in memory.", e);
+                }
+                break;
+            case "tiered":
+                Path coldDirectory = Paths.get(xmlSettings.getConfiguration()
+                        .getString("storage[@directory]", TMP_DIR_PATH.resolve("cold-storage").toString()));
+                long hotBudget = xmlSettings.getConfiguration()
+                        .getLong("storage[@hot-budget]", TieredStorageEngine.DEFAULT_HOT_BUDGET >> 20) << 20;
+                long coldSegmentSize = xmlSettings.getConfiguration()
+                        .getLong("storage[@segment-size]", MappedSegmentStorageEngine.DEFAULT_SEGMENT_SIZE >> 20) << 20;
+                try {
+                    this.storage.setEngine(new TieredStorageEngine(new HeapStorageEngine(),
+                            new MappedSegmentStorageEngine(coldDirectory, coldSegmentSize, durable), hotBudget));
+                } catch (IOException | IllegalArgumentException e) {
+                    logger.error("Could not open the cold storage at '{}'. Keeping objects in memory.",
+                            coldDirectory, e);
+                }
+                break;
+            default:
+                logger.warn("Unknown storage engine '{}'. Keeping objects in memory.", engineId);
+        }
+    }
+
+    /**
+     * Sets how many frames of a multi-frame object are encoded at a time, given the "encoding" tag, e.g.:
+     * <pre>
+     * &lt;encoding workers="8" /&gt;
+     * </pre>
+     * By default, one per processor.
+     */
+    private static void setEncodingWorkers(ConfigurationHolder xmlSettings) {
+
+        int workers = xmlSettings.getConfiguration().getInt("encoding[@workers]", FrameEncoder.DEFAULT_WORKERS);
+
+        try {
+            FrameEncoder.setSharedWorkers(workers);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Invalid number of encoding workers '{}'. Keeping {}.",
+                    workers, FrameEncoder.getShared().getWorkers());
+        }
+    }
+
+    /**
+     * Sets how many codec processes run at a time, and how many more may wait to run, given the "codec-processes"
+     * tag, e.g.:
+     * <pre>
+     * &lt;codec-processes max="8" queue="256" bulk-share="0.2" avif="2" /&gt;
+     * </pre>
+     * The attributes named after a format bound its own processes, and the bulk share is the least share of the
+     * processes started for stores while the viewer is waiting for others. By default, one process per
+     * processor, of any format, 256 waiting and a fifth to stores.
+     */
+    private static void setCodecScheduling(ConfigurationHolder xmlSettings) {
+
+        int maxRunning = xmlSettings.getConfiguration()
+                .getInt("codec-processes[@max]", CodecScheduler.DEFAULT_MAX_RUNNING);
+        int queueCapacity = xmlSettings.getConfiguration()
+                .getInt("codec-processes[@queue]", CodecScheduler.DEFAULT_QUEUE_CAPACITY);
+        double minBulkShare = xmlSettings.getConfiguration()
+                .getDouble("codec-processes[@bulk-share]", CodecScheduler.DEFAULT_MIN_BULK_SHARE);
+        Map<String, Integer> maxRunningByCodec = new HashMap<>();
+        for (NewFormat format : NewFormat.values()) {
+            int maxRunningOfCodec = xmlSettings.getConfiguration()
+                    .getInt("codec-processes[@" + format.getId() + "]", 0);
+            if (maxRunningOfCodec != 0)
+                maxRunningByCodec.put(format.getId(), maxRunningOfCodec);
+        }
+
+        try {
+            CodecScheduler.setShared(new CodecScheduler(maxRunning, queueCapacity, maxRunningByCodec,
+                    minBulkShare));
+        } catch (IllegalArgumentException e) {
+            logger.warn("Invalid codec process limits: {}. Keeping {}.", e.getMessage(), CodecScheduler.getShared());
+        }
+    }
+
+    /**
+     * Sets when codec runs time out, and after how many failures in a row a codec stops being run, given the
+     * "codec-timeout" and "codec-breaker" tags, e.g.:
+     * <pre>
+     * &lt;codec-timeout millis="30000" per-megapixel="5000" /&gt;
+     * &lt;codec-breaker failures="5" open-millis="60000" /&gt;
+     * </pre>
+     */
+    private static void setCodecFailureHandling(ConfigurationHolder xmlSettings) {
+
+        long timeoutMillis = xmlSettings.getConfiguration()
+                .getLong("codec-timeout[@millis]", NewFormatsCodecs.DEFAULT_TIMEOUT_MILLIS);
+        long timeoutMillisPerMegapixel = xmlSettings.getConfiguration()
+                .getLong("codec-timeout[@per-megapixel]", NewFormatsCodecs.DEFAULT_TIMEOUT_MILLIS_PER_MEGAPIXEL);
+        try {
+            NewFormatsCodecs.setTimeouts(timeoutMillis, timeoutMillisPerMegapixel);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Invalid codec timeout: {}. Keeping the previous one.", e.getMessage());
+        }
+
+        int failureThreshold = xmlSettings.getConfiguration()
+                .getInt("codec-breaker[@failures]", CodecCircuitBreaker.DEFAULT_FAILURE_THRESHOLD);
+        long openMillis = xmlSettings.getConfiguration()
+                .getLong("codec-breaker[@open-millis]", CodecCircuitBreaker.DEFAULT_OPEN_MILLIS);
+        try {
+            CodecCircuitBreaker.setShared(new CodecCircuitBreaker(failureThreshold, openMillis));
+        } catch (IllegalArgumentException e) {
+            logger.warn("Invalid codec breaker: {}. Keeping {}.", e.getMessage(), CodecCircuitBreaker.getShared());
+        }
+    }
+
     private void setEncoderOptions(ConfigurationHolder xmlSettings) {
 
         List<ConfigurationNode> configurationNodeList = xmlSettings
@@ -95,9 +252,7 @@ public class ImodecPluginSet implements PluginSet {
 
         for (ConfigurationNode tag :
                 configurationNodeList) {
-            Optional<NewFormat> format = Arrays.stream(NewFormat.values())
-                    .filter(format1 -> format1.getFileExtension().equals(tag.getName()))
-                    .findFirst();
+            Optional<NewFormat> format = NewFormat.fromId(tag.getName());
 
             if (!format.isPresent())
                 continue;
@@ -159,9 +314,8 @@ public class ImodecPluginSet implements PluginSet {
                 }
             };
         } else
-            chosenFormat = Arrays.stream(((Format[]) NewFormat.values()))
-                    .filter(newFormat -> newFormat.getId().equals(chosenFormatId))
-                    .findFirst()
+            chosenFormat = NewFormat.fromId(chosenFormatId)
+                    .map(Format.class::cast)
                     .orElse(defaultFormat);
 
         logger.info(
@@ -0,0 +1,53 @@
+package pt.ua.imodec.codecs;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Encoder and decoder of one of the new formats, found through the {@link CodecRegistry}.
+ * <p>
+ * Implementations are made available by a {@link CodecProvider}. Several codecs may implement the same format,
+ * e.g. a wrapper of the command line tools and an in-process library; the one of highest priority is used.
+ * Implementations must be safe for concurrent use, since frames are encoded concurrently.
+ */
+public interface Codec {
+
+    /**
+     *
+     * @return Id of the format, as in the configuration and the web service (e.g. "jxl")
+     */
+    String getId();
+
+    /**
+     *
+     * @return UID of the transfer syntax of the objects encoded with this codec
+     */
+    String getTransferSyntaxUID();
+
+    CodecCapabilities getCapabilities();
+
+    /**
+     *
+     * @return Which of the codecs of the same format is used: the highest. The command line codecs have 0.
+     */
+    default int getPriority() {
+        return 0;
+    }
+
+    /**
+     *
+     * @param image Frame to encode, whose samples are unsigned
+     * @param options Quality and speed options of the format, by name; the defaults of the format for those not
+     *                given
+     * @return The code stream
+     */
+    byte[] encode(BufferedImage image, Map<String, Number> options) throws IOException;
+
+    /**
+     *
+     * @param codeStream As returned by {@link #encode(BufferedImage, Map)}
+     * @return The decoded frame
+     */
+    BufferedImage decode(byte[] codeStream) throws IOException;
+}
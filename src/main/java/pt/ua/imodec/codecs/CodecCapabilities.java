@@ -0,0 +1,62 @@
+package pt.ua.imodec.codecs;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * What a codec can encode, and how it runs.
+ */
+public final class CodecCapabilities {
+
+    private final int maxBitsPerSample;
+    private final int maxChannels;
+    private final boolean streaming;
+    private final boolean inProcess;
+
+    /**
+     *
+     * @param maxBitsPerSample Deepest samples that are encoded as they are, without being reduced
+     * @param maxChannels Most samples per pixel, e.g. 3 for RGB
+     * @param streaming Whether the code stream is produced without going through temporary files
+     * @param inProcess Whether the codec runs in the JVM, rather than as an external process
+     */
+    public CodecCapabilities(int maxBitsPerSample, int maxChannels, boolean streaming, boolean inProcess) {
+        this.maxBitsPerSample = maxBitsPerSample;
+        this.maxChannels = maxChannels;
+        this.streaming = streaming;
+        this.inProcess = inProcess;
+    }
+
+    public int getMaxBitsPerSample() {
+        return maxBitsPerSample;
+    }
+
+    public int getMaxChannels() {
+        return maxChannels;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public boolean isInProcess() {
+        return inProcess;
+    }
+
+    /**
+     *
+     * @return True if the image is encoded without its samples being reduced
+     */
+    public boolean supports(BufferedImage image) {
+        int bits = 0;
+        for (int componentSize : image.getColorModel().getComponentSize())
+            bits = Math.max(bits, componentSize);
+
+        return bits <= maxBitsPerSample && image.getRaster().getNumBands() <= maxChannels;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d bits, %d channels%s%s", maxBitsPerSample, maxChannels,
+                streaming ? ", streaming" : "", inProcess ? ", in-process" : "");
+    }
+}
@@ -0,0 +1,196 @@
+package pt.ua.imodec.codecs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops running a codec that keeps failing, so that the runs after it fail at once rather than each waiting for
+ * the codec to time out or fail again.
+ * <p>
+ * After as many failures in a row as the threshold, the codec's circuit opens: its runs are refused with a
+ * {@link CodecUnavailableException} for the open time. Then a single run is let through as a trial: if it
+ * succeeds, the circuit closes again, otherwise it stays open for another open time. Runs that are interrupted
+ * are neither failures nor successes.
+ */
+public class CodecCircuitBreaker {
+
+    private static final Logger logger = LoggerFactory.getLogger(CodecCircuitBreaker.class);
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MILLIS = 60_000;
+
+    private static volatile CodecCircuitBreaker shared = new CodecCircuitBreaker(DEFAULT_FAILURE_THRESHOLD,
+            DEFAULT_OPEN_MILLIS);
+
+    public enum State {
+        /**
+         * The codec is run
+         */
+        CLOSED,
+        /**
+         * The codec's runs are refused
+         */
+        OPEN,
+        /**
+         * A trial run is let through, the others are refused
+         */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final ConcurrentHashMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    /**
+     * The state of a codec's circuit. Guarded by itself.
+     */
+    private static final class Circuit {
+
+        private int consecutiveFailures = 0;
+        private boolean open = false;
+        private long openUntil;
+        private boolean trialRunning = false;
+    }
+
+    /**
+     *
+     * @param failureThreshold Failures in a row that open the circuit of a codec
+     * @param openMillis For how long an open circuit refuses runs before a trial
+     */
+    public CodecCircuitBreaker(int failureThreshold, long openMillis) {
+        if (failureThreshold < 1 || openMillis < 0)
+            throw new IllegalArgumentException(String.format(
+                    "Failure threshold (%d) must be positive and open time (%d ms) not negative",
+                    failureThreshold, openMillis));
+
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    public static CodecCircuitBreaker getShared() {
+        return shared;
+    }
+
+    /**
+     * Replaces the shared breaker. The circuits of the previous one are forgotten.
+     */
+    public static void setShared(CodecCircuitBreaker breaker) {
+        shared = breaker;
+        logger.info("Codec circuits open after {}", breaker);
+    }
+
+    /**
+     * Runs the task, on the calling thread, unless the codec's circuit is open.
+     *
+     * @param codecId Id of the codec the task runs
+     * @return What the task returned
+     * @throws CodecUnavailableException If the codec's circuit is open
+     */
+    public <T> T execute(String codecId, CodecScheduler.CodecTask<T> task) throws IOException {
+        Circuit circuit = circuits.computeIfAbsent(codecId, id -> new Circuit());
+        boolean trial = acquire(codecId, circuit);
+
+        T result;
+        try {
+            result = task.run();
+        } catch (InterruptedIOException e) {
+            release(circuit, trial);
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            recordFailure(codecId, circuit, trial, e);
+            throw e;
+        } catch (Error e) {
+            release(circuit, trial);
+            throw e;
+        }
+
+        recordSuccess(codecId, circuit);
+        return result;
+    }
+
+    /**
+     *
+     * @return Whether the run is the trial of an open circuit
+     * @throws CodecUnavailableException If the circuit refuses the run
+     */
+    private static boolean acquire(String codecId, Circuit circuit) throws CodecUnavailableException {
+        synchronized (circuit) {
+            if (!circuit.open)
+                return false;
+            if (!circuit.trialRunning && System.nanoTime() - circuit.openUntil >= 0) {
+                circuit.trialRunning = true;
+                logger.info("Trying codec '{}' again", codecId);
+                return true;
+            }
+        }
+        throw new CodecUnavailableException(String.format("Codec '%s' failed too many times in a row", codecId));
+    }
+
+    private static void release(Circuit circuit, boolean trial) {
+        if (!trial)
+            return;
+        synchronized (circuit) {
+            circuit.trialRunning = false;
+        }
+    }
+
+    private void recordFailure(String codecId, Circuit circuit, boolean trial, Exception cause) {
+        int failures;
+        synchronized (circuit) {
+            failures = ++circuit.consecutiveFailures;
+            if (trial)
+                circuit.trialRunning = false;
+            if (!trial && (circuit.open || failures < failureThreshold))
+                return;
+
+            circuit.open = true;
+            circuit.openUntil = System.nanoTime() + openNanos;
+        }
+        logger.warn("Codec '{}' failed {} times in a row, refusing its runs for {} ms: {}", codecId, failures,
+                TimeUnit.NANOSECONDS.toMillis(openNanos), cause.getMessage());
+    }
+
+    private static void recordSuccess(String codecId, Circuit circuit) {
+        boolean closed;
+        synchronized (circuit) {
+            closed = circuit.open;
+            circuit.consecutiveFailures = 0;
+            circuit.open = false;
+            circuit.trialRunning = false;
+        }
+        if (closed)
+            logger.info("Codec '{}' works again", codecId);
+    }
+
+    /**
+     *
+     * @return Whether the codec's runs would be refused now
+     */
+    public boolean isOpen(String codecId) {
+        return getState(codecId) == State.OPEN;
+    }
+
+    public State getState(String codecId) {
+        Circuit circuit = circuits.get(codecId);
+        if (circuit == null)
+            return State.CLOSED;
+
+        synchronized (circuit) {
+            if (!circuit.open)
+                return State.CLOSED;
+            return circuit.trialRunning || System.nanoTime() - circuit.openUntil < 0 ? State.OPEN
+                    : State.HALF_OPEN;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d failures in a row, for %d ms", failureThreshold,
+                TimeUnit.NANOSECONDS.toMillis(openNanos));
+    }
+}
@@ -0,0 +1,17 @@
+package pt.ua.imodec.codecs;
+
+import java.util.List;
+
+/**
+ * Service provider of codecs, found with {@link java.util.ServiceLoader}: implementations are listed in
+ * {@code META-INF/services/pt.ua.imodec.codecs.CodecProvider} and have a public no-argument constructor.
+ */
+public interface CodecProvider {
+
+    /**
+     *
+     * @return The codecs this provider makes available. Those whose tools or libraries are missing may be
+     * left out.
+     */
+    List<Codec> getCodecs();
+}
@@ -0,0 +1,172 @@
+package pt.ua.imodec.codecs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.ua.imodec.datastructs.formats.NewFormat;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the codec of a format by its id or by its transfer syntax UID, with a lookup, or the codec of a format
+ * that can encode a given image as it is.
+ * <p>
+ * The shared registry holds the codecs of the {@link CodecProvider}s found with {@link ServiceLoader}, through
+ * the class loader of the plugin, since Dicoogle loads it apart from the platform. Other codecs may be
+ * registered at run time, e.g. to compare them with the registered ones.
+ */
+public class CodecRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(CodecRegistry.class);
+
+    /**
+     * Codecs of each format, the one to use first
+     */
+    private static final Comparator<Codec> byPriority = Comparator.comparingInt(Codec::getPriority).reversed();
+
+    private static volatile CodecRegistry shared;
+
+    private final Map<String, List<Codec>> codecsById = new ConcurrentHashMap<>();
+    private final Map<String, List<Codec>> codecsByTransferSyntaxUID = new ConcurrentHashMap<>();
+
+    public CodecRegistry() {}
+
+    /**
+     *
+     * @return The registry of the codecs of the providers on the plugin's class path, loaded on first use
+     */
+    public static CodecRegistry getShared() {
+        CodecRegistry registry = shared;
+        if (registry == null) {
+            synchronized (CodecRegistry.class) {
+                if (shared == null)
+                    shared = load(ServiceLoader.load(CodecProvider.class, CodecProvider.class.getClassLoader()));
+                registry = shared;
+            }
+        }
+        return registry;
+    }
+
+    static CodecRegistry load(Iterable<CodecProvider> providers) {
+        CodecRegistry registry = new CodecRegistry();
+
+        try {
+            for (CodecProvider provider : providers)
+                for (Codec codec : provider.getCodecs())
+                    registry.register(codec);
+        } catch (ServiceConfigurationError e) {
+            logger.error("Could not load the codec providers", e);
+        }
+        logger.info("Codecs available: {}", registry.codecsById.values());
+        return registry;
+    }
+
+    /**
+     * Adds the codec to those of its format. It is used from then on if its priority is the highest.
+     */
+    public void register(Codec codec) {
+        add(codecsById, codec.getId(), codec);
+        add(codecsByTransferSyntaxUID, codec.getTransferSyntaxUID(), codec);
+    }
+
+    /**
+     * Removes the codec from those of its format.
+     */
+    public void unregister(Codec codec) {
+        remove(codecsById, codec.getId(), codec);
+        remove(codecsByTransferSyntaxUID, codec.getTransferSyntaxUID(), codec);
+    }
+
+    /**
+     * Lists are replaced rather than changed, so that they are read without locking.
+     */
+    private static void add(Map<String, List<Codec>> codecs, String key, Codec codec) {
+        codecs.compute(key, (k, registered) -> {
+            List<Codec> updated = registered == null ? new ArrayList<>() : new ArrayList<>(registered);
+            updated.add(codec);
+            updated.sort(byPriority);
+            return Collections.unmodifiableList(updated);
+        });
+    }
+
+    private static void remove(Map<String, List<Codec>> codecs, String key, Codec codec) {
+        codecs.computeIfPresent(key, (k, registered) -> {
+            List<Codec> updated = new ArrayList<>(registered);
+            updated.remove(codec);
+            return updated.isEmpty() ? null : Collections.unmodifiableList(updated);
+        });
+    }
+
+    /**
+     *
+     * @param id Id of the format (e.g. "jxl")
+     * @return The codec to use for the format
+     */
+    public Optional<Codec> find(String id) {
+        return first(codecsById.get(id));
+    }
+
+    /**
+     *
+     * @param transferSyntaxUID UID of the transfer syntax of the format
+     * @return The codec to use for the format
+     */
+    public Optional<Codec> findByTransferSyntax(String transferSyntaxUID) {
+        return first(codecsByTransferSyntaxUID.get(transferSyntaxUID));
+    }
+
+    private static Optional<Codec> first(List<Codec> codecs) {
+        return codecs == null ? Optional.empty() : Optional.of(codecs.get(0));
+    }
+
+    /**
+     *
+     * @return The codec to use for the format
+     * @throws NoSuchElementException If no codec implements the format
+     */
+    public Codec get(NewFormat format) {
+        return find(format.getId()).orElseThrow(() -> new NoSuchElementException(
+                String.format("There is no codec for the format '%s'", format.getId())));
+    }
+
+    /**
+     * Codecs that would reduce the samples of the image are only used if none of the format keeps them.
+     *
+     * @return The codec to encode the image with the format: the one of highest priority among those that support
+     * the image (see {@link CodecCapabilities#supports(BufferedImage)}), or else the one of highest priority
+     * @throws NoSuchElementException If no codec implements the format
+     */
+    public Codec get(NewFormat format, BufferedImage image) {
+        for (Codec codec : getAll(format.getId()))
+            if (codec.getCapabilities().supports(image))
+                return codec;
+        return get(format);
+    }
+
+    /**
+     *
+     * @param id Id of the format (e.g. "jxl")
+     * @return All the codecs of the format, the one used first
+     */
+    public List<Codec> getAll(String id) {
+        return codecsById.getOrDefault(id, Collections.emptyList());
+    }
+
+    /**
+     *
+     * @return Ids of the formats that have a codec
+     */
+    public Collection<String> getIds() {
+        return Collections.unmodifiableSet(codecsById.keySet());
+    }
+}
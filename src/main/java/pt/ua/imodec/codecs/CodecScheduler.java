@@ -0,0 +1,441 @@
+package pt.ua.imodec.codecs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds how many codec runs (encoder or decoder processes) there are at a time, overall and per codec.
+ * <p>
+ * A run is admitted in arrival order as soon as there is room for it both overall and for its codec; a run of a
+ * codec at its limit does not hold back the runs of the other codecs queued after it. The admitted run is done by
+ * the thread that asked for it, so the scheduler has no threads of its own.
+ * <p>
+ * Runs are either {@link Lane#INTERACTIVE}, such as the decodes of the viewer, or {@link Lane#BULK}, such as the
+ * encodes of the stores. Interactive runs are admitted first, except that while both lanes have runs waiting,
+ * bulk runs get a minimum share of the admissions, so that ingest never starves.
+ * <p>
+ * The queue of bulk runs waiting to be admitted is bounded as well: when it is full, the threads asking for more
+ * runs block before being queued. That is the backpressure that slows down the stores of a C-STORE burst, rather
+ * than forking a process per frame. Interactive runs are never held back that way.
+ */
+public class CodecScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(CodecScheduler.class);
+
+    public static final int DEFAULT_MAX_RUNNING = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    public static final double DEFAULT_MIN_BULK_SHARE = 0.2;
+
+    private static volatile CodecScheduler shared = new CodecScheduler(DEFAULT_MAX_RUNNING, DEFAULT_QUEUE_CAPACITY,
+            Collections.emptyMap(), DEFAULT_MIN_BULK_SHARE);
+
+    /**
+     * Priority of a run.
+     */
+    public enum Lane {
+        /**
+         * Someone is waiting for the result, e.g. a frame to be viewed
+         */
+        INTERACTIVE,
+        /**
+         * Background work, e.g. the frames of a store
+         */
+        BULK
+    }
+
+    /**
+     * A codec run.
+     *
+     * @param <T> Type of its result
+     */
+    @FunctionalInterface
+    public interface CodecTask<T> {
+
+        T run() throws IOException;
+    }
+
+    private final int maxRunning;
+    private final int queueCapacity;
+    private final Map<String, Integer> maxRunningByCodec;
+    private final double minBulkShare;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition queueNotFull = lock.newCondition();
+    private final Map<Lane, Deque<Ticket>> queues = new EnumMap<>(Lane.class);
+    private final Map<Lane, LatencyHistogram> waits = new EnumMap<>(Lane.class);
+    private final Map<String, Integer> runningByCodec = new HashMap<>();
+    private int running = 0;
+    private int blocked = 0;
+    private int maxQueueDepth = 0;
+    private long completed = 0;
+    private long totalWaitNanos = 0;
+    /**
+     * Admissions of each lane since both lanes have had runs waiting
+     */
+    private int contestedBulk = 0, contestedInteractive = 0;
+
+    /**
+     * A run waiting to be admitted.
+     */
+    private final class Ticket {
+
+        private final String codecId;
+        private final Lane lane;
+        private final Condition admission = lock.newCondition();
+        private boolean admitted = false;
+
+        private Ticket(String codecId, Lane lane) {
+            this.codecId = codecId;
+            this.lane = lane;
+        }
+    }
+
+    /**
+     *
+     * @param maxRunning Most runs at a time, of all the codecs
+     * @param queueCapacity Most runs waiting to be admitted
+     * @param maxRunningByCodec Most runs at a time of each codec, by codec id. The codecs left out are only
+     *                          bounded by maxRunning.
+     * @param minBulkShare Least share of the admissions that go to bulk runs while both lanes have runs waiting,
+     *                     from 0 (interactive runs always go first) to 1
+     */
+    public CodecScheduler(int maxRunning, int queueCapacity, Map<String, Integer> maxRunningByCodec,
+                          double minBulkShare) {
+        if (maxRunning < 1 || queueCapacity < 1)
+            throw new IllegalArgumentException(String.format(
+                    "Codec runs (%d) and queue capacity (%d) must be positive", maxRunning, queueCapacity));
+        if (!(minBulkShare >= 0 && minBulkShare <= 1))
+            throw new IllegalArgumentException(String.format("Bulk share (%s) must be from 0 to 1", minBulkShare));
+        for (Map.Entry<String, Integer> limit : maxRunningByCodec.entrySet())
+            if (limit.getValue() < 1)
+                throw new IllegalArgumentException(String.format("Runs of '%s' (%d) must be positive",
+                        limit.getKey(), limit.getValue()));
+
+        this.maxRunning = maxRunning;
+        this.queueCapacity = queueCapacity;
+        this.maxRunningByCodec = new HashMap<>(maxRunningByCodec);
+        this.minBulkShare = minBulkShare;
+        for (Lane lane : Lane.values()) {
+            queues.put(lane, new ArrayDeque<>());
+            waits.put(lane, new LatencyHistogram());
+        }
+    }
+
+    public static CodecScheduler getShared() {
+        return shared;
+    }
+
+    /**
+     * Replaces the shared scheduler. Runs already admitted or queued finish on the previous one.
+     */
+    public static void setShared(CodecScheduler scheduler) {
+        shared = scheduler;
+        logger.info("Codec runs bounded to {}", scheduler);
+    }
+
+    /**
+     * Runs the task in the bulk lane once it is admitted, on the calling thread.
+     *
+     * @param codecId Id of the codec the task runs, to which its limit applies
+     * @return What the task returned
+     * @throws InterruptedIOException If interrupted while waiting to be admitted
+     */
+    public <T> T execute(String codecId, CodecTask<T> task) throws IOException {
+        return execute(codecId, Lane.BULK, task);
+    }
+
+    /**
+     * Runs the task once it is admitted, on the calling thread.
+     *
+     * @param codecId Id of the codec the task runs, to which its limit applies
+     * @return What the task returned
+     * @throws InterruptedIOException If interrupted while waiting to be admitted
+     */
+    public <T> T execute(String codecId, Lane lane, CodecTask<T> task) throws IOException {
+        admit(codecId, lane);
+        try {
+            return task.run();
+        } finally {
+            release(codecId);
+        }
+    }
+
+    private void admit(String codecId, Lane lane) throws InterruptedIOException {
+        long start = System.nanoTime();
+        Deque<Ticket> queue = queues.get(lane);
+        lock.lock();
+        try {
+            if (lane == Lane.BULK && queue.size() >= queueCapacity) {
+                if (blocked++ == 0)
+                    logger.warn("The codec queue is full ({} runs waiting). Holding back new runs.", queueCapacity);
+                try {
+                    while (queue.size() >= queueCapacity)
+                        queueNotFull.await();
+                } finally {
+                    blocked--;
+                }
+            }
+
+            Ticket ticket = new Ticket(codecId, lane);
+            queue.addLast(ticket);
+            maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+            dispatch();
+
+            try {
+                while (!ticket.admitted)
+                    ticket.admission.await();
+            } catch (InterruptedException e) {
+                if (ticket.admitted) {
+                    // Admitted meanwhile: it must be given back
+                    releaseLocked(codecId);
+                } else {
+                    queue.remove(ticket);
+                    if (lane == Lane.BULK)
+                        queueNotFull.signal();
+                }
+                throw e;
+            }
+            long waitNanos = System.nanoTime() - start;
+            totalWaitNanos += waitNanos;
+            waits.get(lane).record(waitNanos);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format("Interrupted while waiting to run '%s'", codecId));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(String codecId) {
+        lock.lock();
+        try {
+            releaseLocked(codecId);
+            completed++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void releaseLocked(String codecId) {
+        running--;
+        runningByCodec.merge(codecId, -1, Integer::sum);
+        dispatch();
+    }
+
+    /**
+     * Admits the queued runs that there is room for, interactive ones first, each lane in arrival order.
+     * Must hold the lock.
+     */
+    private void dispatch() {
+        while (running < maxRunning) {
+            Ticket interactive = nextAdmissible(Lane.INTERACTIVE), bulk = nextAdmissible(Lane.BULK);
+            Ticket ticket;
+
+            if (interactive != null && bulk != null) {
+                // Bulk is due if it would otherwise fall under its share
+                boolean bulkIsDue = contestedBulk + 1 <= minBulkShare * (contestedBulk + contestedInteractive + 1);
+                ticket = bulkIsDue ? bulk : interactive;
+                if (bulkIsDue)
+                    contestedBulk++;
+                else
+                    contestedInteractive++;
+            } else if (interactive != null || bulk != null) {
+                ticket = interactive != null ? interactive : bulk;
+                contestedBulk = contestedInteractive = 0;
+            } else
+                return;
+
+            queues.get(ticket.lane).remove(ticket);
+            running++;
+            runningByCodec.merge(ticket.codecId, 1, Integer::sum);
+            ticket.admitted = true;
+            ticket.admission.signal();
+            if (ticket.lane == Lane.BULK)
+                queueNotFull.signal();
+        }
+    }
+
+    /**
+     *
+     * @return The first run of the lane whose codec is not at its limit, if any
+     */
+    private Ticket nextAdmissible(Lane lane) {
+        for (Ticket ticket : queues.get(lane))
+            if (runningByCodec.getOrDefault(ticket.codecId, 0)
+                    < maxRunningByCodec.getOrDefault(ticket.codecId, maxRunning))
+                return ticket;
+        return null;
+    }
+
+    /**
+     *
+     * @return The current state of the queue and the runs, and the totals so far
+     */
+    public Metrics getMetrics() {
+        lock.lock();
+        try {
+            Map<String, Integer> running = new HashMap<>(runningByCodec);
+            running.values().removeIf(runs -> runs == 0);
+            Map<Lane, Integer> queueDepths = new EnumMap<>(Lane.class);
+            Map<Lane, Long> p99Waits = new EnumMap<>(Lane.class);
+            for (Lane lane : Lane.values()) {
+                queueDepths.put(lane, queues.get(lane).size());
+                p99Waits.put(lane, waits.get(lane).percentile(0.99));
+            }
+            return new Metrics(queueDepths, blocked, this.running, running, maxQueueDepth, completed,
+                    completed == 0 ? 0 : totalWaitNanos / completed, p99Waits);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxRunning() {
+        return maxRunning;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d at a time (%s per codec), %d queued, %.0f%% of the contested ones to bulk",
+                maxRunning, maxRunningByCodec.isEmpty() ? "no limit" : maxRunningByCodec, queueCapacity,
+                minBulkShare * 100);
+    }
+
+    /**
+     * Counts durations in buckets of powers of two, which is enough to tell their percentiles apart by a factor
+     * of two at most, with a fixed amount of memory. Not thread-safe.
+     */
+    static final class LatencyHistogram {
+
+        private final long[] counts = new long[64];
+        private long total = 0;
+
+        void record(long nanos) {
+            counts[64 - Long.numberOfLeadingZeros(Math.max(nanos, 0))]++;
+            total++;
+        }
+
+        /**
+         *
+         * @return Upper bound of the bucket of the given percentile, in nanoseconds, or 0 if nothing was recorded
+         */
+        long percentile(double percentile) {
+            long rank = (long) Math.ceil(percentile * total), seen = 0;
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank && seen > 0)
+                    return bucket == 0 ? 0 : (1L << bucket) - 1;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Snapshot of the state of a scheduler.
+     */
+    public static final class Metrics {
+
+        private final Map<Lane, Integer> queueDepths;
+        private final int blocked;
+        private final int running;
+        private final Map<String, Integer> runningByCodec;
+        private final int maxQueueDepth;
+        private final long completed;
+        private final long meanWaitNanos;
+        private final Map<Lane, Long> p99WaitNanos;
+
+        private Metrics(Map<Lane, Integer> queueDepths, int blocked, int running, Map<String, Integer> runningByCodec,
+                        int maxQueueDepth, long completed, long meanWaitNanos, Map<Lane, Long> p99WaitNanos) {
+            this.queueDepths = queueDepths;
+            this.blocked = blocked;
+            this.running = running;
+            this.runningByCodec = Collections.unmodifiableMap(runningByCodec);
+            this.maxQueueDepth = maxQueueDepth;
+            this.completed = completed;
+            this.meanWaitNanos = meanWaitNanos;
+            this.p99WaitNanos = p99WaitNanos;
+        }
+
+        /**
+         *
+         * @return Runs waiting to be admitted, of both lanes
+         */
+        public int getQueueDepth() {
+            return queueDepths.values().stream().mapToInt(Integer::intValue).sum();
+        }
+
+        /**
+         *
+         * @return Runs of the lane waiting to be admitted
+         */
+        public int getQueueDepth(Lane lane) {
+            return queueDepths.get(lane);
+        }
+
+        /**
+         *
+         * @return Threads waiting for room in the queue
+         */
+        public int getBlocked() {
+            return blocked;
+        }
+
+        public int getRunning() {
+            return running;
+        }
+
+        public Map<String, Integer> getRunningByCodec() {
+            return runningByCodec;
+        }
+
+        /**
+         *
+         * @return Deepest the queue has been
+         */
+        public int getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        /**
+         *
+         * @return Mean time the completed runs waited to be admitted
+         */
+        public long getMeanWait(TimeUnit unit) {
+            return unit.convert(meanWaitNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         *
+         * @return 99th percentile of the time the runs of the lane waited to be admitted, rounded up to a power
+         * of two nanoseconds
+         */
+        public long getP99Wait(Lane lane, TimeUnit unit) {
+            return unit.convert(p99WaitNanos.get(lane), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s queued (at most %d), %d blocked, %d running %s, %d completed, %d ms mean wait, "
+                            + "%d/%d ms p99 wait (interactive/bulk)",
+                    queueDepths, maxQueueDepth, blocked, running, runningByCodec, completed,
+                    getMeanWait(TimeUnit.MILLISECONDS), getP99Wait(Lane.INTERACTIVE, TimeUnit.MILLISECONDS),
+                    getP99Wait(Lane.BULK, TimeUnit.MILLISECONDS));
+        }
+    }
+}
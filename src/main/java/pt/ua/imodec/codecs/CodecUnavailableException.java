@@ -0,0 +1,13 @@
+package pt.ua.imodec.codecs;
+
+import java.io.IOException;
+
+/**
+ * A codec was not run because it failed too many times in a row (see {@link CodecCircuitBreaker}).
+ */
+public class CodecUnavailableException extends IOException {
+
+    public CodecUnavailableException(String message) {
+        super(message);
+    }
+}
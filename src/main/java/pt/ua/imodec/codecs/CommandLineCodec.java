@@ -0,0 +1,54 @@
+package pt.ua.imodec.codecs;
+
+import pt.ua.imodec.datastructs.formats.NewFormat;
+import pt.ua.imodec.util.NewFormatsCodecs;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs the command line encoder and decoder of a format (see {@link NewFormatsCodecs}).
+ */
+public class CommandLineCodec implements Codec {
+
+    private final NewFormat format;
+
+    public CommandLineCodec(NewFormat format) {
+        this.format = format;
+    }
+
+    @Override
+    public String getId() {
+        return format.getId();
+    }
+
+    @Override
+    public String getTransferSyntaxUID() {
+        return format.getTransferSyntax().uid();
+    }
+
+    @Override
+    public CodecCapabilities getCapabilities() {
+        // Only cjxl reads 16-bit PGM; cavif and cwebp reduce the samples to 8 bits.
+        // Pipes may turn out not to work with the installed version, after which the codec uses files.
+        return new CodecCapabilities(format == NewFormat.JPEG_XL ? 16 : 8, 3, NewFormatsCodecs.usesPipes(format),
+                false);
+    }
+
+    @Override
+    public byte[] encode(BufferedImage image, Map<String, Number> options) throws IOException {
+        return NewFormatsCodecs.encode(image, format, new HashMap<>(options));
+    }
+
+    @Override
+    public BufferedImage decode(byte[] codeStream) throws IOException {
+        return NewFormatsCodecs.decodeByteStream(codeStream, format);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (command line)", format.getId());
+    }
+}
@@ -0,0 +1,20 @@
+package pt.ua.imodec.codecs;
+
+import pt.ua.imodec.datastructs.formats.NewFormat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Provides the codecs that run the command line tools of each new format (see {@link CommandLineCodec}).
+ */
+public class CommandLineCodecProvider implements CodecProvider {
+
+    @Override
+    public List<Codec> getCodecs() {
+        List<Codec> codecs = new ArrayList<>();
+        for (NewFormat format : NewFormat.values())
+            codecs.add(new CommandLineCodec(format));
+        return codecs;
+    }
+}
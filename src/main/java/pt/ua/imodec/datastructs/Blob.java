@@ -0,0 +1,75 @@
+package pt.ua.imodec.datastructs;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Immutable sequence of bytes, e.g. a stored dicom object.
+ * <p>
+ * The views provided share the blob's memory: reading an object does not copy it.
+ * A blob is not necessarily contiguous, so it can be larger than 2GB.
+ */
+public interface Blob {
+
+    /**
+     *
+     * @return Size in bytes
+     */
+    long size();
+
+    /**
+     *
+     * @return A new stream over the whole content
+     */
+    InputStream newInputStream();
+
+    /**
+     *
+     * @return New read-only buffers which, in order, cover the whole content
+     */
+    ByteBuffer[] asByteBuffers();
+
+    /**
+     *
+     * @return A new read-only buffer over the whole content, with position 0 and limit equal to the size
+     * @throws UnsupportedOperationException If the content is not contiguous
+     */
+    default ByteBuffer asByteBuffer() {
+        ByteBuffer[] buffers = asByteBuffers();
+
+        if (buffers.length == 0)
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        if (buffers.length > 1)
+            throw new UnsupportedOperationException("Blob is not contiguous. Use asByteBuffers() instead.");
+
+        return buffers[0];
+    }
+
+    /**
+     * Copies a range of the content, without going through the bytes before it.
+     *
+     * @param position Offset of the range from the start of the content
+     * @param destination Filled with the range
+     * @throws IndexOutOfBoundsException If the range goes past the end of the content
+     */
+    default void read(long position, byte[] destination) {
+        if (position < 0 || position + destination.length > size())
+            throw new IndexOutOfBoundsException(String.format("Range of %d bytes at %d is out of a blob of %d bytes",
+                    destination.length, position, size()));
+
+        long bufferStart = 0;
+        int copied = 0;
+        for (ByteBuffer buffer : asByteBuffers()) {
+            long bufferEnd = bufferStart + buffer.remaining();
+            if (copied < destination.length && position + copied < bufferEnd) {
+                int offset = (int) (position + copied - bufferStart);
+                int length = (int) Math.min(destination.length - copied, bufferEnd - position - copied);
+                buffer.position(buffer.position() + offset);
+                buffer.get(destination, copied, length);
+                copied += length;
+            }
+            bufferStart = bufferEnd;
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+package pt.ua.imodec.datastructs;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Blob over the remaining bytes of a buffer, which can be heap, direct or memory-mapped.
+ */
+public class ByteBufferBlob implements Blob {
+
+    private final ByteBuffer buffer;
+
+    /**
+     *
+     * @param buffer Content of the blob. Must not be changed afterwards, since it is not copied.
+     */
+    public ByteBufferBlob(ByteBuffer buffer) {
+        this.buffer = buffer.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     *
+     * @param data Content of the blob. Must not be changed afterwards, since it is not copied.
+     */
+    public ByteBufferBlob(byte[] data) {
+        this(ByteBuffer.wrap(data));
+    }
+
+    @Override
+    public long size() {
+        return buffer.capacity();
+    }
+
+    @Override
+    public InputStream newInputStream() {
+        return new ByteBufferInputStream(asByteBuffer());
+    }
+
+    @Override
+    public ByteBuffer[] asByteBuffers() {
+        return new ByteBuffer[]{asByteBuffer()};
+    }
+
+    @Override
+    public ByteBuffer asByteBuffer() {
+        return buffer.duplicate();
+    }
+}
@@ -0,0 +1,53 @@
+package pt.ua.imodec.datastructs;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Bounded pool of equally sized byte arrays, to be reused by {@link ChunkedBuffer}s.
+ * Safe for concurrent use.
+ */
+public class ChunkPool {
+
+    private final int chunkSize;
+    private final ArrayBlockingQueue<byte[]> freeChunks;
+
+    /**
+     *
+     * @param chunkSize Size in bytes of each chunk
+     * @param maxPooledChunks Maximum number of free chunks kept by the pool. Extra released chunks are left to the GC.
+     */
+    public ChunkPool(int chunkSize, int maxPooledChunks) {
+        this.chunkSize = chunkSize;
+        this.freeChunks = new ArrayBlockingQueue<>(maxPooledChunks);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     *
+     * @return A free chunk. Its content is undefined.
+     */
+    public byte[] acquire() {
+        byte[] chunk = freeChunks.poll();
+        return chunk != null ? chunk : new byte[chunkSize];
+    }
+
+    /**
+     *
+     * @param chunk Chunk no longer in use, which must have been acquired from this pool
+     */
+    public void release(byte[] chunk) {
+        if (chunk.length == chunkSize)
+            freeChunks.offer(chunk);
+    }
+
+    /**
+     *
+     * @return Number of free chunks in the pool
+     */
+    public int size() {
+        return freeChunks.size();
+    }
+}
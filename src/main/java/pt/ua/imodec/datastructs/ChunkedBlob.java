@@ -0,0 +1,111 @@
+package pt.ua.imodec.datastructs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Blob made of several buffers, read in sequence. Its size is not limited to 2GB.
+ */
+public class ChunkedBlob implements Blob {
+
+    private final ByteBuffer[] chunks;
+    private final long size;
+
+    /**
+     *
+     * @param chunks Content of the blob, in order. Must not be changed afterwards, since it is not copied.
+     */
+    public ChunkedBlob(ByteBuffer... chunks) {
+        this.chunks = new ByteBuffer[chunks.length];
+
+        long totalSize = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            this.chunks[i] = chunks[i].slice().asReadOnlyBuffer();
+            totalSize += this.chunks[i].capacity();
+        }
+        this.size = totalSize;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public InputStream newInputStream() {
+        return new ChunksInputStream(asByteBuffers());
+    }
+
+    @Override
+    public ByteBuffer[] asByteBuffers() {
+        ByteBuffer[] views = new ByteBuffer[chunks.length];
+        for (int i = 0; i < chunks.length; i++)
+            views[i] = chunks[i].duplicate();
+        return views;
+    }
+
+    private static final class ChunksInputStream extends InputStream {
+
+        private final ByteBuffer[] chunks;
+        private int current = 0;
+
+        private ChunksInputStream(ByteBuffer[] chunks) {
+            this.chunks = chunks;
+        }
+
+        /**
+         *
+         * @return The chunk to be read next, or null at the end of the blob
+         */
+        private ByteBuffer currentChunk() {
+            while (current < chunks.length && !chunks[current].hasRemaining())
+                current++;
+            return current < chunks.length ? chunks[current] : null;
+        }
+
+        @Override
+        public int read() {
+            ByteBuffer chunk = currentChunk();
+            return chunk == null ? -1 : chunk.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+
+            int read = 0;
+            ByteBuffer chunk;
+            while (read < len && (chunk = currentChunk()) != null) {
+                int n = Math.min(len - read, chunk.remaining());
+                chunk.get(b, off + read, n);
+                read += n;
+            }
+            return read == 0 ? -1 : read;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = 0;
+            ByteBuffer chunk;
+            while (skipped < n && (chunk = currentChunk()) != null) {
+                int step = (int) Math.min(n - skipped, chunk.remaining());
+                chunk.position(chunk.position() + step);
+                skipped += step;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            ByteBuffer chunk = currentChunk();
+            return chunk == null ? 0 : chunk.remaining();
+        }
+
+        @Override
+        public void close() throws IOException {
+            current = chunks.length;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package pt.ua.imodec.datastructs;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Output stream which keeps its content in a list of fixed-size chunks instead of a single array.
+ * <p>
+ * Unlike {@link java.io.ByteArrayOutputStream}, it never needs a contiguous array as large as the content:
+ * growing does not copy what was already written, the size is not limited to 2GB and, as long as the chunks are
+ * smaller than half a G1 region (the default 256KB always are), no humongous allocations take place.
+ * Not safe for concurrent use.
+ */
+public class ChunkedBuffer extends OutputStream {
+
+    public static final int DEFAULT_CHUNK_SIZE = 256 << 10;
+
+    private final ChunkPool pool;
+    private final int chunkSize;
+    private final ArrayList<byte[]> chunks = new ArrayList<>();
+    private int lastChunkCount;
+    private long size = 0;
+    private boolean closed = false;
+
+    /**
+     *
+     * @param pool Pool from which the chunks are acquired
+     */
+    public ChunkedBuffer(ChunkPool pool) {
+        this.pool = pool;
+        this.chunkSize = pool.getChunkSize();
+        this.lastChunkCount = chunkSize;
+    }
+
+    /**
+     *
+     * @param chunkSize Size in bytes of each chunk. The chunks are not pooled.
+     */
+    public ChunkedBuffer(int chunkSize) {
+        this.pool = null;
+        this.chunkSize = chunkSize;
+        this.lastChunkCount = chunkSize;
+    }
+
+    public ChunkedBuffer() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureWritable();
+        chunks.get(chunks.size() - 1)[lastChunkCount++] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            ensureWritable();
+            int n = Math.min(len, chunkSize - lastChunkCount);
+            System.arraycopy(b, off, chunks.get(chunks.size() - 1), lastChunkCount, n);
+            lastChunkCount += n;
+            size += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     *
+     * @return Number of bytes written
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Closes the buffer and returns its content as a blob which shares the chunks. The last chunk is trimmed
+     * to the written size, so the blob carries no slack.
+     *
+     * @return Blob with the written content
+     */
+    public Blob toBlob() {
+        closed = true;
+
+        if (!chunks.isEmpty() && lastChunkCount < chunkSize) {
+            byte[] lastChunk = chunks.get(chunks.size() - 1);
+            chunks.set(chunks.size() - 1, Arrays.copyOf(lastChunk, lastChunkCount));
+            lastChunkCount = chunkSize;
+            if (pool != null)
+                pool.release(lastChunk);
+        }
+
+        ByteBuffer[] buffers = new ByteBuffer[chunks.size()];
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i] = ByteBuffer.wrap(chunks.get(i));
+
+        return new ChunkedBlob(buffers);
+    }
+
+    /**
+     * Returns the chunks to the pool. Neither this buffer nor the blobs created from it
+     * can be used afterwards.
+     */
+    public void release() {
+        closed = true;
+
+        if (pool != null)
+            for (byte[] chunk : chunks)
+                pool.release(chunk);
+        chunks.clear();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    private void ensureWritable() {
+        if (closed)
+            throw new IllegalStateException("Buffer is closed");
+
+        if (lastChunkCount == chunkSize) {
+            chunks.add(pool != null ? pool.acquire() : new byte[chunkSize]);
+            lastChunkCount = 0;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package pt.ua.imodec.datastructs;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Map from storage keys ("scheme://SOPUID/TSUID") to values, which keeps the keys packed in primitive arrays.
+ * <p>
+ * DICOM UIDs are made of digits and dots, so the SOP instance UID (up to 64 characters) is packed at 4 bits per
+ * character into 4 longs. The scheme and the transfer syntax UID, which take few distinct values, are replaced
+ * by small ordinals. Entries live in open-addressing tables (linear probing) of parallel arrays, so there are no
+ * per-entry objects besides the values: 38 bytes per slot (with compressed references), at a load factor
+ * between 3/8 and 3/4, instead of the ~200 bytes per entry of a String-keyed map.
+ * In exchange, every lookup packs the key, which is a pass over its characters.
+ * <p>
+ * Keys that do not have that form are kept in a regular map. Safe for concurrent use: the entries are spread
+ * over independent tables (stripes), each one guarded by its own lock.
+ *
+ * @param <V> Type of the values
+ */
+public class CompactKeyMap<V> {
+
+    private static final int STRIPES = 64;
+    private static final int UID_WORDS = PackedUids.WORDS;
+    private static final short EMPTY = 0;
+    private static final short DELETED = -1;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final ConcurrentHashMap<String, V> otherKeys = new ConcurrentHashMap<>();
+
+    // Schemes and transfer syntax UIDs
+    private final Symbols symbols = new Symbols();
+
+    public CompactKeyMap() {
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe();
+    }
+
+    public V get(String key) {
+        PackedKey packedKey = pack(key, false);
+        if (packedKey == null)
+            return otherKeys.get(key);
+
+        Stripe stripe = stripeOf(packedKey);
+        synchronized (stripe) {
+            int slot = stripe.find(packedKey);
+            return slot < 0 ? null : valueAt(stripe, slot);
+        }
+    }
+
+    public boolean containsKey(String key) {
+        return get(key) != null;
+    }
+
+    /**
+     *
+     * @param value Value to associate with the key, not null
+     * @return The previous value of the key, or null
+     */
+    public V put(String key, V value) {
+        if (value == null)
+            throw new NullPointerException("Null values are not supported");
+
+        PackedKey packedKey = pack(key, true);
+        if (packedKey == null)
+            return otherKeys.put(key, value);
+
+        Stripe stripe = stripeOf(packedKey);
+        synchronized (stripe) {
+            @SuppressWarnings("unchecked")
+            V previous = (V) stripe.put(packedKey, value);
+            return previous;
+        }
+    }
+
+    /**
+     *
+     * @return The removed value, or null if the key was not in the map
+     */
+    public V remove(String key) {
+        PackedKey packedKey = pack(key, false);
+        if (packedKey == null)
+            return otherKeys.remove(key);
+
+        Stripe stripe = stripeOf(packedKey);
+        synchronized (stripe) {
+            @SuppressWarnings("unchecked")
+            V previous = (V) stripe.remove(packedKey);
+            return previous;
+        }
+    }
+
+    public int size() {
+        int size = otherKeys.size();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        otherKeys.clear();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * Calls the action for each entry. Each stripe is iterated under its lock, so the action must not
+     * access this map.
+     */
+    public void forEach(BiConsumer<String, V> action) {
+        otherKeys.forEach(action);
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (int slot = 0; slot < stripe.tags.length; slot++) {
+                    if (stripe.tags[slot] != EMPTY && stripe.tags[slot] != DELETED)
+                        action.accept(keyAt(stripe, slot), valueAt(stripe, slot));
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * @return Copy of the keys in the map
+     */
+    public Set<String> keySet() {
+        Set<String> keys = new HashSet<>();
+        forEach((key, value) -> keys.add(key));
+        return keys;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V valueAt(Stripe stripe, int slot) {
+        return (V) stripe.values[slot];
+    }
+
+    private String keyAt(Stripe stripe, int slot) {
+        StringBuilder key = new StringBuilder(96);
+        key.append(symbols.get(((stripe.tags[slot] & 0xFFFF) >> 8) - 1)).append("://");
+        PackedUids.unpack(stripe.keys, slot * UID_WORDS, key);
+
+        return key.append('/').append(symbols.get(stripe.tags[slot] & 0xFF)).toString();
+    }
+
+    private Stripe stripeOf(PackedKey packedKey) {
+        return stripes[(int) (packedKey.hash >>> 58)];
+    }
+
+    /**
+     *
+     * @param register Whether to register the scheme and transfer syntax if they are new
+     * @return The packed key, or null if the key can not be packed (or has an unregistered symbol)
+     */
+    private PackedKey pack(String key, boolean register) {
+        int schemeEnd = key.indexOf("://");
+        if (schemeEnd < 0)
+            return null;
+        int uidStart = schemeEnd + 3;
+        int uidEnd = key.indexOf('/', uidStart);
+        if (uidEnd < 0 || uidEnd == key.length() - 1)
+            return null;
+
+        long[] words = PackedUids.pack(key, uidStart, uidEnd);
+        if (words == null)
+            return null;
+
+        int scheme = symbols.ordinalOf(key, 0, schemeEnd, register);
+        int transferSyntax = symbols.ordinalOf(key, uidEnd + 1, key.length(), register);
+        if (scheme < 0 || transferSyntax < 0)
+            return null;
+
+        return new PackedKey(words, (short) (((scheme + 1) << 8) | transferSyntax));
+    }
+
+    private static final class PackedKey {
+
+        private final long[] words;
+        private final short tag;
+        private final long hash;
+
+        private PackedKey(long[] words, short tag) {
+            this.words = words;
+            this.tag = tag;
+            // Both the high (stripe) and low (slot) bits are mixed
+            this.hash = PackedUids.hash(words, tag);
+        }
+    }
+
+    /**
+     * Open-addressing table. A slot holds the packed uid in {@link #keys}, the scheme and transfer syntax ordinals
+     * in {@link #tags} (which also mark free and deleted slots) and the value in {@link #values}.
+     */
+    private static final class Stripe {
+
+        private long[] keys;
+        private short[] tags;
+        private Object[] values;
+        private int size, deleted;
+
+        private Stripe() {
+            clear();
+        }
+
+        private void clear() {
+            keys = new long[16 * UID_WORDS];
+            tags = new short[16];
+            values = new Object[16];
+            size = 0;
+            deleted = 0;
+        }
+
+        private int find(PackedKey packedKey) {
+            int mask = tags.length - 1;
+            for (int slot = (int) packedKey.hash & mask; tags[slot] != EMPTY; slot = (slot + 1) & mask) {
+                if (tags[slot] == packedKey.tag && keyEquals(slot, packedKey.words))
+                    return slot;
+            }
+            return -1;
+        }
+
+        private Object put(PackedKey packedKey, Object value) {
+            int existing = find(packedKey);
+            if (existing >= 0) {
+                Object previous = values[existing];
+                values[existing] = value;
+                return previous;
+            }
+
+            if ((size + deleted + 1) * 4L > tags.length * 3L)
+                resize(size * 4L >= tags.length ? tags.length * 2 : tags.length);
+
+            int mask = tags.length - 1;
+            int slot = (int) packedKey.hash & mask;
+            while (tags[slot] != EMPTY && tags[slot] != DELETED)
+                slot = (slot + 1) & mask;
+
+            if (tags[slot] == DELETED)
+                deleted--;
+            tags[slot] = packedKey.tag;
+            System.arraycopy(packedKey.words, 0, keys, slot * UID_WORDS, UID_WORDS);
+            values[slot] = value;
+            size++;
+            return null;
+        }
+
+        private Object remove(PackedKey packedKey) {
+            int slot = find(packedKey);
+            if (slot < 0)
+                return null;
+
+            Object previous = values[slot];
+            tags[slot] = DELETED;
+            values[slot] = null;
+            size--;
+            deleted++;
+            return previous;
+        }
+
+        /**
+         * Rehashes the entries into a table of the given capacity, which also drops the deleted slots.
+         */
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            short[] oldTags = tags;
+            Object[] oldValues = values;
+
+            keys = new long[capacity * UID_WORDS];
+            tags = new short[capacity];
+            values = new Object[capacity];
+            deleted = 0;
+
+            int mask = capacity - 1;
+            long[] words = new long[UID_WORDS];
+            for (int oldSlot = 0; oldSlot < oldTags.length; oldSlot++) {
+                if (oldTags[oldSlot] == EMPTY || oldTags[oldSlot] == DELETED)
+                    continue;
+
+                System.arraycopy(oldKeys, oldSlot * UID_WORDS, words, 0, UID_WORDS);
+                int slot = (int) new PackedKey(words, oldTags[oldSlot]).hash & mask;
+                while (tags[slot] != EMPTY)
+                    slot = (slot + 1) & mask;
+
+                tags[slot] = oldTags[oldSlot];
+                System.arraycopy(words, 0, keys, slot * UID_WORDS, UID_WORDS);
+                values[slot] = oldValues[oldSlot];
+            }
+        }
+
+        private boolean keyEquals(int slot, long[] words) {
+            for (int i = 0; i < UID_WORDS; i++) {
+                if (keys[slot * UID_WORDS + i] != words[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package pt.ua.imodec.datastructs;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Map from UIDs to their variants, each one a symbol with a size: the transfer syntaxes stored of each SOP
+ * instance, with their sizes in bytes, for instance. Each UID may also have an attachment, shared by its variants.
+ * <p>
+ * Packed like a {@link CompactKeyMap}: the UID at 4 bits per character into 4 longs, the variant as a small
+ * ordinal, the size as a primitive and the attachment as a reference, in open-addressing tables (linear probing)
+ * of parallel arrays. There are no per-entry objects: 46 bytes per slot (with compressed references), at a load
+ * factor between 3/8 and 3/4. In exchange, listing the variants of a UID looks up each registered symbol.
+ * <p>
+ * UIDs that can not be packed, and variants beyond the registered symbols, are kept in a regular map.
+ * Safe for concurrent use: the variants of a UID are all in the same table (stripe), guarded by its own lock,
+ * so the updates of a packed UID are atomic.
+ *
+ * @param <A> Type of the attachments
+ */
+public class CompactVariantMap<A> {
+
+    private static final int STRIPES = 64;
+    private static final int UID_WORDS = PackedUids.WORDS;
+    private static final short EMPTY = 0;
+    private static final short DELETED = -1;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final ConcurrentHashMap<String, OtherVariants<A>> otherUids = new ConcurrentHashMap<>();
+    private final Symbols variants = new Symbols();
+
+    public CompactVariantMap() {
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe();
+    }
+
+    /**
+     * Adds or replaces a variant of the UID. A new variant gets the attachment of the UID's other variants.
+     *
+     * @return The previous size of the variant, or -1 if the UID did not have it
+     */
+    public long put(String uid, String variant, long size) {
+        long[] words = PackedUids.pack(uid, 0, uid.length());
+        int ordinal = words == null ? -1 : variants.ordinalOf(variant, 0, variant.length(), true);
+        if (ordinal < 0) {
+            long[] previous = {-1};
+            otherUids.compute(uid, (key, current) -> {
+                OtherVariants<A> updated = current == null ? new OtherVariants<>(null) : current.copy();
+                Long previousSize = updated.sizes.put(variant, size);
+                previous[0] = previousSize != null ? previousSize : -1;
+                return updated;
+            });
+            return previous[0];
+        }
+
+        Stripe stripe = stripeOf(words);
+        synchronized (stripe) {
+            short tag = (short) (ordinal + 1);
+            int slot = stripe.find(words, tag);
+            if (slot >= 0) {
+                long previous = stripe.sizes[slot];
+                stripe.sizes[slot] = size;
+                return previous;
+            }
+
+            int sibling = findAny(stripe, words);
+            stripe.insert(words, tag, size, sibling < 0 ? null : stripe.attachments[sibling]);
+            return -1;
+        }
+    }
+
+    /**
+     * Removes a variant of the UID. The UID leaves the map, along with its attachment, once it has no variants.
+     *
+     * @return The attachment of the UID if the variant was its last one, otherwise (or if it had none) null
+     */
+    public A remove(String uid, String variant) {
+        long[] words = PackedUids.pack(uid, 0, uid.length());
+        int ordinal = words == null ? -1 : variants.ordinalOf(variant, 0, variant.length(), false);
+        if (ordinal < 0) {
+            @SuppressWarnings("unchecked")
+            A[] removed = (A[]) new Object[1];
+            otherUids.computeIfPresent(uid, (key, current) -> {
+                if (!current.sizes.containsKey(variant))
+                    return current;
+                OtherVariants<A> updated = current.copy();
+                updated.sizes.remove(variant);
+                if (!updated.sizes.isEmpty())
+                    return updated;
+
+                removed[0] = updated.attachment;
+                return null;
+            });
+            return removed[0];
+        }
+
+        Stripe stripe = stripeOf(words);
+        synchronized (stripe) {
+            int slot = stripe.find(words, (short) (ordinal + 1));
+            if (slot < 0)
+                return null;
+
+            @SuppressWarnings("unchecked")
+            A attachment = (A) stripe.attachments[slot];
+            stripe.remove(slot);
+            return findAny(stripe, words) < 0 ? attachment : null;
+        }
+    }
+
+    /**
+     *
+     * @return The variants of the UID, mapped to their sizes. Empty if the UID is not in the map.
+     */
+    public Map<String, Long> get(String uid) {
+        Map<String, Long> sizes = new HashMap<>(4);
+        OtherVariants<A> other = otherUids.get(uid);
+        if (other != null)
+            sizes.putAll(other.sizes);
+
+        long[] words = PackedUids.pack(uid, 0, uid.length());
+        if (words != null) {
+            Stripe stripe = stripeOf(words);
+            synchronized (stripe) {
+                for (int ordinal = 0; ordinal < variants.size(); ordinal++) {
+                    int slot = stripe.find(words, (short) (ordinal + 1));
+                    if (slot >= 0)
+                        sizes.put(variants.get(ordinal), stripe.sizes[slot]);
+                }
+            }
+        }
+
+        return sizes.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(sizes);
+    }
+
+    public boolean containsKey(String uid) {
+        return !get(uid).isEmpty();
+    }
+
+    /**
+     *
+     * @return The attachment of the UID, or null if it has none or is not in the map
+     */
+    public A getAttachment(String uid) {
+        long[] words = PackedUids.pack(uid, 0, uid.length());
+        if (words != null) {
+            Stripe stripe = stripeOf(words);
+            synchronized (stripe) {
+                int slot = findAny(stripe, words);
+                if (slot >= 0) {
+                    @SuppressWarnings("unchecked")
+                    A attachment = (A) stripe.attachments[slot];
+                    return attachment;
+                }
+            }
+        }
+
+        OtherVariants<A> other = otherUids.get(uid);
+        return other == null ? null : other.attachment;
+    }
+
+    /**
+     * Sets the attachment of all the variants of the UID, if it is in the map.
+     *
+     * @return Whether the UID is in the map
+     */
+    public boolean setAttachment(String uid, A attachment) {
+        boolean found = false;
+        long[] words = PackedUids.pack(uid, 0, uid.length());
+        if (words != null) {
+            Stripe stripe = stripeOf(words);
+            synchronized (stripe) {
+                for (int ordinal = 0; ordinal < variants.size(); ordinal++) {
+                    int slot = stripe.find(words, (short) (ordinal + 1));
+                    if (slot >= 0) {
+                        stripe.attachments[slot] = attachment;
+                        found = true;
+                    }
+                }
+            }
+        }
+
+        OtherVariants<A> other = otherUids.computeIfPresent(uid, (key, current) -> {
+            OtherVariants<A> updated = current.copy();
+            updated.attachment = attachment;
+            return updated;
+        });
+        return found || other != null;
+    }
+
+    /**
+     *
+     * @return Number of variants in the map
+     */
+    public int size() {
+        int size = 0;
+        for (OtherVariants<A> other : otherUids.values())
+            size += other.sizes.size();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        otherUids.clear();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * The variants of a UID are all in the same stripe, which is chosen by the UID alone.
+     */
+    private Stripe stripeOf(long[] words) {
+        return stripes[(int) (PackedUids.hash(words, 0) >>> 58)];
+    }
+
+    /**
+     *
+     * @return Slot of any variant of the UID, or -1 if it has none
+     */
+    private int findAny(Stripe stripe, long[] words) {
+        for (int ordinal = 0; ordinal < variants.size(); ordinal++) {
+            int slot = stripe.find(words, (short) (ordinal + 1));
+            if (slot >= 0)
+                return slot;
+        }
+        return -1;
+    }
+
+    /**
+     * Variants of a UID that could not be packed. Immutable once published in the map: updates replace it with a
+     * modified copy.
+     */
+    private static final class OtherVariants<A> {
+
+        private final Map<String, Long> sizes = new HashMap<>(4);
+        private A attachment;
+
+        private OtherVariants(A attachment) {
+            this.attachment = attachment;
+        }
+
+        private OtherVariants<A> copy() {
+            OtherVariants<A> copy = new OtherVariants<>(attachment);
+            copy.sizes.putAll(sizes);
+            return copy;
+        }
+    }
+
+    /**
+     * Open-addressing table. A slot holds the packed uid in {@link #keys}, the variant ordinal plus one in
+     * {@link #tags} (which also mark free and deleted slots), the size in {@link #sizes} and the attachment in
+     * {@link #attachments}.
+     */
+    private static final class Stripe {
+
+        private long[] keys;
+        private short[] tags;
+        private long[] sizes;
+        private Object[] attachments;
+        private int size, deleted;
+
+        private Stripe() {
+            clear();
+        }
+
+        private void clear() {
+            keys = new long[16 * UID_WORDS];
+            tags = new short[16];
+            sizes = new long[16];
+            attachments = new Object[16];
+            size = 0;
+            deleted = 0;
+        }
+
+        private int find(long[] words, short tag) {
+            int mask = tags.length - 1;
+            for (int slot = (int) PackedUids.hash(words, tag) & mask; tags[slot] != EMPTY;
+                 slot = (slot + 1) & mask) {
+                if (tags[slot] == tag && keyEquals(slot, words))
+                    return slot;
+            }
+            return -1;
+        }
+
+        private void insert(long[] words, short tag, long size, Object attachment) {
+            if ((this.size + deleted + 1) * 4L > tags.length * 3L)
+                resize(this.size * 4L >= tags.length ? tags.length * 2 : tags.length);
+
+            int mask = tags.length - 1;
+            int slot = (int) PackedUids.hash(words, tag) & mask;
+            while (tags[slot] != EMPTY && tags[slot] != DELETED)
+                slot = (slot + 1) & mask;
+
+            if (tags[slot] == DELETED)
+                deleted--;
+            tags[slot] = tag;
+            System.arraycopy(words, 0, keys, slot * UID_WORDS, UID_WORDS);
+            sizes[slot] = size;
+            attachments[slot] = attachment;
+            this.size++;
+        }
+
+        private void remove(int slot) {
+            tags[slot] = DELETED;
+            attachments[slot] = null;
+            size--;
+            deleted++;
+        }
+
+        /**
+         * Rehashes the entries into a table of the given capacity, which also drops the deleted slots.
+         */
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            short[] oldTags = tags;
+            long[] oldSizes = sizes;
+            Object[] oldAttachments = attachments;
+
+            keys = new long[capacity * UID_WORDS];
+            tags = new short[capacity];
+            sizes = new long[capacity];
+            attachments = new Object[capacity];
+            deleted = 0;
+
+            int mask = capacity - 1;
+            long[] words = new long[UID_WORDS];
+            for (int oldSlot = 0; oldSlot < oldTags.length; oldSlot++) {
+                if (oldTags[oldSlot] == EMPTY || oldTags[oldSlot] == DELETED)
+                    continue;
+
+                System.arraycopy(oldKeys, oldSlot * UID_WORDS, words, 0, UID_WORDS);
+                int slot = (int) PackedUids.hash(words, oldTags[oldSlot]) & mask;
+                while (tags[slot] != EMPTY)
+                    slot = (slot + 1) & mask;
+
+                tags[slot] = oldTags[oldSlot];
+                System.arraycopy(words, 0, keys, slot * UID_WORDS, UID_WORDS);
+                sizes[slot] = oldSizes[oldSlot];
+                attachments[slot] = oldAttachments[oldSlot];
+            }
+        }
+
+        private boolean keyEquals(int slot, long[] words) {
+            for (int i = 0; i < UID_WORDS; i++) {
+                if (keys[slot * UID_WORDS + i] != words[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package pt.ua.imodec.datastructs;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.StopTagInputHandler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Where the code stream of each frame of an encapsulated multi-frame object is, as offsets from the start of the
+ * stored object, so that a frame is read with one seek and one bounded read, without parsing the items before it.
+ * <p>
+ * Each frame is assumed to be a single fragment, as the encoders of this plugin write them.
+ */
+public class FrameIndex {
+
+    private static final int ITEM_HEADER_LENGTH = 8;
+
+    private final long[] offsets;
+    private final int[] lengths;
+
+    /**
+     *
+     * @param offsets Offset of the value of each frame's fragment, from the start of the stored object
+     * @param lengths Length of each frame's fragment, possibly padded to an even length
+     */
+    public FrameIndex(long[] offsets, int[] lengths) {
+        if (offsets.length != lengths.length)
+            throw new IllegalArgumentException(String.format("%d offsets were given for %d frames",
+                    offsets.length, lengths.length));
+
+        this.offsets = offsets.clone();
+        this.lengths = lengths.clone();
+    }
+
+    public int getNumberOfFrames() {
+        return offsets.length;
+    }
+
+    public long getOffset(int frame) {
+        return offsets[frame];
+    }
+
+    public int getLength(int frame) {
+        return lengths[frame];
+    }
+
+    /**
+     * Reads the code stream of the frame from the object the index was made for.
+     */
+    public byte[] readFrame(Blob blob, int frame) {
+        byte[] codeStream = new byte[lengths[frame]];
+        blob.read(offsets[frame], codeStream);
+        return codeStream;
+    }
+
+    /**
+     * Indexes a stored object by reading its attributes up to the pixel data and the headers of the items of
+     * the pixel data. The values of the items are skipped, not read.
+     *
+     * @param inputStream Stream over the whole stored object, from its start
+     * @return The index, or empty if the pixel data is not encapsulated
+     */
+    public static Optional<FrameIndex> read(InputStream inputStream) throws IOException {
+        DicomInputStream dicomInputStream = new DicomInputStream(inputStream);
+        dicomInputStream.setHandler(new StopTagInputHandler(Tag.PixelData));
+        DicomObject header = dicomInputStream.readDicomObject();
+
+        if (dicomInputStream.tag() != Tag.PixelData || dicomInputStream.valueLength() != -1)
+            return Optional.empty();
+
+        int numberOfFrames = Math.max(1, header.getInt(Tag.NumberOfFrames, 1));
+        long[] offsets = new long[numberOfFrames];
+        int[] lengths = new int[numberOfFrames];
+        long position = dicomInputStream.getStreamPosition();
+
+        // The first item is the Basic Offset Table, which is skipped as well: the fragments' lengths are needed
+        int frame = -1;
+        for (int length; (length = readItemHeader(dicomInputStream)) != -1; ) {
+            position += ITEM_HEADER_LENGTH;
+            if (frame >= 0) {
+                if (frame == numberOfFrames) {
+                    offsets = Arrays.copyOf(offsets, frame * 2);
+                    lengths = Arrays.copyOf(lengths, frame * 2);
+                    numberOfFrames = frame * 2;
+                }
+                offsets[frame] = position;
+                lengths[frame] = length;
+            }
+            skipFully(dicomInputStream, length);
+            position += length;
+            frame++;
+        }
+
+        int indexedFrames = Math.max(0, frame);
+        return Optional.of(new FrameIndex(Arrays.copyOf(offsets, indexedFrames),
+                Arrays.copyOf(lengths, indexedFrames)));
+    }
+
+    /**
+     * Reads the header of an item of encapsulated pixel data, which is always little endian.
+     *
+     * @return Length of the item's value, or -1 at the end of the items
+     */
+    public static int readItemHeader(DicomInputStream dicomInputStream) throws IOException {
+        byte[] itemHeader = new byte[ITEM_HEADER_LENGTH];
+        dicomInputStream.readFully(itemHeader);
+        ByteBuffer item = ByteBuffer.wrap(itemHeader).order(ByteOrder.LITTLE_ENDIAN);
+        int tag = (item.getShort(0) & 0xFFFF) << 16 | (item.getShort(2) & 0xFFFF);
+
+        return tag == Tag.SequenceDelimitationItem ? -1 : item.getInt(4);
+    }
+
+    /**
+     * Reads the values of the Basic Offset Table: the offset of each frame's first item, from the first item
+     * after the table.
+     *
+     * @param basicOffsetTable Value of the first item of encapsulated pixel data
+     * @return The offsets, none if the table is empty
+     */
+    public static long[] parseBasicOffsetTable(byte[] basicOffsetTable) {
+        ByteBuffer table = ByteBuffer.wrap(basicOffsetTable).order(ByteOrder.LITTLE_ENDIAN);
+        long[] offsets = new long[basicOffsetTable.length / 4];
+        for (int i = 0; i < offsets.length; i++)
+            offsets[i] = table.getInt(i * 4) & 0xFFFFFFFFL;
+        return offsets;
+    }
+
+    /**
+     * Builds the Basic Offset Table of the fragments, one per frame, padded to an even length as they are
+     * written.
+     *
+     * @return The value of the table, empty if the offsets do not fit in 32 bits
+     */
+    public static byte[] toBasicOffsetTable(int[] fragmentLengths) {
+        ByteBuffer table = ByteBuffer.allocate(fragmentLengths.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+
+        long offset = 0;
+        for (int fragmentLength : fragmentLengths) {
+            if (offset > 0xFFFFFFFFL)
+                return new byte[0];
+            table.putInt((int) offset);
+            offset += ITEM_HEADER_LENGTH + ((fragmentLength + 1L) & ~1L);
+        }
+        return table.array();
+    }
+
+    /**
+     * Skips exactly the given number of bytes of the stream.
+     */
+    public static void skipFully(InputStream inputStream, long length) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            long skipped = inputStream.skip(remaining);
+            if (skipped <= 0) {
+                if (inputStream.read() == -1)
+                    throw new EOFException(String.format("%d bytes were left to skip", remaining));
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+}
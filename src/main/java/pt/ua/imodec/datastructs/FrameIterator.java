@@ -8,32 +8,64 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.Iterator;
 
+/**
+ * Iterates over the frames of a dicom object. Frames of native pixel data are taken from their offsets in it
+ * (see {@link NativeFrames}); the others are read with the DICOM image reader.
+ * <p>
+ * Frames meant for the encoders keep their single channel and bit depth, with signed samples shifted into the
+ * unsigned range (see {@link NativeFrames#getUnsignedImage(int)}).
+ */
 public class FrameIterator implements Iterator<BufferedImage> {
 
     private int nextFrame_i = 0;
     private final DicomObject dicomObject;
+    private final NativeFrames nativeFrames;
+    private final boolean unsignedSamples;
 
     public FrameIterator(DicomObject dicomObject) {
+        this(dicomObject, false);
+    }
+
+    /**
+     *
+     * @param unsignedSamples Whether to shift signed samples into the unsigned range, for the encoders
+     */
+    public FrameIterator(DicomObject dicomObject, boolean unsignedSamples) {
         this.dicomObject = dicomObject;
+        this.nativeFrames = NativeFrames.isNative(dicomObject) ? new NativeFrames(dicomObject) : null;
+        this.unsignedSamples = unsignedSamples;
+    }
+
+    /**
+     *
+     * @return What was added to the samples of the frames, or 0 if they are as stored
+     */
+    public int getUnsignedShift() {
+        return unsignedSamples && nativeFrames != null ? nativeFrames.getUnsignedShift() : 0;
     }
 
     @Override
     public boolean hasNext() {
-        return nextFrame_i < dicomObject.getInt(Tag.NumberOfFrames);
+        return nextFrame_i < Math.max(1, dicomObject.getInt(Tag.NumberOfFrames));
     }
 
     @Override
     public BufferedImage next() {
-        BufferedImage frame;
+        int frame_i = nextFrame_i++;
+
+        if (nativeFrames != null) {
+            BufferedImage frame = (unsignedSamples ? nativeFrames.getUnsignedImage(frame_i)
+                    : nativeFrames.getImage(frame_i)).orElse(null);
+            if (frame != null)
+                return frame;
+        }
 
         // Retrieve the frame
         try {
-            frame = ImageUtils.loadDicomImage(dicomObject, nextFrame_i++);
+            return ImageUtils.loadDicomImage(dicomObject, frame_i);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-
-        return frame;
     }
 
 }
@@ -0,0 +1,352 @@
+package pt.ua.imodec.datastructs;
+
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.UID;
+import org.dcm4che2.data.VR;
+import pt.ua.imodec.datastructs.formats.Native;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Frames of an object with native (uncompressed) pixel data.
+ * <p>
+ * The pixel data is taken from the object as is, and each frame is a view of it, at an offset given by the
+ * frame size (Rows x Columns x SamplesPerPixel x BitsAllocated), so there is no copy of the whole pixel data
+ * nor a reader per frame.
+ */
+public class NativeFrames {
+
+    private final ByteBuffer pixelData;
+    private final int rows, columns, samplesPerPixel, bitsAllocated, bitsStored, numberOfFrames, frameLength;
+    private final String photometricInterpretation;
+    private final boolean signed, planar, modalityLut;
+
+    /**
+     *
+     * @param dicomObject Object with native pixel data, see {@link #isNative(DicomObject)}
+     */
+    public NativeFrames(DicomObject dicomObject) {
+        this(dicomObject, checkNative(dicomObject).getBytes(), dicomObject.get(Tag.PixelData).bigEndian(),
+                Math.max(1, dicomObject.getInt(Tag.NumberOfFrames, 1)));
+    }
+
+    /**
+     * Frames whose pixel data was read apart from the object's attributes, e.g. one at a time from a stream.
+     *
+     * @param attributes Attributes of the object, of which only the image pixel ones are used
+     * @param pixelData Whole frames of native pixel data, as many as it holds
+     */
+    public NativeFrames(DicomObject attributes, byte[] pixelData, boolean bigEndian) {
+        this(attributes, pixelData, bigEndian, pixelData.length / Math.max(1, getFrameLength(attributes)));
+    }
+
+    private NativeFrames(DicomObject dicomObject, byte[] bytes, boolean bigEndian, int numberOfFrames) {
+        this.rows = dicomObject.getInt(Tag.Rows);
+        this.columns = dicomObject.getInt(Tag.Columns);
+        this.samplesPerPixel = dicomObject.getInt(Tag.SamplesPerPixel, 1);
+        this.bitsAllocated = dicomObject.getInt(Tag.BitsAllocated, 8);
+        this.bitsStored = dicomObject.getInt(Tag.BitsStored, bitsAllocated);
+        this.numberOfFrames = numberOfFrames;
+        this.photometricInterpretation = dicomObject.getString(Tag.PhotometricInterpretation);
+        this.signed = dicomObject.getInt(Tag.PixelRepresentation, 0) == 1;
+        this.planar = dicomObject.getInt(Tag.PlanarConfiguration, 0) == 1;
+        this.modalityLut = hasModalityLut(dicomObject);
+
+        long frameLength = getFrameLength(dicomObject);
+        if (frameLength * numberOfFrames > bytes.length || numberOfFrames < 1)
+            throw new IllegalArgumentException(String.format(
+                    "Pixel data of '%s' has %d bytes, but %d frames of %d bytes were expected",
+                    dicomObject.getString(Tag.SOPInstanceUID), bytes.length, numberOfFrames, frameLength));
+        this.frameLength = (int) frameLength;
+
+        this.pixelData = ByteBuffer.wrap(bytes).order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static DicomElement checkNative(DicomObject dicomObject) {
+        if (!isNative(dicomObject))
+            throw new IllegalArgumentException(String.format("Pixel data of '%s' is not native",
+                    dicomObject.getString(Tag.SOPInstanceUID)));
+        return dicomObject.get(Tag.PixelData);
+    }
+
+    /**
+     *
+     * @return Size of each frame of the object, in bytes, given by its image pixel attributes
+     */
+    public static int getFrameLength(DicomObject attributes) {
+        long frameLength = ((long) attributes.getInt(Tag.Rows) * attributes.getInt(Tag.Columns)
+                * attributes.getInt(Tag.SamplesPerPixel, 1) * attributes.getInt(Tag.BitsAllocated, 8) + 7) / 8;
+        if (frameLength > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(String.format("Frames of '%s' are too large: %d bytes",
+                    attributes.getString(Tag.SOPInstanceUID), frameLength));
+        return (int) frameLength;
+    }
+
+    /**
+     *
+     * @return True if images can be built from the frames of the object (see {@link #getImage(int)}), given its
+     * image pixel attributes
+     */
+    public static boolean hasSupportedLayout(DicomObject attributes) {
+        int bitsAllocated = attributes.getInt(Tag.BitsAllocated, 8);
+        return isSupported(attributes.getInt(Tag.SamplesPerPixel, 1),
+                attributes.getString(Tag.PhotometricInterpretation), bitsAllocated,
+                attributes.getInt(Tag.BitsStored, bitsAllocated));
+    }
+
+    /**
+     * MR objects have no Modality LUT module, and enhanced (functional group) objects rescale their frames in
+     * their Pixel Value Transformation Sequences, so a top-level rescale would be ignored by the viewers.
+     *
+     * @return True if the stored values of the object are rescaled into modality values by its top-level
+     * Rescale Slope and Intercept
+     */
+    public static boolean hasModalityLut(DicomObject attributes) {
+        return attributes.contains(Tag.RescaleIntercept)
+                && !UID.MRImageStorage.equals(attributes.getString(Tag.SOPClassUID))
+                && !attributes.contains(Tag.SharedFunctionalGroupsSequence)
+                && !attributes.contains(Tag.PerFrameFunctionalGroupsSequence);
+    }
+
+    /**
+     *
+     * @return True if the object's pixel data is in a native transfer syntax and not encapsulated
+     */
+    public static boolean isNative(DicomObject dicomObject) {
+        String transferSyntaxUID = dicomObject.getString(Tag.TransferSyntaxUID);
+        DicomElement pixelDataElement = dicomObject.get(Tag.PixelData);
+
+        return pixelDataElement != null
+                && !pixelDataElement.vr().equals(VR.SQ)
+                && !pixelDataElement.hasItems()
+                && isNativeTransferSyntax(transferSyntaxUID);
+    }
+
+    /**
+     *
+     * @return True if the transfer syntax keeps the pixel data native
+     */
+    public static boolean isNativeTransferSyntax(String transferSyntaxUID) {
+        return Arrays.stream(Native.values())
+                .anyMatch(format -> format.getTransferSyntax() != null
+                        && format.getTransferSyntax().uid().equals(transferSyntaxUID));
+    }
+
+    public int getNumberOfFrames() {
+        return numberOfFrames;
+    }
+
+    /**
+     *
+     * @return Size of each frame, in bytes
+     */
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     *
+     * @param frame Index of the frame, starting at 0
+     * @return Read-only view of the frame's pixel data, in the byte order of the transfer syntax
+     */
+    public ByteBuffer getFrame(int frame) {
+        if (frame < 0 || frame >= numberOfFrames)
+            throw new IndexOutOfBoundsException(String.format("Frame %d of %d", frame, numberOfFrames));
+
+        ByteBuffer view = pixelData.asReadOnlyBuffer();
+        view.position(frame * frameLength).limit(frame * frameLength + frameLength);
+        return view.slice().order(pixelData.order());
+    }
+
+    /**
+     * Builds the image of a frame straight from its pixel data, without the DICOM image reader.
+     * Supports 8 and 16-bit samples, signed or unsigned, of grayscale (MONOCHROME1/2) and RGB objects,
+     * with the color samples either interleaved or planar. Grayscale samples keep their stored values,
+     * so MONOCHROME1 frames are not inverted, which is up to whoever displays them, and the color model of
+     * unsigned grayscale images has BitsStored bits, so their dynamic range is known to the encoders.
+     * <p>
+     * The 8-bit rasters are backed by the pixel data itself, so the image must not be modified.
+     * 16-bit samples are copied, in native byte order, with the bits beyond BitsStored cleared or, for signed
+     * samples, sign-extended.
+     *
+     * @return The image, or empty if the layout is not supported
+     */
+    public Optional<BufferedImage> getImage(int frame) {
+        return getImage(frame, false);
+    }
+
+    /**
+     * Same as {@link #getImage(int)}, except that signed grayscale samples are shifted by
+     * {@link #getUnsignedShift()} into the unsigned range of BitsStored bits, which is the only one the
+     * encoders take, instead of being truncated to 8-bit RGB. The shift is only undone by the rescale intercept,
+     * so the samples of objects without a Modality LUT (see {@link #hasModalityLut(DicomObject)}) are not shifted.
+     *
+     * @return The image, with unsigned samples, or empty if the layout is not supported
+     */
+    public Optional<BufferedImage> getUnsignedImage(int frame) {
+        return getImage(frame, true);
+    }
+
+    /**
+     *
+     * @return What {@link #getUnsignedImage(int)} adds to the samples: 2^(BitsStored-1) for signed grayscale
+     * frames of a supported layout with a Modality LUT, 0 otherwise
+     */
+    public int getUnsignedShift() {
+        return signed && modalityLut && isGrayscale() && isSupported() ? 1 << (bitsStored - 1) : 0;
+    }
+
+    private boolean isGrayscale() {
+        return isGrayscale(samplesPerPixel, photometricInterpretation);
+    }
+
+    private boolean isSupported() {
+        return isSupported(samplesPerPixel, photometricInterpretation, bitsAllocated, bitsStored);
+    }
+
+    private static boolean isGrayscale(int samplesPerPixel, String photometricInterpretation) {
+        return samplesPerPixel == 1 && photometricInterpretation != null
+                && photometricInterpretation.startsWith("MONOCHROME");
+    }
+
+    private static boolean isSupported(int samplesPerPixel, String photometricInterpretation,
+                                       int bitsAllocated, int bitsStored) {
+        boolean rgb = samplesPerPixel == 3 && "RGB".equals(photometricInterpretation);
+
+        return (isGrayscale(samplesPerPixel, photometricInterpretation) || rgb)
+                && (bitsAllocated == 8 || bitsAllocated == 16) && bitsStored >= 1 && bitsStored <= bitsAllocated;
+    }
+
+    private Optional<BufferedImage> getImage(int frame, boolean unsigned) {
+        if (!isSupported())
+            return Optional.empty();
+
+        if (frame < 0 || frame >= numberOfFrames)
+            throw new IndexOutOfBoundsException(String.format("Frame %d of %d", frame, numberOfFrames));
+        int offset = frame * frameLength;
+        boolean grayscale = isGrayscale();
+        int shift = unsigned ? getUnsignedShift() : 0;
+        boolean signedSamples = signed && shift == 0;
+
+        DataBuffer dataBuffer;
+        int bufferOffset = 0;
+        if (bitsAllocated == 8 && !signed && bitsStored == 8) {
+            // The frame's offset goes into the sample model: some image writers ignore the offset of data buffers
+            dataBuffer = new DataBufferByte(pixelData.array(), offset + frameLength);
+            bufferOffset = offset;
+        } else if (bitsAllocated == 8 && !signedSamples)
+            dataBuffer = new DataBufferByte(read8(offset, shift), frameLength);
+        else if (bitsAllocated == 8)
+            dataBuffer = new DataBufferShort(widen8(offset), frameLength);
+        else if (signedSamples)
+            dataBuffer = new DataBufferShort(read16(offset), frameLength / 2);
+        else
+            dataBuffer = new DataBufferUShort(shift(read16(offset), shift), frameLength / 2);
+
+        int pixels = rows * columns;
+        SampleModel sampleModel;
+        if (samplesPerPixel == 1 || !planar)
+            sampleModel = new PixelInterleavedSampleModel(dataBuffer.getDataType(), columns, rows,
+                    samplesPerPixel, columns * samplesPerPixel,
+                    samplesPerPixel == 1 ? new int[]{bufferOffset}
+                            : new int[]{bufferOffset, bufferOffset + 1, bufferOffset + 2});
+        else
+            sampleModel = new ComponentSampleModel(dataBuffer.getDataType(), columns, rows, 1, columns,
+                    new int[]{0, 0, 0}, new int[]{bufferOffset, bufferOffset + pixels, bufferOffset + 2 * pixels});
+
+        int sampleBits = grayscale && !signedSamples ? bitsStored
+                : DataBuffer.getDataTypeSize(dataBuffer.getDataType());
+        int[] bits = new int[samplesPerPixel];
+        Arrays.fill(bits, sampleBits);
+        ColorModel colorModel = new ComponentColorModel(
+                ColorSpace.getInstance(grayscale ? ColorSpace.CS_GRAY : ColorSpace.CS_sRGB), bits,
+                false, false, Transparency.OPAQUE, dataBuffer.getDataType());
+
+        WritableRaster raster = Raster.createWritableRaster(sampleModel, dataBuffer, null);
+        return Optional.of(new BufferedImage(colorModel, raster, false, null));
+    }
+
+    /**
+     *
+     * @return The 16-bit samples of the frame that starts at the given offset, reduced to BitsStored
+     */
+    private short[] read16(int offset) {
+        short[] samples = new short[frameLength / 2];
+        ByteBuffer frame = pixelData.duplicate().order(pixelData.order());
+        frame.position(offset);
+        frame.asShortBuffer().get(samples);
+
+        if (bitsStored < 16) {
+            int unusedBits = 32 - bitsStored;
+            for (int i = 0; i < samples.length; i++)
+                samples[i] = (short) (signed ? samples[i] << unusedBits >> unusedBits
+                        : (samples[i] << unusedBits) >>> unusedBits);
+        }
+        return samples;
+    }
+
+    /**
+     *
+     * @param shift Added to the samples, to take signed ones into the unsigned range
+     * @return The unsigned 8-bit samples of the frame that starts at the given offset, reduced to BitsStored
+     */
+    private byte[] read8(int offset, int shift) {
+        byte[] samples = Arrays.copyOfRange(pixelData.array(), offset, offset + frameLength);
+        int mask = (1 << bitsStored) - 1;
+
+        for (int i = 0; i < samples.length; i++)
+            samples[i] = (byte) ((samples[i] + shift) & mask);
+        return samples;
+    }
+
+    /**
+     * Adds the shift to the sign-extended samples, which takes them into the unsigned range of BitsStored bits.
+     *
+     * @return The same samples
+     */
+    private short[] shift(short[] samples, int shift) {
+        if (shift == 0)
+            return samples;
+
+        int mask = (1 << bitsStored) - 1;
+        for (int i = 0; i < samples.length; i++)
+            samples[i] = (short) ((samples[i] + shift) & mask);
+        return samples;
+    }
+
+    /**
+     *
+     * @return The signed 8-bit samples of the frame that starts at the given offset, reduced to BitsStored
+     * and widened to 16 bits, as there are no signed 8-bit rasters
+     */
+    private short[] widen8(int offset) {
+        short[] samples = new short[frameLength];
+        byte[] bytes = pixelData.array();
+        int unusedBits = 32 - bitsStored;
+
+        for (int i = 0; i < samples.length; i++) {
+            int sample = bytes[offset + i];
+            samples[i] = (short) (sample << unusedBits >> unusedBits);
+        }
+        return samples;
+    }
+}
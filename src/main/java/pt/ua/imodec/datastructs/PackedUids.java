@@ -0,0 +1,68 @@
+package pt.ua.imodec.datastructs;
+
+/**
+ * Packs DICOM UIDs, which are made of digits and dots, at 4 bits per character into {@link #WORDS} longs,
+ * for the compact maps of this package. A zero nibble ends the UID.
+ */
+final class PackedUids {
+
+    static final int WORDS = 4;
+    static final int MAX_LENGTH = WORDS * 16;
+
+    private PackedUids() {}
+
+    /**
+     *
+     * @return The packed UID found in the string between the given positions, or null if it is empty, too long
+     * or has other characters
+     */
+    static long[] pack(String string, int from, int to) {
+        int length = to - from;
+        if (length <= 0 || length > MAX_LENGTH)
+            return null;
+
+        long[] words = new long[WORDS];
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(from + i);
+            long nibble;
+            if (c >= '0' && c <= '9')
+                nibble = c - '0' + 1;
+            else if (c == '.')
+                nibble = 11;
+            else
+                return null;
+            words[i >> 4] |= nibble << ((i & 15) << 2);
+        }
+        return words;
+    }
+
+    /**
+     * Appends the UID packed in the array at the given offset.
+     */
+    static StringBuilder unpack(long[] words, int offset, StringBuilder destination) {
+        for (int i = 0; i < MAX_LENGTH; i++) {
+            int nibble = (int) (words[offset + (i >> 4)] >>> ((i & 15) << 2)) & 0xF;
+            if (nibble == 0)
+                break;
+            destination.append(nibble == 11 ? '.' : (char) ('0' + nibble - 1));
+        }
+        return destination;
+    }
+
+    /**
+     *
+     * @return Hash of the packed UID and the given tag, whose high and low bits are both mixed
+     */
+    static long hash(long[] words, long tag) {
+        long hash = tag;
+        for (long word : words)
+            hash = hash * 0x9E3779B97F4A7C15L + word;
+        // Finalizer of MurmurHash3
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
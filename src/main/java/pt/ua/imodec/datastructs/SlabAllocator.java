@@ -0,0 +1,284 @@
+package pt.ua.imodec.datastructs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Allocator of off-heap memory, made of direct buffers (slabs) carved into slots of power-of-two size classes.
+ * <p>
+ * Freed slots go to a free list of their size class and are reused by later allocations of that class.
+ * Allocations larger than the biggest slot are made of several slots. Slabs are only created while the
+ * byte budget allows it and are never given back, so the off-heap footprint is bounded by the budget.
+ * Safe for concurrent use.
+ */
+public class SlabAllocator {
+
+    public static final int MIN_SLOT_SHIFT = 12;  // 4KB
+    public static final int MAX_SLOT_SHIFT = 20;  // 1MB
+    public static final int SLAB_SIZE = 4 << 20;
+
+    private static final int SIZE_CLASSES = MAX_SLOT_SHIFT - MIN_SLOT_SHIFT + 1;
+
+    private final long budget;
+    private final List<ArrayDeque<ByteBuffer>> freeSlots = new ArrayList<>(SIZE_CLASSES);
+    private final long[] slotsInUse = new long[SIZE_CLASSES];
+    private final long[] slabsPerClass = new long[SIZE_CLASSES];
+    private long reservedBytes = 0;
+    private long requestedBytes = 0;
+
+    /**
+     *
+     * @param budget Maximum number of off-heap bytes to reserve
+     */
+    public SlabAllocator(long budget) {
+        if (budget < SLAB_SIZE)
+            throw new IllegalArgumentException(
+                    String.format("Budget must be at least one slab (%d bytes): %d", SLAB_SIZE, budget));
+
+        this.budget = budget;
+        for (int i = 0; i < SIZE_CLASSES; i++)
+            freeSlots.add(new ArrayDeque<>());
+    }
+
+    /**
+     *
+     * @param size Number of bytes to allocate
+     * @return The allocated memory, which is not zeroed
+     * @throws OutOfBudgetException If the budget does not allow for the allocation
+     */
+    public synchronized Allocation allocate(long size) throws OutOfBudgetException {
+        List<ByteBuffer> slots = new ArrayList<>();
+
+        try {
+            long remaining = size;
+            while (remaining > 0) {
+                int sizeClass = sizeClassOf(Math.min(remaining, 1L << MAX_SLOT_SHIFT));
+                slots.add(allocateSlot(sizeClass));
+                remaining -= Math.min(remaining, 1L << MAX_SLOT_SHIFT);
+            }
+        } catch (OutOfBudgetException e) {
+            for (ByteBuffer slot : slots)
+                freeSlot(slot);
+            throw e;
+        }
+
+        requestedBytes += size;
+        return new Allocation(slots, size);
+    }
+
+    /**
+     * Gives the memory back to the allocator. Any view of it must no longer be in use.
+     *
+     * @param allocation Memory to be freed. Must not be freed twice.
+     */
+    public synchronized void free(Allocation allocation) {
+        for (ByteBuffer slot : allocation.slots)
+            freeSlot(slot);
+        requestedBytes -= allocation.size;
+    }
+
+    public synchronized Statistics getStatistics() {
+        long usedSlotBytes = 0, freeSlotBytes = 0;
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            usedSlotBytes += slotsInUse[i] << (MIN_SLOT_SHIFT + i);
+            freeSlotBytes += (long) freeSlots.get(i).size() << (MIN_SLOT_SHIFT + i);
+        }
+        return new Statistics(budget, reservedBytes, requestedBytes, usedSlotBytes, freeSlotBytes,
+                slabsPerClass.clone());
+    }
+
+    private ByteBuffer allocateSlot(int sizeClass) throws OutOfBudgetException {
+        ArrayDeque<ByteBuffer> free = freeSlots.get(sizeClass);
+
+        if (free.isEmpty()) {
+            if (reservedBytes + SLAB_SIZE > budget)
+                throw new OutOfBudgetException(String.format(
+                        "Off-heap budget of %d bytes is exhausted (no free slots of %d bytes)",
+                        budget, 1 << (MIN_SLOT_SHIFT + sizeClass)));
+
+            ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            reservedBytes += SLAB_SIZE;
+            slabsPerClass[sizeClass]++;
+
+            int slotSize = 1 << (MIN_SLOT_SHIFT + sizeClass);
+            for (int offset = 0; offset < SLAB_SIZE; offset += slotSize) {
+                slab.limit(offset + slotSize).position(offset);
+                free.add(slab.slice());
+            }
+        }
+
+        slotsInUse[sizeClass]++;
+        ByteBuffer slot = free.poll();
+        slot.clear();
+        return slot;
+    }
+
+    private void freeSlot(ByteBuffer slot) {
+        int sizeClass = sizeClassOf(slot.capacity());
+        slotsInUse[sizeClass]--;
+        freeSlots.get(sizeClass).add(slot);
+    }
+
+    /**
+     *
+     * @return Index of the smallest size class that fits the size (at most the biggest slot size)
+     */
+    private static int sizeClassOf(long size) {
+        int shift = 64 - Long.numberOfLeadingZeros(Math.max(size - 1, 1));
+        return Math.max(shift, MIN_SLOT_SHIFT) - MIN_SLOT_SHIFT;
+    }
+
+    /**
+     * Memory given by the allocator, made of one or more slots.
+     */
+    public static final class Allocation {
+
+        private final List<ByteBuffer> slots;
+        private final long size;
+
+        private Allocation(List<ByteBuffer> slots, long size) {
+            this.slots = Collections.unmodifiableList(slots);
+            this.size = size;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        /**
+         * Copies the content of the buffers into this allocation, from its start.
+         *
+         * @param sources Data to copy. Their total remaining bytes must not exceed the allocation's size.
+         */
+        public void write(ByteBuffer... sources) {
+            int slot = 0;
+            ByteBuffer destination = slots.isEmpty() ? null : slots.get(0).duplicate();
+
+            for (ByteBuffer source : sources) {
+                source = source.duplicate();
+                while (source.hasRemaining()) {
+                    if (!destination.hasRemaining())
+                        destination = slots.get(++slot).duplicate();
+
+                    int n = Math.min(source.remaining(), destination.remaining());
+                    ByteBuffer chunk = source.duplicate();
+                    chunk.limit(chunk.position() + n);
+                    destination.put(chunk);
+                    source.position(source.position() + n);
+                }
+            }
+        }
+
+        /**
+         *
+         * @return Blob which shares the allocation's memory. Invalid once the allocation is freed.
+         */
+        public Blob toBlob() {
+            ByteBuffer[] buffers = new ByteBuffer[slots.size()];
+
+            long remaining = size;
+            for (int i = 0; i < buffers.length; i++) {
+                ByteBuffer slot = slots.get(i).duplicate();
+                slot.limit((int) Math.min(remaining, slot.capacity()));
+                buffers[i] = slot;
+                remaining -= slot.limit();
+            }
+
+            return new ChunkedBlob(buffers);
+        }
+    }
+
+    /**
+     * Snapshot of the allocator's memory usage.
+     */
+    public static final class Statistics {
+
+        private final long budget, reservedBytes, requestedBytes, usedSlotBytes, freeSlotBytes;
+        private final long[] slabsPerClass;
+
+        private Statistics(long budget, long reservedBytes, long requestedBytes, long usedSlotBytes,
+                           long freeSlotBytes, long[] slabsPerClass) {
+            this.budget = budget;
+            this.reservedBytes = reservedBytes;
+            this.requestedBytes = requestedBytes;
+            this.usedSlotBytes = usedSlotBytes;
+            this.freeSlotBytes = freeSlotBytes;
+            this.slabsPerClass = slabsPerClass;
+        }
+
+        public long getBudget() {
+            return budget;
+        }
+
+        /**
+         * @return Off-heap bytes taken by slabs
+         */
+        public long getReservedBytes() {
+            return reservedBytes;
+        }
+
+        /**
+         * @return Bytes requested by the live allocations
+         */
+        public long getRequestedBytes() {
+            return requestedBytes;
+        }
+
+        /**
+         * @return Bytes of the slots given to the live allocations
+         */
+        public long getUsedSlotBytes() {
+            return usedSlotBytes;
+        }
+
+        /**
+         * @return Bytes of the slots in the free lists
+         */
+        public long getFreeSlotBytes() {
+            return freeSlotBytes;
+        }
+
+        /**
+         * @return Fraction of the used slots which is wasted by rounding the allocations up to the slot sizes
+         */
+        public double getInternalFragmentation() {
+            return usedSlotBytes == 0 ? 0 : 1 - (double) requestedBytes / usedSlotBytes;
+        }
+
+        /**
+         * @return Fraction of the reserved memory which sits in free lists
+         */
+        public double getExternalFragmentation() {
+            return reservedBytes == 0 ? 0 : (double) freeSlotBytes / reservedBytes;
+        }
+
+        /**
+         * @param sizeClass Index of the size class, 0 being the smallest slot size
+         * @return Number of slabs carved into slots of that size class
+         */
+        public long getSlabs(int sizeClass) {
+            return slabsPerClass[sizeClass];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("reserved=%d/%d bytes, requested=%d bytes, used slots=%d bytes, " +
+                            "free slots=%d bytes, internal fragmentation=%.1f%%, external fragmentation=%.1f%%",
+                    reservedBytes, budget, requestedBytes, usedSlotBytes, freeSlotBytes,
+                    100 * getInternalFragmentation(), 100 * getExternalFragmentation());
+        }
+    }
+
+    /**
+     * Thrown when an allocation does not fit in the allocator's budget.
+     */
+    public static class OutOfBudgetException extends Exception {
+
+        public OutOfBudgetException(String message) {
+            super(message);
+        }
+    }
+}
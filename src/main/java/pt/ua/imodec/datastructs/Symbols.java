@@ -0,0 +1,59 @@
+package pt.ua.imodec.datastructs;
+
+import java.util.Arrays;
+
+/**
+ * Registry of the few strings that keys share, such as schemes and transfer syntax UIDs, which the compact maps
+ * of this package store as small ordinals instead. At most {@link #MAX_SYMBOLS} are registered.
+ * <p>
+ * Safe for concurrent use. The registry is copied on write, as there are only a few symbols.
+ */
+final class Symbols {
+
+    static final int MAX_SYMBOLS = 254;
+
+    private volatile String[] symbols = new String[0];
+
+    /**
+     *
+     * @param register Whether to register the symbol if it is new
+     * @return Ordinal of the symbol found in the string between the given positions, or -1 if it has none
+     */
+    int ordinalOf(String string, int from, int to, boolean register) {
+        int ordinal = find(symbols, string, from, to);
+        if (ordinal >= 0 || !register)
+            return ordinal;
+
+        synchronized (this) {
+            String[] current = symbols;
+            ordinal = find(current, string, from, to);
+            if (ordinal < 0 && current.length < MAX_SYMBOLS) {
+                String[] updated = Arrays.copyOf(current, current.length + 1);
+                updated[current.length] = string.substring(from, to);
+                symbols = updated;
+                ordinal = current.length;
+            }
+            return ordinal;
+        }
+    }
+
+    String get(int ordinal) {
+        return symbols[ordinal];
+    }
+
+    /**
+     *
+     * @return Number of registered symbols, whose ordinals are below it
+     */
+    int size() {
+        return symbols.length;
+    }
+
+    private static int find(String[] symbols, String string, int from, int to) {
+        for (int i = 0; i < symbols.length; i++) {
+            if (symbols[i].length() == to - from && string.regionMatches(from, symbols[i], 0, to - from))
+                return i;
+        }
+        return -1;
+    }
+}
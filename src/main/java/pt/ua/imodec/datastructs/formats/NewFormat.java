@@ -3,6 +3,10 @@ package pt.ua.imodec.datastructs.formats;
 import org.dcm4che2.data.TransferSyntax;
 import pt.ua.imodec.util.MiscUtils;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
 public enum NewFormat implements Format {
 
     JPEG_XL(NewFormatsTS.JPEG_XL_TS, "ISO_18181",
@@ -12,6 +16,16 @@ public enum NewFormat implements Format {
     AVIF(NewFormatsTS.AVIF_TS, "avif",
             "avif", "quality", "speed", Byte.class);
 
+    private static final Map<String, NewFormat> formatsById = new HashMap<>();
+    private static final Map<String, NewFormat> formatsByTransferSyntaxUID = new HashMap<>();
+
+    static {
+        for (NewFormat format : values()) {
+            formatsById.put(format.getId(), format);
+            formatsByTransferSyntaxUID.put(format.getTransferSyntax().uid(), format);
+        }
+    }
+
     private final TransferSyntax transferSyntax;
     private final String method, fileExtension, id, qualityParamName, speedParamName;
 
@@ -32,6 +46,24 @@ public enum NewFormat implements Format {
         this.speedParamValue = MiscUtils.getOptions(fileExtension).get(speedParamName).byteValue();
     }
 
+    /**
+     *
+     * @param id Id of the format, which is also its file extension (e.g. "jxl")
+     */
+    public static Optional<NewFormat> fromId(String id) {
+        return Optional.ofNullable(formatsById.get(id));
+    }
+
+    /**
+     *
+     * @param transferSyntaxUID UID of the transfer syntax of the format, possibly of a native one or null
+     */
+    public static Optional<NewFormat> fromTransferSyntaxUID(String transferSyntaxUID) {
+        if (transferSyntaxUID == null)
+            return Optional.empty();
+        return Optional.ofNullable(formatsByTransferSyntaxUID.get(transferSyntaxUID));
+    }
+
     @Override
     public TransferSyntax getTransferSyntax() {
         return transferSyntax;
@@ -1,7 +1,9 @@
 package pt.ua.imodec.storage;
 
+import org.dcm4che2.data.BasicDicomObject;
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
 import org.dcm4che2.io.DicomInputStream;
 import org.dcm4che2.io.DicomOutputStream;
 import org.slf4j.Logger;
@@ -10,15 +12,33 @@ import pt.ua.dicoogle.sdk.StorageInputStream;
 import pt.ua.dicoogle.sdk.StorageInterface;
 import pt.ua.dicoogle.sdk.settings.ConfigurationHolder;
 import pt.ua.imodec.ImodecPluginSet;
+import pt.ua.imodec.codecs.CodecCircuitBreaker;
+import pt.ua.imodec.datastructs.Blob;
+import pt.ua.imodec.datastructs.ByteBufferBlob;
+import pt.ua.imodec.datastructs.ChunkPool;
+import pt.ua.imodec.datastructs.ChunkedBuffer;
+import pt.ua.imodec.datastructs.FrameIndex;
+import pt.ua.imodec.storage.engines.HeapStorageEngine;
+import pt.ua.imodec.storage.engines.StorageEngine;
 import pt.ua.imodec.util.DicomUtils;
 import pt.ua.imodec.util.MiscUtils;
+import pt.ua.imodec.util.MultiFrameStreamEncoder;
 import pt.ua.imodec.datastructs.formats.Format;
 import pt.ua.imodec.datastructs.formats.Native;
 import pt.ua.imodec.datastructs.formats.NewFormat;
 
 import java.io.*;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 
 /**
@@ -26,23 +46,295 @@ import java.util.function.Supplier;
  * Storage Plugin
  *  - "Template" from rlebre/dicoogle-plugin-sample
  * <p>
+ * Safe for concurrent use: Dicoogle's C-STORE threads and the viewer's threads access it at the same time.
+ * Concurrent stores of the same URI are single-flight: only the first one encodes, the others wait for it.
+ * Stores wait while the queue of codec runs is full (see {@link pt.ua.imodec.codecs.CodecScheduler}).
+ * <p>
+ * An object that could not be encoded, e.g. because its codec timed out or keeps failing (see
+ * {@link CodecCircuitBreaker}), is stored as it is and encoded later, in the background, so that a failing codec
+ * neither fails nor holds back the stores. Such objects are marked in the engine itself, so a persistent engine
+ * still has them encoded after a restart.
+ * <p>
+ * Keeps a secondary index of the stored objects, so the stored variants of an instance and the instances of a
+ * series or study are found with a lookup, and an index of the frames of the encoded multi-frame objects, so a
+ * single frame is read without going through the frames before it.
  * */
 public class ImodecStoragePlugin implements StorageInterface {
 
     private static final Logger logger = LoggerFactory.getLogger(ImodecStoragePlugin.class);
-    private static final String scheme = "imodec-mem";
-
-    private final HashMap<String, ByteArrayOutputStream> mem = new HashMap<>();  // TODO: 16/09/22 Optimize: Refactor BAOS to OS, to allow for using other output streams - very good for memory optimization
-    private boolean enabled = true;
+    public static final String SCHEME = "imodec-mem";
+    /**
+     * Scheme of the keys which mark the objects waiting to be encoded, holding the id of the format to encode with
+     */
+    private static final String DEFERRED_SCHEME = "imodec-deferred";
+    private static final ChunkPool chunkPool = new ChunkPool(ChunkedBuffer.DEFAULT_CHUNK_SIZE, 256);
+    private static final long RETRY_INTERVAL_SECONDS = 60;
+    private static final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "imodec-encoding-retries");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile StorageEngine engine = new HeapStorageEngine();
+    private final StorageIndex index = new StorageIndex();
+    private final ConcurrentHashMap<String, CompletableFuture<URI>> inFlightStores = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, FrameIndex> frameIndexes = new ConcurrentHashMap<>();
+    /**
+     * Formats to encode the objects stored as they were with, by key
+     */
+    private final ConcurrentHashMap<String, NewFormat> deferredEncodings = new ConcurrentHashMap<>();
+    private final AtomicBoolean retriesScheduled = new AtomicBoolean();
+    private volatile boolean enabled = true;
     private ConfigurationHolder settings;
 
     @Override
     public String getScheme() {
-        return scheme;
+        return SCHEME;
+    }
+
+    /**
+     * Replaces the backing store of this plugin. The previous engine is closed.
+     * The secondary index is rebuilt with the objects the new engine already holds.
+     *
+     * @param engine New backing store
+     */
+    public void setEngine(StorageEngine engine) {
+        StorageEngine previousEngine = this.engine;
+        this.engine = engine;
+
+        try {
+            previousEngine.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close the previous storage engine", e);
+        }
+        logger.info("Storage engine set to '{}'", engine.getClass().getSimpleName());
+
+        index.clear();
+        frameIndexes.clear();
+        deferredEncodings.clear();
+        indexStoredObjects(engine);
+    }
+
+    /**
+     * Indexes the variants of the objects already in the engine right away. Their series and studies are
+     * only known after reading their headers, which is done in the background.
+     */
+    private void indexStoredObjects(StorageEngine engine) {
+        List<String> keys = new ArrayList<>();
+        for (String key : engine.keys()) {
+            if (key.startsWith(DEFERRED_SCHEME + "://"))
+                readDeferredEncoding(engine, key);
+            else
+                keys.add(key);
+        }
+        if (keys.isEmpty())
+            return;
+
+        for (String key : keys) {
+            String[] uids = parseKey(key);
+            try {
+                index.add(uids[0], uids[1], engine.size(key), null, null);
+            } catch (NoSuchElementException ignored) {
+                // Removed meanwhile
+            }
+        }
+
+        Thread indexer = new Thread(() -> {
+            Set<String> indexedInstances = new HashSet<>();
+            for (String key : keys) {
+                String sopInstanceUID = parseKey(key)[0];
+                if (this.engine != engine)
+                    return;
+                if (!indexedInstances.add(sopInstanceUID))
+                    continue;
+
+                try (DicomInputStream dicomInputStream = new DicomInputStream(engine.get(key).newInputStream())) {
+                    DicomObject header = DicomUtils.readNonPixelData(dicomInputStream);
+                    index.setHierarchy(sopInstanceUID, header.getString(Tag.StudyInstanceUID),
+                            header.getString(Tag.SeriesInstanceUID));
+                } catch (NoSuchElementException ignored) {
+                    // Removed meanwhile
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Could not read the header of '{}' to index it", key, e);
+                }
+            }
+            logger.info("Indexed the series and studies of {} stored instances", indexedInstances.size());
+        }, "imodec-storage-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * Restores the mark of an object waiting to be encoded, which was stored by a previous run.
+     */
+    private void readDeferredEncoding(StorageEngine engine, String markKey) {
+        String key = SCHEME + markKey.substring(DEFERRED_SCHEME.length());
+        try (InputStream inputStream = engine.get(markKey).newInputStream()) {
+            ByteArrayOutputStream formatId = new ByteArrayOutputStream();
+            int b;
+            while ((b = inputStream.read()) != -1)
+                formatId.write(b);
+
+            Optional<NewFormat> chosenFormat = NewFormat.fromId(formatId.toString("UTF-8"));
+            if (!chosenFormat.isPresent() || !engine.contains(key)) {
+                engine.remove(markKey);
+                return;
+            }
+            deferredEncodings.put(key, chosenFormat.get());
+            scheduleRetries();
+        } catch (NoSuchElementException ignored) {
+            // Removed meanwhile
+        } catch (IOException e) {
+            logger.warn("Could not read the mark of '{}' as waiting to be encoded", key, e);
+        }
+    }
+
+    /**
+     *
+     * @return Key of the mark of the object stored under the given key as waiting to be encoded
+     */
+    private static String toDeferredKey(String key) {
+        return DEFERRED_SCHEME + key.substring(SCHEME.length());
+    }
+
+    /**
+     *
+     * @return The SOP instance UID and the transfer syntax UID of the object stored under the key
+     */
+    private static String[] parseKey(String key) {
+        String path = key.substring(SCHEME.length() + "://".length());
+        int separator = path.indexOf('/');
+
+        return new String[]{path.substring(0, separator), path.substring(separator + 1)};
+    }
+
+    /**
+     *
+     * @return URI under which the variant of the instance is (or would be) stored
+     */
+    public static URI toUri(String sopInstanceUID, String transferSyntaxUID) {
+        return URI.create(SCHEME + "://" + sopInstanceUID + "/" + transferSyntaxUID);
+    }
+
+    /**
+     *
+     * @param sopInstanceUID UID of the instance
+     * @return Transfer syntax UIDs of the stored variants of the instance, mapped to their sizes in bytes.
+     * Empty if there are none.
+     */
+    public Map<String, Long> getStoredVariants(String sopInstanceUID) {
+        return index.getVariants(sopInstanceUID);
+    }
+
+    /**
+     *
+     * @param seriesInstanceUID UID of the series
+     * @return SOP instance UIDs of the stored instances of the series
+     */
+    public Set<String> getInstancesOfSeries(String seriesInstanceUID) {
+        return index.getInstancesOfSeries(seriesInstanceUID);
+    }
+
+    /**
+     *
+     * @param studyInstanceUID UID of the study
+     * @return Series instance UIDs of the series with stored instances in the study
+     */
+    public Set<String> getSeriesOfStudy(String studyInstanceUID) {
+        return index.getSeriesOfStudy(studyInstanceUID);
+    }
+
+    /**
+     * Reads the code stream of a frame of an object of encapsulated pixel data, with one bounded read. The
+     * object's frame index is kept from when it was stored, or else made and kept on the first read.
+     *
+     * @param uri URI of the stored object
+     * @param frame Index of the frame, from 0
+     * @return The frame's fragment, padded to an even length
+     * @throws NoSuchElementException If there is no object under this URI
+     * @throws IllegalArgumentException If the object's pixel data is not encapsulated
+     * @throws IndexOutOfBoundsException If the object has no such frame
+     */
+    public byte[] getEncodedFrame(URI uri, int frame) throws IOException {
+        String key = uri.toString();
+        Blob blob = engine.get(key);
+
+        FrameIndex frameIndex = frameIndexes.get(key);
+        if (frameIndex == null) {
+            frameIndex = FrameIndex.read(blob.newInputStream()).orElseThrow(() -> new IllegalArgumentException(
+                    String.format("Pixel data of '%s' is not encapsulated", uri)));
+            frameIndexes.putIfAbsent(key, frameIndex);
+        }
+
+        if (frame < 0 || frame >= frameIndex.getNumberOfFrames())
+            throw new IndexOutOfBoundsException(String.format("'%s' has no frame %d, only %d", uri, frame,
+                    frameIndex.getNumberOfFrames()));
+        return frameIndex.readFrame(blob, frame);
+    }
+
+    /**
+     *
+     * @return URIs of the objects stored as they were, waiting to be encoded
+     */
+    public Set<URI> getDeferredEncodings() {
+        Set<URI> uris = new HashSet<>();
+        for (String key : deferredEncodings.keySet())
+            uris.add(URI.create(key));
+        return uris;
+    }
+
+    /**
+     * Encodes the objects that were stored as they were, unless their codec is still refusing runs, and stores
+     * the encoded objects next to them. The objects as they were are kept, since their URIs are the ones that
+     * were returned by the stores (and so indexed). Called in the background every
+     * {@value #RETRY_INTERVAL_SECONDS} seconds once an encoding was deferred.
+     *
+     * @return How many objects were encoded
+     */
+    public int retryDeferredEncodings() {
+        int encoded = 0;
+        for (Map.Entry<String, NewFormat> deferredEncoding : deferredEncodings.entrySet()) {
+            String key = deferredEncoding.getKey();
+            NewFormat chosenFormat = deferredEncoding.getValue();
+            if (CodecCircuitBreaker.getShared().isOpen(chosenFormat.getId()))
+                continue;
+
+            try (DicomInputStream dicomInputStream = new DicomInputStream(engine.get(key).newInputStream())) {
+                DicomObject dicomObject = dicomInputStream.readDicomObject();
+                DicomUtils.encodeDicomObject(dicomObject, chosenFormat, new HashMap<>());
+
+                URI uri = toUri(dicomObject.getString(Tag.SOPInstanceUID), chosenFormat.getTransferSyntax().uid());
+                if (!engine.contains(uri.toString()))
+                    write(engine, uri, dicomObject);
+                engine.remove(toDeferredKey(key));
+                deferredEncodings.remove(key, chosenFormat);
+                encoded++;
+            } catch (NoSuchElementException e) {
+                // Removed meanwhile
+                deferredEncodings.remove(key, chosenFormat);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Could not encode '{}' with '{}' yet: {}", key, chosenFormat.getId(), e.getMessage());
+            }
+        }
+
+        if (encoded != 0)
+            logger.info("Encoded {} objects that were stored as they were", encoded);
+        return encoded;
+    }
+
+    /**
+     * Closes the backing store, which lets the persistent engines save their index for a fast restart.
+     */
+    public void close() {
+        try {
+            engine.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close the storage engine", e);
+        }
     }
 
     public boolean containsURI(final URI uri) {
-        return mem.containsKey(uri.toString());
+        return engine.contains(uri.toString());
     }
 
     @Override
@@ -58,25 +350,12 @@ public class ImodecStoragePlugin implements StorageInterface {
 
                 @Override
                 public InputStream getInputStream() throws IOException {
-                    ByteArrayOutputStream bos = mem.get(location.toString());
-
-                    if (bos == null)
-                        throw new NoSuchElementException(
-                                String.format("File uri='%s' was not found at the storage!", location)
-                        );
-
-                    try {
-                        return new ByteArrayInputStream(bos.toByteArray());
-                    } catch (OutOfMemoryError ignored) {
-                        logger.info("Large bitstream object encountered. " +
-                                "Changing approach for data retrieval...");
-                        return MiscUtils.getInputStreamFromLarge(bos);
-                    }
+                    return engine.get(location.toString()).newInputStream();
                 }
 
                 @Override
                 public long getSize() {
-                    return mem.get(location.toString()).size();
+                    return engine.size(location.toString());
                 }
             };
             c2.add(s);
@@ -87,59 +366,216 @@ public class ImodecStoragePlugin implements StorageInterface {
     @Override
     public URI store(DicomObject dicomObject, Object... objects) {
 
+        waitForChosenFormat();
+
         URI uri = getUri(dicomObject);
-        if (mem.containsKey(uri.toString())) {
-            logger.warn("This object was already stored!");
-            return uri;
+        return storeOnce(uri, () -> encodeAndStore(dicomObject, uri, objects));
+    }
+
+    /**
+     * Stores the object as it is, since it could not be encoded, and marks it to be encoded later (see
+     * {@link #retryDeferredEncodings()}).
+     *
+     * @return URI of the stored object
+     */
+    private URI deferEncoding(DicomObject dicomObject, NewFormat chosenFormat, IOException cause) {
+        URI uri = toUri(dicomObject.getString(Tag.SOPInstanceUID), dicomObject.getString(Tag.TransferSyntaxUID));
+        logger.warn("Could not encode '{}' with '{}', storing it as it is to encode it later: {}",
+                uri, chosenFormat.getId(), cause.getMessage());
+
+        StorageEngine engine = this.engine;
+        if (!engine.contains(uri.toString()))
+            write(engine, uri, dicomObject);
+        try {
+            engine.put(toDeferredKey(uri.toString()),
+                    new ByteBufferBlob(chosenFormat.getId().getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            logger.warn("Could not mark '{}' as waiting to be encoded, it is only encoded if not restarted before",
+                    uri, e);
         }
+        deferredEncodings.put(uri.toString(), chosenFormat);
 
+        scheduleRetries();
+        return uri;
+    }
+
+    private void scheduleRetries() {
+        if (retriesScheduled.compareAndSet(false, true))
+            retries.scheduleWithFixedDelay(this::retryDeferredEncodings, RETRY_INTERVAL_SECONDS,
+                    RETRY_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void waitForChosenFormat() {
         logger.info("Waiting while format is being set");
         Supplier<Boolean> choosingProcess = () -> ImodecPluginSet.chosenFormat == null;
         MiscUtils.sleepWhile(choosingProcess);
-        Format chosenFormat = ImodecPluginSet.chosenFormat;
-        boolean encodeWithAllTS = chosenFormat.getId().equals("all");
-        boolean zerothLevelRecursion = objects.length == 0;
+    }
 
+    /**
+     * Stores the object unless it is already stored, or being stored, in which case that store is waited for.
+     *
+     * @param storing Encodes and stores the object, returning where it was stored
+     */
+    private URI storeOnce(URI uri, Supplier<URI> storing) {
+        String key = uri.toString();
+        if (engine.contains(key)) {
+            logger.warn("This object was already stored!");
+            return uri;
+        }
+
+        CompletableFuture<URI> flight = new CompletableFuture<>();
+        CompletableFuture<URI> inFlightStore = inFlightStores.putIfAbsent(key, flight);
+        if (inFlightStore != null) {
+            logger.info("Object '{}' is already being stored. Waiting for it...", uri);
+            try {
+                return inFlightStore.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
 
         try {
-            if (chosenFormat instanceof NewFormat) {
+            URI storedUri = uri;
+            // Might have been stored in between the first check and the registering of this flight
+            if (engine.contains(key))
+                logger.warn("This object was already stored!");
+            else
+                storedUri = storing.get();
+            flight.complete(storedUri);
+            return storedUri;
+        } catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightStores.remove(key, flight);
+        }
+    }
 
-                DicomUtils.encodeDicomObject(dicomObject, (NewFormat) chosenFormat, new HashMap<>());
+    /**
+     *
+     * @return URI of the stored object: the given one, or the native object's if it could not be encoded
+     */
+    private URI encodeAndStore(DicomObject dicomObject, URI uri, Object... objects) {
 
-            } else if (DicomUtils.isMultiFrame(dicomObject)
-                    && encodeWithAllTS && zerothLevelRecursion) {
+        Format chosenFormat = ImodecPluginSet.chosenFormat;
+        boolean encodeWithAllTS = chosenFormat.getId().equals("all");
+        boolean zerothLevelRecursion = objects.length == 0;
 
-                logger.warn("This is not memory optimized. Memory errors are prone to occur.");
-                File dicomObjectFile = DicomUtils.writeDicomObjectToTmpFile(dicomObject);
-                Iterator<DicomInputStream> dicomInputStreamIterator = DicomUtils.encodeIteratorDicomInputStreamWithAllTs(dicomObjectFile);
-                while (dicomInputStreamIterator.hasNext()) {
-                    store(dicomInputStreamIterator.next(), Native.UNCHANGED);
-                }
 
-            } else if (encodeWithAllTS && zerothLevelRecursion) {  // Same as previous but single frame
-                // TODO: 03/09/22 Find a better way for stopping condition than by the number of argument objects
-                Iterator<DicomObject> dicomObjectsIterator = DicomUtils.encodeIteratorDicomObjectWithAllTs(dicomObject);
-                while (dicomObjectsIterator.hasNext()) {
-                    store(dicomObjectsIterator.next(), Native.UNCHANGED);
-                }
+        if (chosenFormat instanceof NewFormat) {
+            try {
+                DicomUtils.encodeDicomObject(dicomObject, (NewFormat) chosenFormat, new HashMap<>());
+            } catch (IOException e) {
+                // The object is only changed once its frames are encoded
+                return deferEncoding(dicomObject, (NewFormat) chosenFormat, e);
+            }
+
+        } else if (encodeWithAllTS && zerothLevelRecursion) {
+            // TODO: 03/09/22 Find a better way for stopping condition than by the number of argument objects
+            // Frames are decoded once for all the formats, and the encoded objects are built in memory
+            Iterator<DicomObject> dicomObjectsIterator = DicomUtils.encodeIteratorDicomObjectWithAllTs(dicomObject);
+            while (dicomObjectsIterator.hasNext()) {
+                store(dicomObjectsIterator.next(), Native.UNCHANGED);
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
         }
 
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        DicomOutputStream dos = new DicomOutputStream(bos);
+        write(engine, uri, dicomObject);
+        return uri;
+    }
+
+    /**
+     * Writes the object to the engine.
+     *
+     * @throws RuntimeException If the engine could not store it, e.g. for lack of space, so that the store fails
+     */
+    private void write(StorageEngine engine, URI uri, DicomObject dicomObject) {
+        ChunkedBuffer buffer = new ChunkedBuffer(chunkPool);
+        DicomOutputStream dos = new DicomOutputStream(buffer);
+        boolean stored = false;
         try {
             dos.writeDicomFile(dicomObject);
-        } catch (IOException ex) {
-            logger.warn("Failed to store object", ex);
+            put(engine, uri, dicomObject, buffer);
+            stored = true;
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Failed to store '%s'", uri), e);
+        } finally {
+            // The pooled chunks can only be reused if the engine does not keep them
+            if (!stored || engine.copiesOnPut())
+                buffer.release();
         }
-        mem.put(uri.toString(), bos);
         logger.info("Object successfully stored!");
+    }
 
+    /**
+     * Encodes the multi-frame object as it is read from the stream, so that neither its native pixel data nor
+     * its encoded frames are ever in memory as a whole (see {@link MultiFrameStreamEncoder}). The native frames
+     * that were read are spilled to a temporary file, so that if the codec fails, the object is still stored as
+     * it is, to be encoded later.
+     *
+     * @return URI of the stored object: the given one, or the native object's if it could not be encoded
+     */
+    private URI encodeAndStore(DicomObject header, DicomInputStream dicomInputStream, NewFormat chosenFormat,
+                                URI uri) {
+        StorageEngine engine = this.engine;
+        DicomObject nativeHeader = new BasicDicomObject();
+        header.copyTo(nativeHeader);
+        VR pixelDataVR = dicomInputStream.vr();
+        int pixelDataLength = dicomInputStream.valueLength();
+        boolean bigEndian = dicomInputStream.getTransferSyntax().bigEndian();
+
+        ChunkedBuffer buffer = new ChunkedBuffer(chunkPool);
+        boolean stored = false;
+        File spillFile = null;
+        try {
+            spillFile = File.createTempFile("imodec-frames-", ".raw");
+            FrameIndex frameIndex;
+            try (OutputStream spill = new BufferedOutputStream(new FileOutputStream(spillFile), 1 << 16)) {
+                try {
+                    frameIndex = MultiFrameStreamEncoder.encode(header, dicomInputStream, buffer, chosenFormat,
+                            new HashMap<>(), spill);
+                } catch (IOException e) {
+                    try {
+                        // The rest of the pixel data follows the frames that were read
+                        spill.flush();
+                        byte[] rest = new byte[(int) ((pixelDataLength & 0xFFFFFFFFL) - spillFile.length())];
+                        dicomInputStream.readFully(rest);
+                        spill.write(rest);
+                        spill.close();
+                    } catch (IOException readFailure) {
+                        readFailure.addSuppressed(e);
+                        throw readFailure;
+                    }
+
+                    nativeHeader.putBytes(Tag.PixelData, pixelDataVR, Files.readAllBytes(spillFile.toPath()),
+                            bigEndian);
+                    return deferEncoding(nativeHeader, chosenFormat, e);
+                }
+            }
+            put(engine, uri, header, buffer);
+            frameIndexes.put(uri.toString(), frameIndex);
+            stored = true;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            // The pooled chunks can only be reused if the engine does not keep them
+            if (!stored || engine.copiesOnPut())
+                buffer.release();
+            if (spillFile != null && !spillFile.delete())
+                logger.warn("Could not delete the temporary file '{}'", spillFile);
+        }
+        logger.info("Object successfully stored!");
         return uri;
     }
 
+    private void put(StorageEngine engine, URI uri, DicomObject header, ChunkedBuffer buffer) throws IOException {
+        Blob blob = buffer.toBlob();
+        engine.put(uri.toString(), blob);
+
+        String[] uids = parseKey(uri.toString());
+        index.add(uids[0], uids[1], blob.size(), header.getString(Tag.StudyInstanceUID),
+                header.getString(Tag.SeriesInstanceUID));
+    }
+
     private URI getUri(DicomObject dicomObject) {
 
         String tsUID;
@@ -150,19 +586,46 @@ public class ImodecStoragePlugin implements StorageInterface {
         else
             tsUID = chosenFormat.getTransferSyntax().uid();
 
-        return URI.create(getScheme() + "://"
-                + dicomObject.getString(Tag.SOPInstanceUID) + "/"
-                + tsUID);
+        return toUri(dicomObject.getString(Tag.SOPInstanceUID), tsUID);
     }
 
+    /**
+     * Multi-frame objects of native pixel data are encoded as they are read, if a single new format was chosen.
+     * The others are read as a whole and stored as {@link #store(DicomObject, Object...)} does.
+     */
     @Override
     public URI store(DicomInputStream dicomInputStream, Object... objects) throws IOException {
-        return store(dicomInputStream.readDicomObject(), objects);
+
+        waitForChosenFormat();
+
+        Format chosenFormat = ImodecPluginSet.chosenFormat;
+        if (!(chosenFormat instanceof NewFormat) || objects.length != 0)
+            return store(dicomInputStream.readDicomObject(), objects);
+
+        DicomObject header = DicomUtils.readNonPixelData(dicomInputStream);
+        // A codec refusing runs would only fail once frames were spilled, so the object is stored as it is
+        if (!MultiFrameStreamEncoder.canEncode(header, dicomInputStream)
+                || CodecCircuitBreaker.getShared().isOpen(chosenFormat.getId())) {
+            DicomUtils.readPixelData(dicomInputStream, header);
+            return store(header, objects);
+        }
+
+        URI uri = getUri(header);
+        return storeOnce(uri, () -> encodeAndStore(header, dicomInputStream, (NewFormat) chosenFormat, uri));
     }
 
     @Override
     public void remove(URI location) {
-        this.mem.remove(location.toString());
+        try {
+            this.engine.remove(location.toString());
+            frameIndexes.remove(location.toString());
+            if (deferredEncodings.remove(location.toString()) != null)
+                this.engine.remove(toDeferredKey(location.toString()));
+            String[] uids = parseKey(location.toString());
+            index.remove(uids[0], uids[1]);
+        } catch (IOException e) {
+            logger.warn("Failed to remove object", e);
+        }
     }
 
     @Override
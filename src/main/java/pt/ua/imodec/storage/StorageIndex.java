@@ -0,0 +1,123 @@
+package pt.ua.imodec.storage;
+
+import pt.ua.imodec.datastructs.CompactVariantMap;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory secondary index of the stored objects: which transfer syntaxes (and their sizes) are stored
+ * for each SOP instance, and which instances belong to each series and study.
+ * <p>
+ * The transfer syntaxes of the instances are kept packed in a {@link CompactVariantMap}, along with a reference to
+ * the series of each instance, so there are no objects per instance besides its UID in the set of its series.
+ * <p>
+ * Safe for concurrent use. Each update of an instance is atomic, so the index of an instance is consistent,
+ * though a concurrent reader may see an instance before its series does.
+ */
+class StorageIndex {
+
+    private final CompactVariantMap<Series> instances = new CompactVariantMap<>();
+    private final ConcurrentHashMap<String, Series> series = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> seriesOfStudy = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a stored variant of an instance.
+     *
+     * @param studyInstanceUID Study of the instance, or null if not known (yet)
+     * @param seriesInstanceUID Series of the instance, or null if not known (yet)
+     */
+    void add(String sopInstanceUID, String transferSyntaxUID, long size,
+             String studyInstanceUID, String seriesInstanceUID) {
+
+        instances.put(sopInstanceUID, transferSyntaxUID, size);
+
+        if (studyInstanceUID != null && seriesInstanceUID != null)
+            setHierarchy(sopInstanceUID, studyInstanceUID, seriesInstanceUID);
+    }
+
+    /**
+     * Sets the series and study of an indexed instance, if it is still indexed.
+     */
+    void setHierarchy(String sopInstanceUID, String studyInstanceUID, String seriesInstanceUID) {
+        Series attached = series.compute(seriesInstanceUID, (uid, current) -> {
+            Series updated = current == null ? new Series(studyInstanceUID, uid) : current;
+            if (instances.setAttachment(sopInstanceUID, updated))
+                updated.instances.add(sopInstanceUID);
+            return updated.instances.isEmpty() ? null : updated;
+        });
+        if (attached == null)
+            return;
+
+        seriesOfStudy.compute(studyInstanceUID, (study, series) -> {
+            Set<String> updated = series == null ? ConcurrentHashMap.newKeySet() : series;
+            updated.add(seriesInstanceUID);
+            return updated;
+        });
+    }
+
+    /**
+     * Removes a stored variant of an instance. The instance leaves its series once it has no variants left,
+     * as does the series from its study.
+     */
+    void remove(String sopInstanceUID, String transferSyntaxUID) {
+        Series removedFrom = instances.remove(sopInstanceUID, transferSyntaxUID);
+        if (removedFrom == null)
+            return;
+
+        Series emptySeries = series.computeIfPresent(removedFrom.seriesInstanceUID, (uid, current) -> {
+            current.instances.remove(sopInstanceUID);
+            return current.instances.isEmpty() ? null : current;
+        });
+        if (emptySeries == null)
+            seriesOfStudy.computeIfPresent(removedFrom.studyInstanceUID, (study, series) -> {
+                series.remove(removedFrom.seriesInstanceUID);
+                return series.isEmpty() ? null : series;
+            });
+    }
+
+    void clear() {
+        instances.clear();
+        series.clear();
+        seriesOfStudy.clear();
+    }
+
+    /**
+     *
+     * @return Transfer syntax UIDs of the stored variants of the instance, mapped to their sizes in bytes
+     */
+    Map<String, Long> getVariants(String sopInstanceUID) {
+        return instances.get(sopInstanceUID);
+    }
+
+    Set<String> getInstancesOfSeries(String seriesInstanceUID) {
+        Series indexed = series.get(seriesInstanceUID);
+        return copyOf(indexed == null ? null : indexed.instances);
+    }
+
+    Set<String> getSeriesOfStudy(String studyInstanceUID) {
+        return copyOf(seriesOfStudy.get(studyInstanceUID));
+    }
+
+    private static Set<String> copyOf(Set<String> set) {
+        return set == null ? Collections.emptySet() : Collections.unmodifiableSet(new HashSet<>(set));
+    }
+
+    /**
+     * A series and its indexed instances, shared by them.
+     */
+    private static final class Series {
+
+        private final String studyInstanceUID;
+        private final String seriesInstanceUID;
+        private final Set<String> instances = ConcurrentHashMap.newKeySet();
+
+        private Series(String studyInstanceUID, String seriesInstanceUID) {
+            this.studyInstanceUID = studyInstanceUID;
+            this.seriesInstanceUID = seriesInstanceUID;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package pt.ua.imodec.storage.engines;
+
+import pt.ua.imodec.datastructs.Blob;
+import pt.ua.imodec.datastructs.CompactKeyMap;
+
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Keeps every object in the java heap. Default engine, contents are lost on restart.
+ * Safe for concurrent use.
+ */
+public class HeapStorageEngine implements StorageEngine {
+
+    private final CompactKeyMap<Blob> mem = new CompactKeyMap<>();
+
+    @Override
+    public boolean contains(String key) {
+        return mem.containsKey(key);
+    }
+
+    @Override
+    public void put(String key, Blob data) {
+        mem.put(key, data);
+    }
+
+    @Override
+    public Blob get(String key) {
+        Blob blob = mem.get(key);
+
+        if (blob == null)
+            throw new NoSuchElementException(
+                    String.format("File uri='%s' was not found at the storage!", key)
+            );
+
+        return blob;
+    }
+
+    @Override
+    public long size(String key) {
+        return get(key).size();
+    }
+
+    @Override
+    public void remove(String key) {
+        mem.remove(key);
+    }
+
+    @Override
+    public Set<String> keys() {
+        return mem.keySet();
+    }
+
+    @Override
+    public void close() {
+        mem.clear();
+    }
+}
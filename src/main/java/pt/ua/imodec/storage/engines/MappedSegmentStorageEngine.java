@@ -0,0 +1,709 @@
+package pt.ua.imodec.storage.engines;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.ua.imodec.datastructs.Blob;
+import pt.ua.imodec.datastructs.ChunkedBlob;
+import pt.ua.imodec.datastructs.CompactKeyMap;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Appends the objects to large segment files and serves the reads through memory-mapped slices of those files.
+ * <p>
+ * The heap only holds the index (key to segment location), so the number of stored objects is bounded
+ * by the disk instead of -Xmx. Stored objects survive restarts: the index is rebuilt by scanning the segments.
+ * <p>
+ * The segments are a log of stores and removals, replayed on startup to rebuild the index.
+ * Record layout inside a segment:
+ * <pre>
+ * | magic (int) | key length (int) | data length (long, -1 for removals) | crc32 of key and data (int) | key (utf-8) | data |
+ * </pre>
+ * The record header is written after its key and data, so a record is only visible to the recovery scan
+ * once it was completely appended. Records torn by a crash are detected by their checksum.
+ * Space of removed objects is not reclaimed.
+ * <p>
+ * Past the record where its recovery scan stops, a segment may still hold complete records that were never
+ * acknowledged, e.g. written concurrently with a record torn by a crash. New records are never appended to the
+ * segments found on startup, but to a new segment, so those stale records are never reached by a later scan.
+ * <p>
+ * Stores and removals are durable once they return: they wait for an fsync of their segment. The fsyncs
+ * are group-committed: while one is running, the following writers queue up and are covered by the next
+ * single fsync, so the cost of an fsync is shared by all the concurrent writers. A writer is only
+ * acknowledged once every record before it in the segment is written, since the recovery scan stops at
+ * the first incomplete record.
+ * <p>
+ * Segments are mapped in windows of up to 1GB, so neither segments nor objects are limited to 2GB.
+ * <p>
+ * Safe for concurrent use. Space for a record is reserved under a short global lock and then written with
+ * positional writes, so different keys are appended in parallel. Operations over the same key are serialized
+ * by a striped lock, which keeps the order of the records of a key consistent with the index.
+ * <p>
+ * To restart quickly with millions of objects, the index is saved to a snapshot file on {@link #close()}
+ * (or on {@link #snapshot()}), along with how far each segment was written. On startup, the snapshot is
+ * memory-mapped and loaded, and only the records appended after it are scanned. A missing or invalid
+ * snapshot falls back to scanning every segment.
+ * <pre>
+ * | magic (int) | segment count (int) | (segment id (int) | written position (long))* |
+ * | entry count (long) | (key length (int) | key (utf-8) | segment id (int) | offset (long) | length (long))* |
+ * | crc32 of the preceding bytes (long) |
+ * </pre>
+ */
+public class MappedSegmentStorageEngine implements StorageEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedSegmentStorageEngine.class);
+
+    private static final int MAGIC = 0x494D4443;  // "IMDC"
+    private static final int SNAPSHOT_MAGIC = 0x494D4458;  // "IMDX"
+    private static final String SNAPSHOT_FILE_NAME = "index.snapshot";
+    private static final int HEADER_SIZE = 20;
+    private static final long TOMBSTONE = -1;
+    private static final Pattern SEGMENT_FILE_NAME = Pattern.compile("segment-(\\d+)\\.seg");
+    private static final int KEY_LOCK_STRIPES = 64;
+    private static final long MAP_WINDOW_SIZE = 1L << 30;
+    public static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+
+    private final Path directory;
+    private final long segmentSize;
+    private final boolean durable;
+    private final CompactKeyMap<Location> index = new CompactKeyMap<>();
+    private final Object[] keyLocks = new Object[KEY_LOCK_STRIPES];
+    // Writes hold the read lock, so a snapshot (write lock) never sees a reserved but unwritten record
+    private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+
+    // Guarded by appendLock
+    private final Object appendLock = new Object();
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment activeSegment;
+
+    /**
+     *
+     * @param directory Directory where the segment files are kept. Created if it does not exist.
+     * @param segmentSize Capacity in bytes of each segment file
+     * @param durable Whether stores and removals wait for their records to be synced to the disk
+     * @throws IOException If the existing segments could not be opened
+     */
+    public MappedSegmentStorageEngine(Path directory, long segmentSize, boolean durable) throws IOException {
+        if (segmentSize <= HEADER_SIZE)
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.durable = durable;
+        for (int i = 0; i < keyLocks.length; i++)
+            keyLocks[i] = new Object();
+
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    public MappedSegmentStorageEngine(Path directory, long segmentSize) throws IOException {
+        this(directory, segmentSize, true);
+    }
+
+    public MappedSegmentStorageEngine(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public void put(String key, Blob data) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+        Reservation reservation;
+        Location location, previous;
+        snapshotLock.readLock().lock();
+        try {
+            synchronized (lockOf(key)) {
+                reservation = append(keyBytes, data.size(), data.asByteBuffers());
+                long dataPosition = reservation.position + HEADER_SIZE + keyBytes.length;
+                location = new Location(reservation.segment, dataPosition, data.size());
+                previous = index.put(key, location);
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+
+        awaitSynced(key, reservation, location, previous);
+    }
+
+    @Override
+    public Blob get(String key) {
+        Location location = getOrThrow(key);
+
+        return new ChunkedBlob(location.segment.slice(location.offset, location.length));
+    }
+
+    @Override
+    public long size(String key) {
+        return getOrThrow(key).length;
+    }
+
+    @Override
+    public void remove(String key) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+        Reservation reservation;
+        Location previous;
+        snapshotLock.readLock().lock();
+        try {
+            synchronized (lockOf(key)) {
+                if (!index.containsKey(key))
+                    return;
+
+                reservation = append(keyBytes, TOMBSTONE);
+                previous = index.remove(key);
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+
+        awaitSynced(key, reservation, null, previous);
+    }
+
+    /**
+     * Waits for a record of the key to be synced, if the engine is durable. If it can not be, the index entry
+     * of the key goes back to what it was before the record, unless the key was written again meanwhile, so a
+     * store or removal that failed is not visible.
+     *
+     * @param location Location the record put in the index, or null for a removal
+     * @param previous Location of the key before the record, or null if it had none
+     */
+    private void awaitSynced(String key, Reservation reservation, Location location, Location previous)
+            throws IOException {
+        if (!durable)
+            return;
+
+        try {
+            reservation.segment.awaitSynced(reservation.end);
+        } catch (IOException e) {
+            snapshotLock.readLock().lock();
+            try {
+                synchronized (lockOf(key)) {
+                    if (index.get(key) == location) {
+                        if (previous == null)
+                            index.remove(key);
+                        else
+                            index.put(key, previous);
+                    }
+                }
+            } finally {
+                snapshotLock.readLock().unlock();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a record at a newly reserved position. If the writing fails, the segment is no longer appended to,
+     * and the records after the failed one are never acknowledged, since the recovery scan would not get past
+     * the incomplete record.
+     *
+     * @param dataLength Length of the data, or {@link #TOMBSTONE}
+     * @param data Buffers with the data, in order
+     */
+    private Reservation append(byte[] keyBytes, long dataLength, ByteBuffer... data) throws IOException {
+        Reservation reservation = reserve(HEADER_SIZE + keyBytes.length + Math.max(dataLength, 0));
+        FileChannel channel = reservation.segment.channel;
+        long recordPosition = reservation.position;
+
+        CRC32 crc = new CRC32();
+        crc.update(keyBytes, 0, keyBytes.length);
+        for (ByteBuffer buffer : data)
+            crc.update(buffer.duplicate());
+
+        try {
+            writeFully(channel, ByteBuffer.wrap(keyBytes), recordPosition + HEADER_SIZE);
+            long position = recordPosition + HEADER_SIZE + keyBytes.length;
+            for (ByteBuffer buffer : data) {
+                int length = buffer.remaining();
+                writeFully(channel, buffer.duplicate(), position);
+                position += length;
+            }
+            writeFully(channel, header(keyBytes.length, dataLength, (int) crc.getValue()), recordPosition);
+        } catch (IOException | RuntimeException e) {
+            synchronized (appendLock) {
+                if (activeSegment == reservation.segment)
+                    activeSegment = null;
+            }
+            reservation.segment.failed(recordPosition);
+            throw e;
+        }
+
+        reservation.segment.written(recordPosition, reservation.end);
+        return reservation;
+    }
+
+    @Override
+    public Set<String> keys() {
+        return index.keySet();
+    }
+
+    @Override
+    public boolean copiesOnPut() {
+        return true;
+    }
+
+    /**
+     * Saves the index to the snapshot file, replacing the previous one.
+     * Stores and removals wait while the index is being copied, but not while it is written to disk.
+     */
+    public void snapshot() throws IOException {
+        Map<Integer, Long> writtenPositions = new LinkedHashMap<>();
+        List<Map.Entry<String, Location>> entries = new ArrayList<>();
+
+        snapshotLock.writeLock().lock();
+        try {
+            synchronized (appendLock) {
+                for (Segment segment : segments)
+                    writtenPositions.put(segment.id, segment.reservedPosition);
+            }
+            index.forEach((key, location) -> {
+                // Left out if a record before it could not be written, as it will never be acknowledged
+                if (!location.segment.isLost(location.offset))
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(key, location));
+            });
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+
+        // The snapshot must not refer to records which could still be lost
+        synchronized (appendLock) {
+            for (Segment segment : segments)
+                segment.channel.force(false);
+        }
+
+        File tmpFile = directory.resolve(SNAPSHOT_FILE_NAME + ".tmp").toFile();
+        CRC32 crc = new CRC32();
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        try (DataOutputStream dos = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(fos, 1 << 16), crc))) {
+            dos.writeInt(SNAPSHOT_MAGIC);
+            dos.writeInt(writtenPositions.size());
+            for (Map.Entry<Integer, Long> writtenPosition : writtenPositions.entrySet()) {
+                dos.writeInt(writtenPosition.getKey());
+                dos.writeLong(writtenPosition.getValue());
+            }
+
+            dos.writeLong(entries.size());
+            for (Map.Entry<String, Location> entry : entries) {
+                byte[] keyBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                dos.writeInt(keyBytes.length);
+                dos.write(keyBytes);
+                dos.writeInt(entry.getValue().segment.id);
+                dos.writeLong(entry.getValue().offset);
+                dos.writeLong(entry.getValue().length);
+            }
+
+            dos.flush();
+            // The checksum itself is not part of the checked bytes
+            dos.writeLong(crc.getValue());
+            dos.flush();
+            fos.getFD().sync();
+        }
+
+        Files.move(tmpFile.toPath(), directory.resolve(SNAPSHOT_FILE_NAME), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("Saved the index of {} objects at '{}'", entries.size(), directory);
+    }
+
+    /**
+     * Saves a snapshot of the index and closes the segments.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!segments.isEmpty())
+            snapshot();
+
+        synchronized (appendLock) {
+            for (Segment segment : segments)
+                segment.channel.close();
+            segments.clear();
+            index.clear();
+            activeSegment = null;
+        }
+    }
+
+    private Object lockOf(String key) {
+        return keyLocks[(key.hashCode() & 0x7FFFFFFF) % keyLocks.length];
+    }
+
+    private Location getOrThrow(String key) {
+        Location location = index.get(key);
+
+        if (location == null)
+            throw new NoSuchElementException(
+                    String.format("File uri='%s' was not found at the storage!", key)
+            );
+
+        return location;
+    }
+
+    /**
+     * Reserves room for a record with the given size in the active segment, rolling over to a new
+     * segment if it has not enough room. Records bigger than the segment size get a dedicated segment.
+     */
+    private Reservation reserve(long recordSize) throws IOException {
+        synchronized (appendLock) {
+            if (activeSegment == null || activeSegment.capacity - activeSegment.reservedPosition < recordSize)
+                activeSegment = createSegment(Math.max(segmentSize, recordSize));
+
+            Reservation reservation = new Reservation(activeSegment, activeSegment.reservedPosition,
+                    activeSegment.reservedPosition + recordSize);
+            activeSegment.reservedPosition += recordSize;
+            return reservation;
+        }
+    }
+
+    private Segment createSegment(long capacity) throws IOException {
+        int id = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).id + 1;
+        File file = directory.resolve(String.format("segment-%06d.seg", id)).toFile();
+
+        logger.debug("Creating segment '{}' with {} bytes", file, capacity);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(capacity);
+        }
+
+        Segment segment = new Segment(id, file);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Rebuilds the index from the segments found in the directory.
+     */
+    private void recover() throws IOException {
+        File[] files = directory.toFile().listFiles((dir, name) -> SEGMENT_FILE_NAME.matcher(name).matches());
+        if (files == null)
+            throw new IOException("Could not list directory: " + directory);
+
+        TreeMap<Integer, File> orderedFiles = new TreeMap<>();
+        for (File file : files) {
+            Matcher matcher = SEGMENT_FILE_NAME.matcher(file.getName());
+            if (matcher.matches())
+                orderedFiles.put(Integer.parseInt(matcher.group(1)), file);
+        }
+
+        Map<Integer, Segment> segmentsById = new HashMap<>();
+        for (Map.Entry<Integer, File> entry : orderedFiles.entrySet()) {
+            Segment segment = new Segment(entry.getKey(), entry.getValue());
+            segments.add(segment);
+            segmentsById.put(segment.id, segment);
+        }
+
+        Map<Integer, Long> writtenPositions = loadSnapshot(segmentsById);
+        int snapshotObjects = index.size();
+        for (Segment segment : segments)
+            scan(segment, writtenPositions.getOrDefault(segment.id, 0L));
+
+        if (!segments.isEmpty())
+            logger.info("Recovered {} objects ({} from the snapshot) from {} segments at '{}'", index.size(),
+                    snapshotObjects, segments.size(), directory);
+    }
+
+    /**
+     * Fills the index with the snapshot's entries, if there is a valid snapshot of these segments.
+     *
+     * @return How far each segment was written when the snapshot was taken. Empty if the snapshot was not used.
+     */
+    private Map<Integer, Long> loadSnapshot(Map<Integer, Segment> segmentsById) throws IOException {
+        File file = directory.resolve(SNAPSHOT_FILE_NAME).toFile();
+        if (!file.isFile())
+            return Collections.emptyMap();
+
+        Map<Integer, Long> writtenPositions = new HashMap<>();
+        Map<String, Location> entries = new HashMap<>();
+
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            if (channel.size() < 8 || channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Invalid snapshot size");
+
+            ByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc = new CRC32();
+            ByteBuffer checkedBytes = snapshot.duplicate();
+            checkedBytes.limit(snapshot.limit() - 8);
+            crc.update(checkedBytes);
+            if (crc.getValue() != snapshot.getLong(snapshot.limit() - 8) || snapshot.getInt() != SNAPSHOT_MAGIC)
+                throw new IOException("Checksum mismatch");
+
+            int segmentCount = snapshot.getInt();
+            for (int i = 0; i < segmentCount; i++) {
+                int id = snapshot.getInt();
+                long writtenPosition = snapshot.getLong();
+                Segment segment = segmentsById.get(id);
+                if (segment == null || writtenPosition > segment.capacity)
+                    throw new IOException("Snapshot does not match segment " + id);
+                writtenPositions.put(id, writtenPosition);
+            }
+
+            long entryCount = snapshot.getLong();
+            for (long i = 0; i < entryCount; i++) {
+                byte[] keyBytes = new byte[snapshot.getInt()];
+                snapshot.get(keyBytes);
+                Segment segment = segmentsById.get(snapshot.getInt());
+                long offset = snapshot.getLong();
+                long length = snapshot.getLong();
+                if (segment == null || !writtenPositions.containsKey(segment.id))
+                    throw new IOException("Snapshot entry of an unknown segment");
+                entries.put(new String(keyBytes, StandardCharsets.UTF_8), new Location(segment, offset, length));
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring the invalid snapshot at '{}', scanning every segment instead: {}", file,
+                    e.toString());
+            return Collections.emptyMap();
+        }
+
+        entries.forEach(index::put);
+        return writtenPositions;
+    }
+
+    /**
+     * Applies to the index the records of the segment, from the given position onwards.
+     */
+    private void scan(Segment segment, long from) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = from;
+
+        while (position + HEADER_SIZE <= segment.capacity) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            header.flip();
+
+            if (header.getInt() != MAGIC)
+                break;
+
+            int keyLength = header.getInt();
+            long dataLength = header.getLong();
+            int checksum = header.getInt();
+            long dataPosition = position + HEADER_SIZE + keyLength;
+            long end = dataPosition + Math.max(dataLength, 0);
+
+            if (keyLength < 0 || dataLength < TOMBSTONE || end > segment.capacity
+                    || checksum != checksum(segment, position + HEADER_SIZE, end)) {
+                logger.warn("Corrupted record found at segment '{}', position {}. Ignoring the rest of the segment.",
+                        segment.file, position);
+                break;
+            }
+
+            ByteBuffer keyBuffer = ByteBuffer.allocate(keyLength);
+            readFully(segment.channel, keyBuffer, position + HEADER_SIZE);
+            String key = new String(keyBuffer.array(), StandardCharsets.UTF_8);
+
+            if (dataLength == TOMBSTONE)
+                index.remove(key);
+            else
+                index.put(key, new Location(segment, dataPosition, dataLength));
+
+            position = end;
+        }
+
+        segment.reservedPosition = position;
+        segment.writtenPosition = position;
+        segment.syncedPosition = position;
+    }
+
+    private static int checksum(Segment segment, long from, long to) {
+        CRC32 crc = new CRC32();
+        for (ByteBuffer slice : segment.slice(from, to - from))
+            crc.update(slice);
+        return (int) crc.getValue();
+    }
+
+    private static ByteBuffer header(int keyLength, long dataLength, int checksum) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(keyLength).putLong(dataLength).putInt(checksum);
+        header.flip();
+        return header;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0)
+                throw new IOException("Unexpected end of segment");
+            position += n;
+        }
+    }
+
+    private static final class Segment {
+
+        private final int id;
+        private final File file;
+        private final FileChannel channel;
+        private final long capacity;
+        private final MappedByteBuffer[] windows;
+        // Guarded by appendLock
+        private long reservedPosition = 0;
+        // Guarded by the segment. Records are written concurrently, so they may complete out of order.
+        private long writtenPosition = 0;
+        private long syncedPosition = 0;
+        // Start of the first record that could not be written, if any
+        private long failedPosition = Long.MAX_VALUE;
+        private boolean syncing = false;
+        private final TreeMap<Long, Long> writtenAhead = new TreeMap<>();
+
+        private Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.capacity = channel.size();
+
+            this.windows = new MappedByteBuffer[(int) ((capacity + MAP_WINDOW_SIZE - 1) / MAP_WINDOW_SIZE)];
+            for (int i = 0; i < windows.length; i++) {
+                long windowStart = i * MAP_WINDOW_SIZE;
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                        Math.min(MAP_WINDOW_SIZE, capacity - windowStart));
+            }
+        }
+
+        /**
+         * Marks a record as written, advancing the position up to which every record is written.
+         */
+        private synchronized void written(long start, long end) {
+            if (start != writtenPosition) {
+                writtenAhead.put(start, end);
+                return;
+            }
+
+            writtenPosition = end;
+            Long next;
+            while ((next = writtenAhead.remove(writtenPosition)) != null)
+                writtenPosition = next;
+            notifyAll();
+        }
+
+        /**
+         * Marks a record as not written. The position up to which every record is written never gets past it,
+         * so the records after it are not acknowledged.
+         */
+        private synchronized void failed(long start) {
+            failedPosition = Math.min(failedPosition, start);
+            notifyAll();
+        }
+
+        /**
+         *
+         * @return Whether a record before the position could not be written
+         */
+        private synchronized boolean isLost(long position) {
+            return failedPosition < position;
+        }
+
+        /**
+         * Waits until every record up to the given position is synced to the disk. One of the waiting threads
+         * does the fsync for all the records written until then, the others wait for it.
+         *
+         * @throws IOException If a record before the position could not be written
+         */
+        private void awaitSynced(long position) throws IOException {
+            while (true) {
+                long target;
+                synchronized (this) {
+                    while (syncedPosition < position && (syncing || writtenPosition < position)) {
+                        if (failedPosition < position)
+                            throw new IOException(String.format(
+                                    "A record before position %d of segment '%s' could not be written",
+                                    position, file));
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while waiting for the sync of " + file);
+                        }
+                    }
+                    if (syncedPosition >= position)
+                        return;
+
+                    syncing = true;
+                    target = writtenPosition;
+                }
+
+                boolean synced = false;
+                try {
+                    channel.force(false);
+                    synced = true;
+                } finally {
+                    synchronized (this) {
+                        syncing = false;
+                        if (synced)
+                            syncedPosition = Math.max(syncedPosition, target);
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        /**
+         *
+         * @return Views of the mapped windows which, in order, cover the requested range
+         */
+        private ByteBuffer[] slice(long offset, long length) {
+            List<ByteBuffer> slices = new ArrayList<>();
+
+            long end = offset + length;
+            while (offset < end) {
+                int window = (int) (offset / MAP_WINDOW_SIZE);
+                int windowOffset = (int) (offset % MAP_WINDOW_SIZE);
+                int sliceLength = (int) Math.min(end - offset, MAP_WINDOW_SIZE - windowOffset);
+
+                ByteBuffer slice = windows[window].duplicate();
+                slice.position(windowOffset);
+                slice.limit(windowOffset + sliceLength);
+                slices.add(slice.slice());
+
+                offset += sliceLength;
+            }
+
+            return slices.toArray(new ByteBuffer[0]);
+        }
+    }
+
+    private static final class Reservation {
+
+        private final Segment segment;
+        private final long position;
+        private final long end;
+
+        private Reservation(Segment segment, long position, long end) {
+            this.segment = segment;
+            this.position = position;
+            this.end = end;
+        }
+    }
+
+    private static final class Location {
+
+        private final Segment segment;
+        private final long offset;
+        private final long length;
+
+        private Location(Segment segment, long offset, long length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package pt.ua.imodec.storage.engines;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.ua.imodec.datastructs.Blob;
+import pt.ua.imodec.datastructs.CompactKeyMap;
+import pt.ua.imodec.datastructs.SlabAllocator;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the objects outside the java heap, in slabs of direct memory managed by a {@link SlabAllocator}.
+ * <p>
+ * The off-heap footprint is bounded by a byte budget; stores beyond it fail instead of growing the heap.
+ * Contents are lost on restart. The JVM must allow for the budget in direct memory (-XX:MaxDirectMemorySize).
+ * <p>
+ * Reads are views of the slabs, so the memory of a removed or replaced object is only reused once every view
+ * of it was garbage collected. The buffers of a view ({@link Blob#asByteBuffers()}) are only valid while the
+ * view itself is reachable; its streams keep it reachable.
+ * Safe for concurrent use.
+ */
+public class OffHeapSlabStorageEngine implements StorageEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(OffHeapSlabStorageEngine.class);
+
+    public static final long DEFAULT_BUDGET = 1L << 30;
+
+    private final SlabAllocator allocator;
+    private final CompactKeyMap<Entry> index = new CompactKeyMap<>();
+    private final ReferenceQueue<Blob> collectedViews = new ReferenceQueue<>();
+    // Keeps the references themselves reachable until their view is collected
+    private final Set<ViewReference> liveViews = ConcurrentHashMap.newKeySet();
+
+    /**
+     *
+     * @param budget Maximum number of off-heap bytes to reserve
+     */
+    public OffHeapSlabStorageEngine(long budget) {
+        this.allocator = new SlabAllocator(budget);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public void put(String key, Blob data) throws IOException {
+        reclaim();
+
+        SlabAllocator.Allocation allocation;
+        try {
+            allocation = allocator.allocate(data.size());
+        } catch (SlabAllocator.OutOfBudgetException e) {
+            throw new IOException(String.format("Could not store uri='%s' off-heap", key), e);
+        }
+        allocation.write(data.asByteBuffers());
+
+        Entry previous = index.put(key, new Entry(allocation));
+        if (previous != null)
+            retire(previous);
+
+        if (logger.isDebugEnabled())
+            logger.debug("Stored '{}' off-heap: {}", key, allocator.getStatistics());
+    }
+
+    @Override
+    public Blob get(String key) {
+        reclaim();
+
+        Entry entry = index.get(key);
+        // The entry may be removed after it was looked up, in which case it no longer hands out views
+        Blob view = entry == null ? null : entry.newView();
+
+        if (view == null)
+            throw new NoSuchElementException(
+                    String.format("File uri='%s' was not found at the storage!", key)
+            );
+
+        liveViews.add(new ViewReference(view, entry, collectedViews));
+        return view;
+    }
+
+    @Override
+    public long size(String key) {
+        Entry entry = index.get(key);
+
+        if (entry == null)
+            throw new NoSuchElementException(
+                    String.format("File uri='%s' was not found at the storage!", key)
+            );
+
+        return entry.allocation.size();
+    }
+
+    @Override
+    public void remove(String key) {
+        Entry entry = index.remove(key);
+
+        if (entry != null)
+            retire(entry);
+        reclaim();
+    }
+
+    @Override
+    public Set<String> keys() {
+        return index.keySet();
+    }
+
+    @Override
+    public boolean copiesOnPut() {
+        return true;
+    }
+
+    /**
+     *
+     * @return Memory usage and fragmentation of the slabs
+     */
+    public SlabAllocator.Statistics getStatistics() {
+        reclaim();
+        return allocator.getStatistics();
+    }
+
+    @Override
+    public void close() {
+        logger.info("Closing off-heap storage: {}", allocator.getStatistics());
+        index.clear();
+        liveViews.clear();
+    }
+
+    /**
+     * Frees the memory of an object that was removed or replaced, right away if none of its views is in use,
+     * otherwise once the last of them is collected.
+     */
+    private void retire(Entry entry) {
+        if (entry.retire())
+            allocator.free(entry.allocation);
+    }
+
+    /**
+     * Gives back to the allocator the memory of the removed objects whose last view was collected.
+     */
+    private void reclaim() {
+        Reference<? extends Blob> collected;
+
+        while ((collected = collectedViews.poll()) != null) {
+            ViewReference reference = (ViewReference) collected;
+            liveViews.remove(reference);
+            if (reference.entry.release())
+                allocator.free(reference.entry.allocation);
+        }
+    }
+
+    /**
+     * A stored object and the number of its views not yet collected. Guarded by itself.
+     */
+    private static final class Entry {
+
+        private final SlabAllocator.Allocation allocation;
+        private int views = 0;
+        private boolean retired = false;
+
+        private Entry(SlabAllocator.Allocation allocation) {
+            this.allocation = allocation;
+        }
+
+        /**
+         *
+         * @return A new view of the object, or null if it was retired
+         */
+        private synchronized Blob newView() {
+            if (retired)
+                return null;
+            views++;
+            return new SlabView(allocation.toBlob());
+        }
+
+        /**
+         *
+         * @return Whether the memory can be freed now
+         */
+        private synchronized boolean retire() {
+            retired = true;
+            return views == 0;
+        }
+
+        /**
+         * Called once a view was collected.
+         *
+         * @return Whether the memory can be freed now
+         */
+        private synchronized boolean release() {
+            return --views == 0 && retired;
+        }
+    }
+
+    private static final class ViewReference extends PhantomReference<Blob> {
+
+        private final Entry entry;
+
+        private ViewReference(Blob view, Entry entry, ReferenceQueue<Blob> queue) {
+            super(view, queue);
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * A view of the slots of an object, whose collection tells that the slots are no longer read through it.
+     */
+    private static final class SlabView implements Blob {
+
+        private final Blob content;
+
+        private SlabView(Blob content) {
+            this.content = content;
+        }
+
+        @Override
+        public long size() {
+            return content.size();
+        }
+
+        @Override
+        public InputStream newInputStream() {
+            return new ViewInputStream(this, content.newInputStream());
+        }
+
+        @Override
+        public ByteBuffer[] asByteBuffers() {
+            return content.asByteBuffers();
+        }
+
+        @Override
+        public void read(long position, byte[] destination) {
+            content.read(position, destination);
+            keepReachable(this);
+        }
+    }
+
+    /**
+     * Stream of a view, which keeps the view reachable for as long as the stream is.
+     */
+    private static final class ViewInputStream extends FilterInputStream {
+
+        private final SlabView view;
+
+        private ViewInputStream(SlabView view, InputStream in) {
+            super(in);
+            this.view = view;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            keepReachable(view);
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            keepReachable(view);
+            return read;
+        }
+    }
+
+    /**
+     * Keeps the view reachable up to this call, so that it is not collected, and its slots freed, while they are
+     * still being read (Reference.reachabilityFence on Java 9 and later).
+     */
+    private static void keepReachable(SlabView view) {
+        synchronized (view) {
+            // Nothing to do, holding the lock is enough
+        }
+    }
+}
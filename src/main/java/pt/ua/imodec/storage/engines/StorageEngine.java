@@ -0,0 +1,73 @@
+package pt.ua.imodec.storage.engines;
+
+import pt.ua.imodec.datastructs.Blob;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Backing store of the imodec storage plugin.
+ * <p>
+ * Objects are addressed by the string form of their storage URI (e.g. "imodec-mem://SOPUID/TSUID"),
+ * so the plugin can change the engine without changing the URIs it hands out to Dicoogle.
+ */
+public interface StorageEngine extends Closeable {
+
+    /**
+     *
+     * @param key Storage key of the object
+     * @return True if an object is stored under this key
+     */
+    boolean contains(String key);
+
+    /**
+     * Stores the data under the given key. Replaces any previous object with the same key.
+     *
+     * @param key Storage key of the object
+     * @param data Encoded dicom object
+     * @throws IOException If the engine could not persist the data
+     */
+    void put(String key, Blob data) throws IOException;
+
+    /**
+     *
+     * @param key Storage key of the object
+     * @return The object's data. It shares the engine's memory, so reading it makes no copies.
+     * @throws java.util.NoSuchElementException If there is no object under this key
+     * @throws IOException If an IO error occurs
+     */
+    Blob get(String key) throws IOException;
+
+    /**
+     *
+     * @param key Storage key of the object
+     * @return Size in bytes of the stored object
+     * @throws java.util.NoSuchElementException If there is no object under this key
+     */
+    long size(String key);
+
+    /**
+     *
+     * @return True if the engine copies the data on {@link #put(String, Blob)}, in which case the caller is free
+     * to reuse the memory of the blob afterwards
+     */
+    default boolean copiesOnPut() {
+        return false;
+    }
+
+    /**
+     * Removes the object from the store. No operation if the key does not exist.
+     *
+     * @param key Storage key of the object
+     * @throws IOException If the removal could not be persisted
+     */
+    void remove(String key) throws IOException;
+
+    /**
+     *
+     * @return Keys of the stored objects. May or may not reflect the changes made while iterating it.
+     */
+    Set<String> keys();
+
+}
@@ -0,0 +1,248 @@
+package pt.ua.imodec.storage.engines;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.ua.imodec.datastructs.Blob;
+import pt.ua.imodec.datastructs.ChunkedBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Keeps the recently used objects in a hot engine, bounded by a byte budget, and the rest in a cold engine.
+ * <p>
+ * The hot tier is ordered by access (LRU). When a store makes it go over budget, the least recently used
+ * objects are moved to the cold tier. Reading an object of the cold tier promotes it back to the hot one;
+ * its cold copy is kept, so evicting it again costs no write as long as it was not replaced.
+ * Objects bigger than the whole budget go straight to the cold tier.
+ * On {@link #close()}, the hot objects are written to the cold tier, so a persistent cold tier keeps them all.
+ * <p>
+ * Safe for concurrent use. Operations over the same key are serialized by a striped lock.
+ */
+public class TieredStorageEngine implements StorageEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(TieredStorageEngine.class);
+
+    private static final int KEY_LOCK_STRIPES = 64;
+    public static final long DEFAULT_HOT_BUDGET = 1L << 30;
+
+    private final StorageEngine hot;
+    private final StorageEngine cold;
+    private final long hotBudget;
+    private final Object[] keyLocks = new Object[KEY_LOCK_STRIPES];
+
+    // Guarded by itself. Keys of the hot tier and their sizes, least recently used first.
+    private final LinkedHashMap<String, Long> lru = new LinkedHashMap<>(16, 0.75f, true);
+    private long hotBytes = 0;
+
+    /**
+     *
+     * @param hot Engine of the hot tier, usually in memory
+     * @param cold Engine of the cold tier, usually on disk
+     * @param hotBudget Maximum number of bytes in the hot tier
+     */
+    public TieredStorageEngine(StorageEngine hot, StorageEngine cold, long hotBudget) {
+        if (hotBudget <= 0)
+            throw new IllegalArgumentException("Invalid hot tier budget: " + hotBudget);
+
+        this.hot = hot;
+        this.cold = cold;
+        this.hotBudget = hotBudget;
+        for (int i = 0; i < keyLocks.length; i++)
+            keyLocks[i] = new Object();
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return isHot(key) || cold.contains(key);
+    }
+
+    @Override
+    public void put(String key, Blob data) throws IOException {
+        synchronized (lockOf(key)) {
+            if (data.size() > hotBudget) {
+                untrack(key);
+                hot.remove(key);
+                cold.put(key, data);
+                return;
+            }
+
+            hot.put(key, data);
+            // An older cold copy would be stale
+            cold.remove(key);
+            track(key, data.size());
+        }
+
+        evict();
+    }
+
+    @Override
+    public Blob get(String key) throws IOException {
+        if (touch(key)) {
+            try {
+                return hot.get(key);
+            } catch (NoSuchElementException ignored) {
+                // Evicted or removed meanwhile
+            }
+        }
+
+        Blob blob = cold.get(key);
+        if (blob.size() > hotBudget)
+            return blob;
+
+        synchronized (lockOf(key)) {
+            if (!isHot(key) && cold.contains(key)) {
+                blob = cold.get(key);
+                hot.put(key, hot.copiesOnPut() ? blob : copy(blob));
+                track(key, blob.size());
+                logger.debug("Promoted '{}' to the hot tier", key);
+            }
+        }
+
+        evict();
+        return blob;
+    }
+
+    @Override
+    public long size(String key) {
+        Long size;
+        synchronized (lru) {
+            size = lru.get(key);
+        }
+
+        return size != null ? size : cold.size(key);
+    }
+
+    @Override
+    public void remove(String key) throws IOException {
+        synchronized (lockOf(key)) {
+            untrack(key);
+            hot.remove(key);
+            cold.remove(key);
+        }
+    }
+
+    @Override
+    public Set<String> keys() {
+        Set<String> keys = new HashSet<>(cold.keys());
+        synchronized (lru) {
+            keys.addAll(lru.keySet());
+        }
+        return keys;
+    }
+
+    @Override
+    public boolean copiesOnPut() {
+        return hot.copiesOnPut();
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<String> hotKeys;
+        synchronized (lru) {
+            hotKeys = new ArrayList<>(lru.keySet());
+            lru.clear();
+            hotBytes = 0;
+        }
+
+        try {
+            for (String key : hotKeys) {
+                synchronized (lockOf(key)) {
+                    if (hot.contains(key) && !cold.contains(key))
+                        cold.put(key, hot.get(key));
+                }
+            }
+        } finally {
+            closeTiers();
+        }
+    }
+
+    private void closeTiers() throws IOException {
+        try {
+            hot.close();
+        } finally {
+            cold.close();
+        }
+    }
+
+    /**
+     * Moves the least recently used objects to the cold tier until the hot tier is within budget.
+     * A victim stays in the hot tier until its cold copy exists, so that readers always find it in either tier.
+     */
+    private void evict() throws IOException {
+        while (true) {
+            String victim;
+            synchronized (lru) {
+                if (hotBytes <= hotBudget)
+                    return;
+
+                victim = lru.keySet().iterator().next();
+            }
+
+            synchronized (lockOf(victim)) {
+                // Skip the victim if it was removed or evicted meanwhile
+                if (!isHot(victim))
+                    continue;
+
+                if (hot.contains(victim) && !cold.contains(victim))
+                    cold.put(victim, hot.get(victim));
+                untrack(victim);
+                hot.remove(victim);
+                logger.debug("Evicted '{}' to the cold tier", victim);
+            }
+        }
+    }
+
+    private void track(String key, long size) {
+        synchronized (lru) {
+            Long previous = lru.put(key, size);
+            hotBytes += size - (previous != null ? previous : 0);
+        }
+    }
+
+    private void untrack(String key) {
+        synchronized (lru) {
+            Long previous = lru.remove(key);
+            if (previous != null)
+                hotBytes -= previous;
+        }
+    }
+
+    /**
+     *
+     * @return true if the key is in the hot tier, which also marks it as the most recently used
+     */
+    private boolean touch(String key) {
+        synchronized (lru) {
+            return lru.get(key) != null;
+        }
+    }
+
+    private boolean isHot(String key) {
+        synchronized (lru) {
+            return lru.containsKey(key);
+        }
+    }
+
+    private Object lockOf(String key) {
+        return keyLocks[(key.hashCode() & 0x7FFFFFFF) % keyLocks.length];
+    }
+
+    /**
+     *
+     * @return Copy of the blob in the heap, so the hot tier does not keep views of the cold one
+     */
+    private static Blob copy(Blob blob) throws IOException {
+        ChunkedBuffer buffer = new ChunkedBuffer();
+        byte[] chunk = new byte[8192];
+        int n;
+
+        try (InputStream inputStream = blob.newInputStream()) {
+            while ((n = inputStream.read(chunk)) != -1)
+                buffer.write(chunk, 0, n);
+        }
+
+        return buffer.toBlob();
+    }
+}
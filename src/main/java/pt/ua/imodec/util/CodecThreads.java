@@ -0,0 +1,65 @@
+package pt.ua.imodec.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads that orchestrate the codec processes: the workers that encode frames, each waiting for a codec
+ * process at a time, and the threads that feed and drain the processes' streams.
+ * <p>
+ * These are platform threads, a megabyte of stack each while blocked on a process. The plugin's jar is
+ * multi-release: on Java 21 and later, the variant of this class in {@code src/main/java21} is loaded instead,
+ * which runs the same work on virtual threads.
+ */
+public class CodecThreads {
+
+    private CodecThreads() {}
+
+    /**
+     *
+     * @return Whether the threads made here are virtual
+     */
+    public static boolean areVirtual() {
+        return false;
+    }
+
+    /**
+     *
+     * @param name Prefix of the threads' names
+     * @param workers Most tasks run at a time
+     * @return A pool of daemon threads, which queues the tasks beyond the workers
+     */
+    public static ExecutorService newWorkerPool(String name, int workers) {
+        return Executors.newFixedThreadPool(workers, newDaemonThreadFactory(name));
+    }
+
+    /**
+     *
+     * @param name Prefix of the threads' names
+     * @return Daemon threads that run each task right away, for tasks that mostly block on a process' stream
+     */
+    public static ExecutorService newStreamPool(String name) {
+        return Executors.newCachedThreadPool(newDaemonThreadFactory(name));
+    }
+
+    /**
+     * Waits for the process to exit, for at most the given time.
+     *
+     * @return Whether the process exited
+     */
+    public static boolean waitFor(Process process, long timeout, TimeUnit unit) throws InterruptedException {
+        return process.waitFor(timeout, unit);
+    }
+
+    private static ThreadFactory newDaemonThreadFactory(String name) {
+        AtomicInteger threadCounter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -1,6 +1,5 @@
 package pt.ua.imodec.util;
 
-import org.apache.commons.lang.SerializationUtils;
 import org.dcm4che2.data.*;
 import org.dcm4che2.io.DicomInputHandler;
 import org.dcm4che2.io.DicomInputStream;
@@ -9,6 +8,8 @@ import org.dcm4che2.io.StopTagInputHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pt.ua.imodec.ImodecPluginSet;
+import pt.ua.imodec.codecs.CodecRegistry;
+import pt.ua.imodec.datastructs.FrameIndex;
 import pt.ua.imodec.datastructs.FrameIterator;
 import pt.ua.imodec.datastructs.formats.NewFormat;
 import pt.ua.imodec.util.validators.EncodeabilityValidator;
@@ -21,7 +22,7 @@ import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.rmi.UnexpectedException;
+import java.math.BigDecimal;
 import java.util.*;
 
 public class DicomUtils {
@@ -69,6 +70,35 @@ public class DicomUtils {
         return dicomInputStream.readDicomObject();
     }
 
+    /**
+     * Reads the pixel data of an object whose attributes were read up to it, with
+     * {@link #readNonPixelData(DicomInputStream)}, for when the whole object turns out to be needed after all.
+     * Attributes after the pixel data, such as the data set trailing padding, are not read.
+     *
+     * @param header Attributes read from the stream, to which the pixel data is added
+     */
+    public static void readPixelData(DicomInputStream dicomInputStream, DicomObject header) throws IOException {
+        if (dicomInputStream.tag() != Tag.PixelData)
+            return;
+
+        boolean bigEndian = dicomInputStream.getTransferSyntax().bigEndian();
+        int valueLength = dicomInputStream.valueLength();
+        if (valueLength != -1) {
+            byte[] pixelData = new byte[valueLength];
+            dicomInputStream.readFully(pixelData);
+            header.putBytes(Tag.PixelData, dicomInputStream.vr(), pixelData, bigEndian);
+            return;
+        }
+
+        // Encapsulated pixel data: items (the offset table, then the fragments) up to the sequence delimiter
+        DicomElement fragments = header.putFragments(Tag.PixelData, dicomInputStream.vr(), bigEndian);
+        for (int itemLength; (itemLength = FrameIndex.readItemHeader(dicomInputStream)) != -1; ) {
+            byte[] fragment = new byte[itemLength];
+            dicomInputStream.readFully(fragment);
+            fragments.addFragment(fragment);
+        }
+    }
+
     public static boolean isMultiFrame(File dicomFile) throws IOException {
         try (DicomInputStream dicomInputStream = new DicomInputStream(dicomFile)) {
             try {
@@ -89,34 +119,62 @@ public class DicomUtils {
     public static boolean isMultiFrame(DicomObject dicomObject) {
 
         boolean areThereMultipleNumberOfFrames = dicomObject.contains(Tag.NumberOfFrames) && dicomObject.getInt(Tag.NumberOfFrames) > 1;
-        boolean isVrSq = dicomObject.get(Tag.PixelData).vr().equals(VR.SQ);
-        boolean areThereMultiplePixelDataItems = dicomObject.get(Tag.PixelData).countItems() > 1;
+        boolean isEncapsulated = dicomObject.get(Tag.PixelData).hasItems();
+        // The offset table, then a fragment per frame
+        boolean areThereMultiplePixelDataItems = dicomObject.get(Tag.PixelData).countItems() > 2;
 
-        if (!(areThereMultipleNumberOfFrames == areThereMultiplePixelDataItems == isVrSq))
+        if (isEncapsulated && areThereMultipleNumberOfFrames != areThereMultiplePixelDataItems)
             logger.warn("This is an inconsistent dicom object regarding the frames!");
 
-        return areThereMultipleNumberOfFrames || isVrSq || areThereMultiplePixelDataItems;
+        return areThereMultipleNumberOfFrames || areThereMultiplePixelDataItems;
     }
 
     static BufferedImage loadDicomEncodedFrame(DicomInputStream inputStream, int frameID, NewFormat newFormat) throws IOException {
-        // FIXME: 17/09/22 This readDicomObject is an OOM hazard.
-        //  Use DicomInputStream to read the frames w/o loading them all to memory
-
-        DicomObject dicomObject = inputStream.readDicomObject();
-        DicomElement frameSequence = dicomObject.get(Tag.PixelData);
-
-        if (frameSequence.vr().equals(VR.SQ))
-            throw new AssertionError("Tried to load a frame from a non multi-frame dicom object!");
-
-        byte[] codeStream = frameSequence.getFragment(frameID);
+        byte[] codeStream = readEncodedFrame(inputStream, frameID);
 
         Optional<BufferedImage> image = Optional.ofNullable(
-                NewFormatsCodecs.decodeByteStream(codeStream, newFormat));
+                CodecRegistry.getShared().get(newFormat).decode(codeStream));
         if (!image.isPresent())
             throw new NullPointerException("Error reading frame!");
         return image.get();
     }
 
+    /**
+     * Reads the code stream of a frame of encapsulated pixel data, without reading the other frames: with the
+     * Basic Offset Table, the frames before it are skipped at once, or else item by item.
+     *
+     * @param inputStream Stream over the whole object, from its start
+     * @param frameID Index of the frame, from 0
+     * @throws IllegalArgumentException If the pixel data is not encapsulated, or has fewer frames
+     */
+    static byte[] readEncodedFrame(DicomInputStream inputStream, int frameID) throws IOException {
+        readNonPixelData(inputStream);
+        if (inputStream.tag() != Tag.PixelData || inputStream.valueLength() != -1)
+            throw new IllegalArgumentException("Tried to load a frame from a non multi-frame dicom object!");
+
+        int basicOffsetTableLength = FrameIndex.readItemHeader(inputStream);
+        byte[] basicOffsetTable = new byte[Math.max(0, basicOffsetTableLength)];
+        inputStream.readFully(basicOffsetTable);
+        long[] offsets = FrameIndex.parseBasicOffsetTable(basicOffsetTable);
+
+        if (frameID < offsets.length)
+            FrameIndex.skipFully(inputStream, offsets[frameID]);
+        else
+            for (int i = 0; i < frameID; i++) {
+                int itemLength = FrameIndex.readItemHeader(inputStream);
+                if (itemLength < 0)
+                    throw new IllegalArgumentException(String.format("There is no frame %d", frameID));
+                FrameIndex.skipFully(inputStream, itemLength);
+            }
+
+        int codeStreamLength = FrameIndex.readItemHeader(inputStream);
+        if (codeStreamLength < 0)
+            throw new IllegalArgumentException(String.format("There is no frame %d", frameID));
+        byte[] codeStream = new byte[codeStreamLength];
+        inputStream.readFully(codeStream);
+        return codeStream;
+    }
+
     /**
      * Load dicom (buffered) image.
      * Credits:
@@ -153,11 +211,30 @@ public class DicomUtils {
 
     static void encodeMultiFrameDicomObject(DicomObject dicomObject, NewFormat chosenFormat,
                                             HashMap<String, Number> options) throws IOException {
-        int framesSqLength = 0;
-
         ImageUtils.logger.info("Encoding multi-frame dicom object with '{}' format. This might take a while...",
                 chosenFormat.getFileExtension());
 
+        validateEncoding(dicomObject);
+
+        FrameIterator frameIterator = new FrameIterator(dicomObject, true);
+        int nativePixelDataSizeInBytes = getPixelDataSize(dicomObject);
+
+        CodecRegistry registry = CodecRegistry.getShared();
+        FrameEncoder frameEncoder = FrameEncoder.getShared();
+        ImageUtils.logger.debug("Encoding the frames with {} workers", frameEncoder.getWorkers());
+        List<byte[]> codeStreams = frameEncoder.encode(frameIterator,
+                (frameIndex, frame) -> registry.get(chosenFormat, frame).encode(frame, options));
+
+        int compressedPixelDataSequenceSizeInBytes = putEncodedFrames(dicomObject, codeStreams);
+
+        ImageUtils.logger.debug("Changing parameters other than pixel-data (lossy compression, transfer syntax, ...)");
+        updateLossyAttributes(dicomObject, chosenFormat, nativePixelDataSizeInBytes,
+                compressedPixelDataSequenceSizeInBytes);
+        if (frameIterator.getUnsignedShift() != 0)
+            updateUnsignedAttributes(dicomObject, frameIterator.getUnsignedShift());
+    }
+
+    static void validateEncoding(DicomObject dicomObject) {
         if (!EncodeabilityValidator.validate(dicomObject)) {
             ImageUtils.logger.error("Cannot encode this dicom object!");
             throw new UnsupportedOperationException();
@@ -168,67 +245,61 @@ public class DicomUtils {
                     String.format("Unsupported OS: '%s' for Imodec storage plugin", System.getProperty("os.name"))
             );
         }
+    }
 
-        Iterator<BufferedImage> frameIterator = new FrameIterator(dicomObject);
-
-        ImageUtils.logger.debug("Creating directory to store the (multi-frame) image frames");
-        String sopInstUID = dicomObject.getString(Tag.SOPInstanceUID);
-        File imageDir = new File(String.format("%s/%s", ImodecPluginSet.TMP_DIR_PATH, sopInstUID));
-        if (!imageDir.exists() && !imageDir.mkdirs()) {
-            throw new UnexpectedException("Could not create directory!");
-        }
-        imageDir.deleteOnExit();
-
-        int nativePixelDataSizeInBytes;
+    private static int getPixelDataSize(DicomObject dicomObject) {
         DicomElement pixelDataElement = dicomObject.get(Tag.PixelData);
         if (pixelDataElement.vr().equals(VR.SQ))
-            nativePixelDataSizeInBytes = pixelDataElement.getBytes().length;
-        else
-            nativePixelDataSizeInBytes = pixelDataElement.length();
-
-        int frameCounter = 0;
-
-        TransferSyntax dicomObjectsTS = TransferSyntax.valueOf(dicomObject.getString(Tag.TransferSyntaxUID));
-
-        Queue<byte[]> codeStreamQueue = new LinkedList<>();
-
-        while (frameIterator.hasNext()) {
-            BufferedImage frame = frameIterator.next();
-
-            ImageUtils.logger.debug("Storing image frame into png file.");
-            File framePNG = new File(String.format("%s/%d.png", imageDir, frameCounter++));
-            framePNG.deleteOnExit();
-            ImageIO.write(frame, "png", framePNG);
+            return pixelDataElement.getBytes().length;
+        return pixelDataElement.length();
+    }
 
-            ImageUtils.logger.debug("Adding frame bitstream into pixel data");
-            byte[] codeStream = NewFormatsCodecs.encodePNGFile(framePNG, chosenFormat, options);
-            framesSqLength += codeStream.length;
-            codeStreamQueue.add(codeStream);
+    /**
+     * Replaces the pixel data of a multi-frame object by the encoded frames, encapsulated: a Basic Offset Table,
+     * then a fragment per frame, padded to an even length. The table is left empty if the offsets do not fit in
+     * its 32 bits; such objects are still indexed when stored (see {@link FrameIndex}).
+     *
+     * @return Sum of the length of the encoded frames
+     */
+    static int putEncodedFrames(DicomObject dicomObject, List<byte[]> codeStreams) {
+        int[] fragmentLengths = new int[codeStreams.size()];
+        int framesLength = 0;
+        for (int i = 0; i < fragmentLengths.length; i++) {
+            fragmentLengths[i] = codeStreams.get(i).length;
+            framesLength += fragmentLengths[i];
         }
 
-        ImageUtils.logger.debug("Emptying pixel-data (re-writing with the sum of the length of all frames or -1).");
-        DicomElement dicomFramesSequence;
-        if (dicomObjectsTS.explicitVR())
-            dicomFramesSequence = dicomObject.putSequence(Tag.PixelData, framesSqLength);
-        else
-            dicomFramesSequence = dicomObject.putSequence(Tag.PixelData);
-
-        BasicDicomObject pixelDataItem = new BasicDicomObject();
-
-        ImageUtils.logger.debug("Inserting the encoded frames onto the pixel data sequence");
+        ImageUtils.logger.debug("Replacing the pixel data by the offset table and the encoded frames");
+        DicomElement fragments = dicomObject.putFragments(Tag.PixelData, VR.OB, false);
+        fragments.addFragment(FrameIndex.toBasicOffsetTable(fragmentLengths));
+        for (byte[] codeStream : codeStreams)
+            fragments.addFragment(codeStream.length % 2 == 0 ? codeStream
+                    : Arrays.copyOf(codeStream, codeStream.length + 1));
 
-        while (!codeStreamQueue.isEmpty()) {
-            pixelDataItem.putBytes(Tag.Item, VR.OB, codeStreamQueue.poll());
-            dicomFramesSequence.addDicomObject(pixelDataItem);
-            pixelDataItem = new BasicDicomObject();
-        }
-        if (!dicomObjectsTS.explicitVR())
-            pixelDataItem.putNull(Tag.SequenceDelimitationItem, VR.OB);
+        return framesLength;
+    }
 
-        ImageUtils.logger.debug("Changing parameters other than pixel-data (lossy compression, transfer syntax, ...)");
-        int compressedPixelDataSequenceSizeInBytes = framesSqLength;
-        updateLossyAttributes(dicomObject, chosenFormat, nativePixelDataSizeInBytes,
-                compressedPixelDataSequenceSizeInBytes);
+    /**
+     * Describes the frames that were encoded with their signed samples shifted into the unsigned range
+     * (see {@link FrameIterator#getUnsignedShift()}), which are only those of objects with a top-level Modality
+     * LUT: the pixel representation becomes unsigned, the rescale intercept compensates the shift, so the
+     * modality values stay the same, and the attributes given in stored values are shifted as well.
+     *
+     * @param shift What was added to the samples
+     */
+    static void updateUnsignedAttributes(DicomObject dicomObject, int shift) {
+        double slope = dicomObject.getDouble(Tag.RescaleSlope, 1);
+        double intercept = dicomObject.getDouble(Tag.RescaleIntercept, 0);
+
+        dicomObject.putInt(Tag.PixelRepresentation, VR.US, 0);
+        dicomObject.putString(Tag.RescaleIntercept, VR.DS,
+                BigDecimal.valueOf(intercept - shift * slope).stripTrailingZeros().toPlainString());
+        if (!dicomObject.contains(Tag.RescaleSlope))
+            dicomObject.putString(Tag.RescaleSlope, VR.DS, "1");
+
+        for (int tag : new int[]{Tag.SmallestImagePixelValue, Tag.LargestImagePixelValue, Tag.PixelPaddingValue})
+            if (dicomObject.contains(tag))
+                dicomObject.putInt(tag, VR.US, dicomObject.getInt(tag) + shift);
     }
 
     private static void updateLossyAttributes(DicomObject dicomObject, NewFormat chosenFormat,
@@ -244,15 +315,7 @@ public class DicomUtils {
         ImageUtils.logger.info("Encoding single-frame dicom object with '{}' format...",
                 chosenFormat.getFileExtension());
 
-        if (!EncodeabilityValidator.validate(dicomObject)) {
-            ImageUtils.logger.error("Cannot encode this dicom object!");
-            throw new UnsupportedOperationException();
-        }
-
-        if (!OSValidator.validate())
-            throw new IllegalStateException(
-                    String.format("Unsupported OS: '%s' for Imodec storage plugin", System.getProperty("os.name"))
-            );
+        validateEncoding(dicomObject);
 
         int rawImageByteSize = dicomObject.get(Tag.PixelData).length();
         if (rawImageByteSize == -1) {
@@ -261,20 +324,83 @@ public class DicomUtils {
         }
 
         // Change dicom object from uncompressed to JPEG XL, WebP or AVIF format
-        BufferedImage dicomImage = ImageUtils.loadDicomImage(dicomObject, 0);
-
-        ImageUtils.logger.debug("Storing image into png file.");
-        File tmpImageFile = new File(String.format("%s/%d.png", ImodecPluginSet.TMP_DIR_PATH, dicomImage.hashCode()));
-        tmpImageFile.deleteOnExit();
-        ImageIO.write(dicomImage, "png", tmpImageFile);
+        FrameIterator frameIterator = new FrameIterator(dicomObject, true);
+        BufferedImage dicomImage = frameIterator.next();
 
-        byte[] bitstream = NewFormatsCodecs.encodePNGFile(tmpImageFile, chosenFormat, options);
+        byte[] bitstream = CodecRegistry.getShared().get(chosenFormat, dicomImage).encode(dicomImage, options);
         int compressedImageByteSize = bitstream.length;
 
         // Adding the new data into the dicom object
         dicomObject.putBytes(Tag.PixelData, VR.OB, bitstream);
         // Change parameters other than pixel-data (lossy compression, transfer syntax, ...)
         updateLossyAttributes(dicomObject, chosenFormat, rawImageByteSize, compressedImageByteSize);
+        if (frameIterator.getUnsignedShift() != 0)
+            updateUnsignedAttributes(dicomObject, frameIterator.getUnsignedShift());
+    }
+
+    /**
+     * Derives a variant of the dicom object, e.g. in another transfer syntax, without copying it.
+     * <p>
+     * The variant shares every attribute of the source but the pixel data, which it is meant to get its own of:
+     * the elements themselves are shared, not copied, so a variant takes the memory of its own pixel data and
+     * of a reference per attribute, however large the source's pixel data is. Putting an attribute in the variant
+     * replaces the shared element, leaving the source's as it was (copy on write), which is how the transfer
+     * syntax and the lossy compression attributes get their values. Items of shared sequences are shared as
+     * well, so sequences must be replaced rather than modified.
+     *
+     * @return The variant, without pixel data
+     */
+    public static DicomObject deriveVariant(DicomObject source) {
+        DicomObject variant = new BasicDicomObject();
+        source.exclude(new int[]{Tag.PixelData}).copyTo(variant);
+        return variant;
+    }
+
+    /**
+     * Encodes the dicom object with each of the new formats. Each frame is decoded once and encoded with all
+     * the formats concurrently (see {@link FrameEncoder#encode(Iterator, List)}), and each encoded object is a
+     * variant of the source (see {@link #deriveVariant(DicomObject)}), which is left as it is.
+     *
+     * @param dicomObject Source data
+     * @return The encoded objects, by format
+     */
+    public static Map<NewFormat, DicomObject> encodeDicomObjectWithAllTs(DicomObject dicomObject)
+            throws IOException {
+        List<NewFormat> formats = Arrays.asList(NewFormat.values());
+        ImageUtils.logger.info("Encoding dicom object with all the formats: {}", formats);
+
+        validateEncoding(dicomObject);
+
+        boolean multiFrame = isMultiFrame(dicomObject);
+        int nativePixelDataSizeInBytes = getPixelDataSize(dicomObject);
+        FrameIterator frameIterator = new FrameIterator(dicomObject, true);
+
+        List<FrameEncoder.FrameCodec<BufferedImage>> codecs = new ArrayList<>(formats.size());
+        CodecRegistry registry = CodecRegistry.getShared();
+        for (NewFormat format : formats)
+            codecs.add((frameIndex, frame) -> registry.get(format, frame).encode(frame, new HashMap<>()));
+        List<List<byte[]>> codeStreamsByFormat = FrameEncoder.getShared().encode(frameIterator, codecs);
+
+        Map<NewFormat, DicomObject> encodedObjects = new EnumMap<>(NewFormat.class);
+        for (int i = 0; i < formats.size(); i++) {
+            List<byte[]> codeStreams = codeStreamsByFormat.get(i);
+            DicomObject encodedObject = deriveVariant(dicomObject);
+
+            int compressedPixelDataSizeInBytes;
+            if (multiFrame)
+                compressedPixelDataSizeInBytes = putEncodedFrames(encodedObject, codeStreams);
+            else {
+                encodedObject.putBytes(Tag.PixelData, VR.OB, codeStreams.get(0));
+                compressedPixelDataSizeInBytes = codeStreams.get(0).length;
+            }
+
+            updateLossyAttributes(encodedObject, formats.get(i), nativePixelDataSizeInBytes,
+                    compressedPixelDataSizeInBytes);
+            if (frameIterator.getUnsignedShift() != 0)
+                updateUnsignedAttributes(encodedObject, frameIterator.getUnsignedShift());
+            encodedObjects.put(formats.get(i), encodedObject);
+        }
+        return encodedObjects;
     }
 
     /**
@@ -288,29 +414,15 @@ public class DicomUtils {
                 && dicomObject.getString(Tag.LossyImageCompression).equals("01"))
             throw new IllegalArgumentException("Cannot re-apply lossy compression to image!");
 
-        Iterator<NewFormat> newFormats = Arrays.stream(NewFormat.values()).iterator();
-
-        return new Iterator<DicomObject>() {
-            @Override
-            public boolean hasNext() {
-                return newFormats.hasNext();
-            }
-
-            @Override
-            public DicomObject next() {
-                try {
-                    DicomObject dicomObjectClone = (DicomObject) SerializationUtils.clone(dicomObject);
-                    encodeDicomObject(dicomObjectClone, newFormats.next(), new HashMap<>());
-                    return dicomObjectClone;
-                } catch (IOException e) {
-                    ImageUtils.logger.error("Unexpected error!");
-                    throw new RuntimeException(e);
-                } catch (OutOfMemoryError error) {
-                    ImageUtils.logger.error("File is too big!");
-                    throw new RuntimeException(error);
-                }
-            }
-        };
+        try {
+            return encodeDicomObjectWithAllTs(dicomObject).values().iterator();
+        } catch (IOException e) {
+            ImageUtils.logger.error("Unexpected error!");
+            throw new RuntimeException(e);
+        } catch (OutOfMemoryError error) {
+            ImageUtils.logger.error("File is too big!");
+            throw new RuntimeException(error);
+        }
     }
 
     /**
@@ -319,37 +431,23 @@ public class DicomUtils {
      * @return Iterator with input stream objects
      */
     public static Iterator<DicomInputStream> encodeIteratorDicomInputStreamWithAllTs(File dicomObjectFile) {
-
-        Iterator<NewFormat> newFormatIterator = Arrays.stream(NewFormat.values()).iterator();
-
-        return new Iterator<DicomInputStream>() {
-            @Override
-            public boolean hasNext() {
-                return newFormatIterator.hasNext();
+        try {
+            ImageUtils.logger.debug("Fetching dicom object from file");
+            DicomObject dicomObject;
+            try (DicomInputStream dicomInputStream = new DicomInputStream(dicomObjectFile)) {
+                dicomObject = dicomInputStream.readDicomObject();  // FIXME: 20/09/22 OOM Hazard
             }
 
-            @Override
-            public DicomInputStream next() {
-                try {
-                    ImageUtils.logger.debug("Fetching dicom object from file");
-                    DicomInputStream dicomInputStream = new DicomInputStream(dicomObjectFile);
-                    DicomObject dicomObject = dicomInputStream.readDicomObject();  // FIXME: 20/09/22 OOM Hazard
-                    dicomInputStream.close();
-
-                    if (isMultiFrame(dicomObject))
-                        encodeMultiFrameDicomObject(dicomObject, newFormatIterator.next(), new HashMap<>());
-                    else
-                        encodeSingleFrameDicomObject(dicomObject, newFormatIterator.next(), new HashMap<>());
-                    File file1 = writeDicomObjectToTmpFile(dicomObject);
-                    return new DicomInputStream(file1);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                } catch (OutOfMemoryError error) {
-                    ImageUtils.logger.error("Multi-frame dicom object is too big!");
-                    throw new RuntimeException(error);
-                }
-            }
-        };
+            List<DicomInputStream> dicomInputStreams = new ArrayList<>();
+            for (DicomObject encodedObject : encodeDicomObjectWithAllTs(dicomObject).values())
+                dicomInputStreams.add(new DicomInputStream(writeDicomObjectToTmpFile(encodedObject)));
+            return dicomInputStreams.iterator();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (OutOfMemoryError error) {
+            ImageUtils.logger.error("Multi-frame dicom object is too big!");
+            throw new RuntimeException(error);
+        }
     }
 
     public static File writeDicomObjectToTmpFile(DicomObject dicomObject) throws IOException {
@@ -0,0 +1,222 @@
+package pt.ua.imodec.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Encodes the frames of multi-frame objects concurrently, on a bounded pool of workers shared by all the objects.
+ * <p>
+ * Frames are read by the calling thread and handed to the workers; at most twice as many frames as there are
+ * workers are held at a time, so that reading does not get ahead of encoding. The code streams are returned,
+ * or handed over as they are ready, in frame order.
+ * <p>
+ * The workers mostly wait for codec processes, which the {@link pt.ua.imodec.codecs.CodecScheduler} bounds on its
+ * own. On Java 21 and later they are virtual threads (see {@link CodecThreads}), so there can be many more of them
+ * than processors at little cost.
+ */
+public class FrameEncoder implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(FrameEncoder.class);
+
+    public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+
+    private static volatile FrameEncoder shared = new FrameEncoder(DEFAULT_WORKERS);
+
+    private final int workers;
+    private final ExecutorService executor;
+
+    /**
+     * Encodes a single frame.
+     *
+     * @param <T> Type of the frames
+     */
+    @FunctionalInterface
+    public interface FrameCodec<T> {
+
+        /**
+         *
+         * @param frameIndex Position of the frame in the object, starting at 0
+         * @return Code stream of the frame
+         */
+        byte[] encode(int frameIndex, T frame) throws IOException;
+    }
+
+    /**
+     * Takes the code streams of the frames, in frame order.
+     */
+    @FunctionalInterface
+    public interface CodeStreamConsumer {
+
+        void accept(int frameIndex, byte[] codeStream) throws IOException;
+    }
+
+    public FrameEncoder(int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException(String.format("Invalid number of encoding workers: %d", workers));
+
+        this.workers = workers;
+        this.executor = CodecThreads.newWorkerPool("imodec-frame-encoder", workers);
+    }
+
+    /**
+     *
+     * @return The encoder used by the storage
+     */
+    public static FrameEncoder getShared() {
+        return shared;
+    }
+
+    /**
+     * Replaces the shared encoder by one with the given number of workers. Encodings already running finish
+     * on the previous one.
+     */
+    public static void setSharedWorkers(int workers) {
+        FrameEncoder previous = shared;
+        if (previous.workers == workers)
+            return;
+
+        shared = new FrameEncoder(workers);
+        previous.close();
+        logger.info("Encoding frames with {} workers", workers);
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     *
+     * @param frames Frames to encode, which are consumed by the calling thread
+     * @param codec Encoder of each frame, called concurrently by the workers
+     * @return Code streams of the frames, in the order of the iterator
+     * @throws IOException If a frame could not be encoded. The frames still pending are cancelled.
+     */
+    public <T> List<byte[]> encode(Iterator<T> frames, FrameCodec<T> codec) throws IOException {
+        List<byte[]> codeStreams = new ArrayList<>();
+        encode(frames, codec, (frameIndex, codeStream) -> codeStreams.add(codeStream));
+        return codeStreams;
+    }
+
+    /**
+     * Encodes the frames and hands their code streams over as soon as they, and the ones before them, are
+     * encoded. Only the frames in flight and the code streams waiting for the ones before them are held, so
+     * memory does not grow with the number of frames.
+     *
+     * @param frames Frames to encode, which are consumed by the calling thread
+     * @param codec Encoder of each frame, called concurrently by the workers
+     * @param consumer Receives the code streams, in the order of the iterator, on the calling thread
+     * @throws IOException If a frame could not be encoded, or consumed. The frames still pending are cancelled.
+     */
+    public <T> void encode(Iterator<T> frames, FrameCodec<T> codec, CodeStreamConsumer consumer)
+            throws IOException {
+        int maxFramesInFlight = workers * 2;
+        Deque<Future<byte[]>> codeStreams = new ArrayDeque<>(maxFramesInFlight);
+        int consumedFrames = 0;
+
+        try {
+            for (int frameIndex = 0; frames.hasNext(); frameIndex++) {
+                // Waits for the oldest frame rather than reading ahead of the encoding
+                while (codeStreams.size() >= maxFramesInFlight
+                        || (!codeStreams.isEmpty() && codeStreams.peekFirst().isDone()))
+                    consumer.accept(consumedFrames++, codeStreams.removeFirst().get());
+
+                T frame = frames.next();
+                int index = frameIndex;
+                codeStreams.addLast(executor.submit(() -> codec.encode(index, frame)));
+            }
+
+            while (!codeStreams.isEmpty())
+                consumer.accept(consumedFrames++, codeStreams.removeFirst().get());
+
+        } catch (InterruptedException e) {
+            cancel(codeStreams);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while encoding frames");
+        } catch (ExecutionException e) {
+            cancel(codeStreams);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException("Could not encode frame", cause);
+        } catch (IOException | RuntimeException | Error e) {
+            cancel(codeStreams);
+            throw e;
+        }
+    }
+
+    /**
+     * Encodes each frame with each of the codecs. Frames are taken from the iterator once, and the codecs
+     * of a frame run concurrently, so that it takes about as long as the slowest of them rather than their sum.
+     *
+     * @param codecs Encoders of each frame, called concurrently by the workers
+     * @return For each codec, in the given order, the code streams of the frames, in the order of the iterator
+     * @throws IOException If a frame could not be encoded. The frames still pending are cancelled.
+     */
+    public <T> List<List<byte[]>> encode(Iterator<T> frames, List<FrameCodec<T>> codecs) throws IOException {
+        int codecCount = codecs.size();
+        if (codecCount == 0)
+            throw new IllegalArgumentException("No codecs to encode the frames with");
+
+        // Hands each frame over once per codec
+        Iterator<T> frameCopies = new Iterator<T>() {
+            private T frame;
+            private int copiesLeft = 0;
+
+            @Override
+            public boolean hasNext() {
+                return copiesLeft > 0 || frames.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (copiesLeft == 0) {
+                    frame = frames.next();
+                    copiesLeft = codecCount;
+                }
+                copiesLeft--;
+                return frame;
+            }
+        };
+
+        List<byte[]> codeStreams = encode(frameCopies,
+                (index, frame) -> codecs.get(index % codecCount).encode(index / codecCount, frame));
+
+        List<List<byte[]>> codeStreamsByCodec = new ArrayList<>(codecCount);
+        for (int codec = 0; codec < codecCount; codec++) {
+            List<byte[]> codecStreams = new ArrayList<>(codeStreams.size() / codecCount);
+            for (int i = codec; i < codeStreams.size(); i += codecCount)
+                codecStreams.add(codeStreams.get(i));
+            codeStreamsByCodec.add(codecStreams);
+        }
+        return codeStreamsByCodec;
+    }
+
+    private static void cancel(Collection<Future<byte[]>> codeStreams) {
+        for (Future<byte[]> codeStream : codeStreams)
+            codeStream.cancel(true);
+    }
+
+    /**
+     * Lets the submitted frames finish, but takes no new ones.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
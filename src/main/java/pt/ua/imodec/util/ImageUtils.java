@@ -7,6 +7,7 @@ import org.dcm4che2.io.DicomInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pt.ua.imodec.ImodecPluginSet;
+import pt.ua.imodec.datastructs.NativeFrames;
 import pt.ua.imodec.datastructs.formats.Format;
 import pt.ua.imodec.datastructs.formats.Native;
 import pt.ua.imodec.datastructs.formats.NewFormat;
@@ -16,8 +17,8 @@ import javax.imageio.ImageReader;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Optional;
 
 public class ImageUtils {
 
@@ -27,11 +28,18 @@ public class ImageUtils {
      *
      * @param dicomObject Dicom data source
      * @param frame ID of the frame in the dicom object
-     * @return A single frame from the dicom object's pixel data
+     * @return A single frame from the dicom object's pixel data. Native pixel data is read directly, the rest
+     * with the DICOM image reader.
      * @throws IOException If an IO error occurs
      */
     public static BufferedImage loadDicomImage(DicomObject dicomObject, int frame) throws IOException {
 
+        if (NativeFrames.isNative(dicomObject)) {
+            Optional<BufferedImage> image = new NativeFrames(dicomObject).getImage(frame);
+            if (image.isPresent())
+                return image.get();
+        }
+
         File tmpDicomFile = DicomUtils.saveDicomFile(dicomObject, true);
 
         DicomInputStream dicomInputStream = new DicomInputStream(tmpDicomFile);
@@ -59,9 +67,8 @@ public class ImageUtils {
             private int i = 0;
             private final int frames = meta.getInt(Tag.NumberOfFrames);
             private final String transferSyntax = meta.getString(Tag.TransferSyntaxUID);
-            private final Format format = Arrays.stream((Format[]) NewFormat.values())
-                    .filter(format -> format.getTransferSyntax().uid().equals(transferSyntax))
-                    .findFirst()
+            private final Format format = NewFormat.fromTransferSyntaxUID(transferSyntax)
+                    .map(Format.class::cast)
                     .orElse(Native.UNCHANGED);
 
             @Override
@@ -74,7 +81,7 @@ public class ImageUtils {
                 try {
                     if (format instanceof NewFormat) {
                         try (DicomInputStream inputStream = new DicomInputStream(file)) {
-                            return DicomUtils.loadDicomEncodedFrame(inputStream, i, (NewFormat) format);
+                            return DicomUtils.loadDicomEncodedFrame(inputStream, i++, (NewFormat) format);
                         }
                     }
                     return DicomUtils.loadDicomImage(new DicomInputStream(file), i++);
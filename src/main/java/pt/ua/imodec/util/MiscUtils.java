@@ -2,13 +2,13 @@ package pt.ua.imodec.util;
 
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
-import org.dcm4che2.data.TransferSyntax;
 import org.dcm4che2.io.DicomInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.yaml.snakeyaml.Yaml;
 import pt.ua.imodec.ImodecPluginSet;
-import pt.ua.imodec.datastructs.formats.NewFormat;
+import pt.ua.imodec.codecs.Codec;
+import pt.ua.imodec.codecs.CodecRegistry;
 import pt.ua.imodec.webservice.ImodecJettyPlugin;
 
 import javax.imageio.ImageIO;
@@ -22,7 +22,6 @@ import java.nio.file.NoSuchFileException;
 import java.time.Instant;
 import java.util.*;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 
 public class MiscUtils {
 
@@ -143,35 +142,17 @@ public class MiscUtils {
     public static InputStream extractImageInputStream(DicomInputStream dicomInputStream, DicomObject dicomObject) throws IOException {
 
 
-        List<NewFormat> newFormatList = Arrays.asList(NewFormat.values());
-
-        List<String> newFormatListTsUids = newFormatList
-                .stream()
-                .map(NewFormat::getTransferSyntax)
-                .map(TransferSyntax::uid)
-                .collect(Collectors.toList()
-                );
-
         BufferedImage dicomImage;
         String tsUID = dicomObject.getString(Tag.TransferSyntaxUID);
         boolean isMultiframe = dicomObject.getInt(Tag.NumberOfFrames) > 1;
+        Optional<Codec> codec = CodecRegistry.getShared().findByTransferSyntax(tsUID);
 
-        if (newFormatListTsUids.contains(tsUID)) {// Case recent formats
-            // Parse format uid into format id
-            NewFormat chosenFormat = newFormatList
-                    .stream()
-                    .filter(newFormat -> newFormat.getTransferSyntax().uid().equals(tsUID))
-                    .findFirst()
-                    .orElseThrow(UnsupportedEncodingException::new);
-
+        if (codec.isPresent()) {// Case recent formats
             if (!isMultiframe)
-                dicomImage = NewFormatsCodecs.decodeByteStream(
-                        dicomObject.getBytes(Tag.PixelData), chosenFormat
-                        );
+                dicomImage = codec.get().decode(dicomObject.getBytes(Tag.PixelData));
             else
-                dicomImage = NewFormatsCodecs.decodeByteStream(
-                        dicomObject.get(Tag.PixelData).getFragment(0), chosenFormat
-                );
+                // The first fragment is the offset table
+                dicomImage = codec.get().decode(dicomObject.get(Tag.PixelData).getFragment(1));
         } else if (!isMultiframe) {
             dicomImage = DicomUtils.loadDicomImage(dicomInputStream, 0);
         } else {
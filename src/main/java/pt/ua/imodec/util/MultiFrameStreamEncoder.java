@@ -0,0 +1,189 @@
+package pt.ua.imodec.util;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.DicomOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.ua.imodec.codecs.CodecRegistry;
+import pt.ua.imodec.datastructs.FrameIndex;
+import pt.ua.imodec.datastructs.NativeFrames;
+import pt.ua.imodec.datastructs.formats.NewFormat;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Encodes multi-frame objects of native pixel data as they are read, rather than once they are in memory.
+ * <p>
+ * The frames are read one at a time from the stream, past the attributes, and their code streams are written as
+ * encapsulated fragments, of undefined length, as soon as they are encoded. Only the frames in flight are held
+ * (see {@link FrameEncoder}), however many frames the object has.
+ * <p>
+ * The Basic Offset Table comes before the frames, whose lengths are not known yet, so it is left empty. Where the
+ * frames were written is returned instead, for the storage to keep.
+ */
+public class MultiFrameStreamEncoder {
+
+    private static final Logger logger = LoggerFactory.getLogger(MultiFrameStreamEncoder.class);
+
+    private MultiFrameStreamEncoder() {}
+
+    /**
+     *
+     * @param header Attributes of the object, read up to the pixel data (see
+     *               {@link DicomUtils#readNonPixelData(DicomInputStream)})
+     * @param dicomInputStream Stream the header was read from, now at the value of the pixel data
+     * @return True if the pixel data ahead is made of native frames, more than one, which can be encoded as
+     * they are read
+     */
+    public static boolean canEncode(DicomObject header, DicomInputStream dicomInputStream) {
+        if (dicomInputStream.tag() != Tag.PixelData || dicomInputStream.valueLength() == -1
+                || dicomInputStream.getTransferSyntax() == null
+                || !NativeFrames.isNativeTransferSyntax(dicomInputStream.getTransferSyntax().uid())
+                || !NativeFrames.hasSupportedLayout(header))
+            return false;
+
+        int numberOfFrames = header.getInt(Tag.NumberOfFrames, 1);
+        long frameLength = NativeFrames.getFrameLength(header);
+        return numberOfFrames > 1 && frameLength > 0
+                && frameLength * numberOfFrames <= (dicomInputStream.valueLength() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Writes the object encoded with the chosen format: its attributes, updated as
+     * {@link DicomUtils#encodeDicomObject(DicomObject, NewFormat, HashMap)} does, followed by the encoded frames.
+     * The Lossy Image Compression Ratio is left out, as it is only known once the attributes were written.
+     * Attributes after the pixel data, if any, are not read.
+     *
+     * @param header Attributes of the object, read up to the pixel data, which are updated
+     * @param dicomInputStream Stream the header was read from, now at the value of the pixel data
+     * @param outputStream Destination of the encoded object, which is flushed but not closed
+     * @return Where each frame was written, from the start of the output
+     * @throws IllegalArgumentException If the pixel data can not be encoded as it is read, see
+     * {@link #canEncode(DicomObject, DicomInputStream)}
+     */
+    public static FrameIndex encode(DicomObject header, DicomInputStream dicomInputStream, OutputStream outputStream,
+                              NewFormat chosenFormat, HashMap<String, Number> options) throws IOException {
+        return encode(header, dicomInputStream, outputStream, chosenFormat, options, null);
+    }
+
+    /**
+     * Same as {@link #encode(DicomObject, DicomInputStream, OutputStream, NewFormat, HashMap)}, also copying the
+     * native frames, as they are read, to a sink. If the encoding fails, the object can still be stored as it
+     * was from the frames in the sink and the rest of the stream.
+     *
+     * @param readFrames Sink of the native frames that were read, or null
+     */
+    public static FrameIndex encode(DicomObject header, DicomInputStream dicomInputStream, OutputStream outputStream,
+                                    NewFormat chosenFormat, HashMap<String, Number> options,
+                                    OutputStream readFrames) throws IOException {
+        if (!canEncode(header, dicomInputStream))
+            throw new IllegalArgumentException(String.format("Pixel data of '%s' can not be encoded as it is read",
+                    header.getString(Tag.SOPInstanceUID)));
+        DicomUtils.validateEncoding(header);
+
+        int numberOfFrames = header.getInt(Tag.NumberOfFrames);
+        logger.info("Encoding multi-frame dicom object of {} frames with '{}' format as it is read...",
+                numberOfFrames, chosenFormat.getFileExtension());
+
+        // The image pixel attributes the frames were stored with, which the header is about to lose
+        DicomObject storedAttributes = DicomUtils.deriveVariant(header);
+        boolean bigEndian = dicomInputStream.getTransferSyntax().bigEndian();
+        int frameLength = NativeFrames.getFrameLength(header);
+
+        byte[] firstFrame = readFrame(dicomInputStream, frameLength, readFrames);
+        int unsignedShift = new NativeFrames(storedAttributes, firstFrame, bigEndian).getUnsignedShift();
+
+        header.putString(Tag.TransferSyntaxUID, VR.UI, chosenFormat.getTransferSyntax().uid());
+        header.putString(Tag.LossyImageCompression, VR.CS, "01");
+        header.putString(Tag.LossyImageCompressionMethod, VR.CS, chosenFormat.getMethod());
+        if (unsignedShift != 0)
+            DicomUtils.updateUnsignedAttributes(header, unsignedShift);
+
+        DicomOutputStream dicomOutputStream = new DicomOutputStream(outputStream);
+        dicomOutputStream.writeDicomFile(header);
+        dicomOutputStream.writeHeader(Tag.PixelData, VR.OB, -1);
+        // Empty Basic Offset Table
+        dicomOutputStream.writeHeader(Tag.Item, null, 0);
+
+        long[] offsets = new long[numberOfFrames];
+        int[] lengths = new int[numberOfFrames];
+        Iterator<BufferedImage> frames = new Iterator<BufferedImage>() {
+            private int nextFrame = 0;
+            private byte[] pendingFrame = firstFrame;
+
+            @Override
+            public boolean hasNext() {
+                return nextFrame < numberOfFrames;
+            }
+
+            @Override
+            public BufferedImage next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                byte[] frame = pendingFrame;
+                pendingFrame = null;
+                try {
+                    if (frame == null)
+                        frame = readFrame(dicomInputStream, frameLength, readFrames);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                nextFrame++;
+
+                return new NativeFrames(storedAttributes, frame, bigEndian).getUnsignedImage(0)
+                        .orElseThrow(() -> new IllegalStateException("Unsupported frame layout"));
+            }
+        };
+
+        CodecRegistry registry = CodecRegistry.getShared();
+        try {
+            FrameEncoder.getShared().encode(frames,
+                    (frameIndex, frame) -> registry.get(chosenFormat, frame).encode(frame, options),
+                    (frameIndex, codeStream) -> {
+                        offsets[frameIndex] = writeFragment(dicomOutputStream, codeStream);
+                        lengths[frameIndex] = (codeStream.length + 1) & ~1;
+                    });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        dicomOutputStream.writeHeader(Tag.SequenceDelimitationItem, null, 0);
+        dicomOutputStream.flush();
+        return new FrameIndex(offsets, lengths);
+    }
+
+    private static byte[] readFrame(DicomInputStream dicomInputStream, int frameLength, OutputStream readFrames)
+            throws IOException {
+        byte[] frame = new byte[frameLength];
+        dicomInputStream.readFully(frame);
+        if (readFrames != null)
+            readFrames.write(frame);
+        return frame;
+    }
+
+    /**
+     * Writes the code stream as an item of the encapsulated pixel data, padded to an even length.
+     *
+     * @return Offset of the item's value, from the start of the output
+     */
+    static long writeFragment(DicomOutputStream dicomOutputStream, byte[] codeStream) throws IOException {
+        int paddedLength = (codeStream.length + 1) & ~1;
+
+        dicomOutputStream.writeHeader(Tag.Item, null, paddedLength);
+        long offset = dicomOutputStream.getStreamPosition();
+        dicomOutputStream.write(codeStream);
+        if (paddedLength != codeStream.length)
+            dicomOutputStream.write(0);
+        return offset;
+    }
+}
@@ -3,21 +3,110 @@ package pt.ua.imodec.util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pt.ua.imodec.ImodecPluginSet;
+import pt.ua.imodec.codecs.CodecCircuitBreaker;
+import pt.ua.imodec.codecs.CodecScheduler;
 import pt.ua.imodec.datastructs.formats.NewFormat;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+/**
+ * Runs the command line encoders and decoders of the new formats.
+ * <p>
+ * Images are handed to the encoders in the cheapest format they read (PGM/PPM rather than PNG). They are
+ * streamed to the codec's standard input and the result is read from its standard output, if the codec
+ * supports it; otherwise they go through temporary files. A run that fails through pipes is retried once through
+ * files. Pipes are only given up for the format if its codecs then fail through them on a small probe image as
+ * well, which shows that the installed version can not use them, rather than that it can not take one image.
+ * <p>
+ * Each run of a codec is admitted by the shared {@link CodecScheduler}, which bounds how many processes there
+ * are at a time, unless the codec's circuit is open (see {@link CodecCircuitBreaker}). A run that takes longer
+ * than its deadline, which grows with the image's pixels, is killed along with the processes it started, as it is
+ * when the thread waiting for it is interrupted.
+ * <p>
+ * The processes are waited for, and their streams fed and drained, by {@link CodecThreads}: virtual threads on
+ * Java 21 and later.
+ */
 public class NewFormatsCodecs {
 
     private static final Logger logger = LoggerFactory.getLogger(NewFormatsCodecs.class);
     private static final String losslessFormat = "png";
+    private static final String STANDARD_STREAM = "-";
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30_000;
+    public static final long DEFAULT_TIMEOUT_MILLIS_PER_MEGAPIXEL = 5_000;
+    /**
+     * The pixels of a code stream are only known once it is decoded, so its deadline assumes this many per byte
+     */
+    private static final int DECODED_PIXELS_PER_BYTE = 16;
+
+    private static volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private static volatile long timeoutMillisPerMegapixel = DEFAULT_TIMEOUT_MILLIS_PER_MEGAPIXEL;
+
+    /**
+     * Formats whose codecs can read from stdin and write to stdout. cavif and avif_decode only take files.
+     */
+    private static final Set<NewFormat> pipeableFormats = ConcurrentHashMap.newKeySet();
+
+    static {
+        pipeableFormats.addAll(EnumSet.of(NewFormat.JPEG_XL, NewFormat.WEBP));
+    }
+
+    /**
+     * Formats whose codecs passed the probe of their pipes, so that the images they fail on are not reasons to
+     * probe them again
+     */
+    private static final Set<NewFormat> probedFormats = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Formats whose encoders read PGM/PPM, which is cheaper to write than PNG. cavif only reads PNG and JPEG.
+     */
+    private static final Set<NewFormat> pnmFormats = EnumSet.of(NewFormat.JPEG_XL, NewFormat.WEBP);
+
+    private static final ExecutorService processStreams = CodecThreads.newStreamPool("imodec-codec-io");
+
+    /**
+     * Sets the deadline of the codec runs: the given time, plus the given time per megapixel of the image.
+     */
+    public static void setTimeouts(long millis, long millisPerMegapixel) {
+        if (millis < 1 || millisPerMegapixel < 0)
+            throw new IllegalArgumentException(String.format(
+                    "Codec timeout (%d ms) must be positive and its time per megapixel (%d ms) not negative",
+                    millis, millisPerMegapixel));
+
+        timeoutMillis = millis;
+        timeoutMillisPerMegapixel = millisPerMegapixel;
+        logger.info("Codec runs time out after {} ms plus {} ms per megapixel", millis, millisPerMegapixel);
+    }
+
+    /**
+     *
+     * @return How long a codec run on an image of the given pixels may take, in milliseconds
+     */
+    static long getTimeoutMillis(long pixels) {
+        return timeoutMillis + timeoutMillisPerMegapixel * pixels / 1_000_000;
+    }
 
     public static byte[] encodePNGFile(File pngFile, NewFormat chosenFormat, HashMap<String, Number> options)
             throws IOException {
@@ -25,41 +114,310 @@ public class NewFormatsCodecs {
         // Input validation
         assert pngFile.exists(): String.format("PNG file to encode '%s' does not exist.", pngFile);
 
+        return encode(Files.readAllBytes(pngFile.toPath()), chosenFormat, options);
+    }
+
+    /**
+     *
+     * @param image Image to encode, handed to the encoder as PGM/PPM if it reads them, or else as PNG
+     * @return The code stream
+     */
+    public static byte[] encode(BufferedImage image, NewFormat chosenFormat, HashMap<String, Number> options)
+            throws IOException {
+
+        if (pnmFormats.contains(chosenFormat)) {
+            byte[] pnm = PnmWriter.write(image);
+            return encode(pnm, PnmWriter.getFileExtension(pnm), (long) image.getWidth() * image.getHeight(),
+                    chosenFormat, options, pipeableFormats.contains(chosenFormat));
+        }
+
+        ByteArrayOutputStream losslessImage = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, losslessFormat, losslessImage))
+            throw new IOException(String.format("Could not write image as '%s'", losslessFormat));
+
+        return encode(losslessImage.toByteArray(), chosenFormat, options);
+    }
+
+    static byte[] encode(byte[] losslessImage, NewFormat chosenFormat, HashMap<String, Number> options)
+            throws IOException {
+        return encode(losslessImage, chosenFormat, options, pipeableFormats.contains(chosenFormat));
+    }
+
+    /**
+     *
+     * @param losslessImage PNG image
+     * @param usePipes Whether to stream the image to the encoder, or to go through temporary files
+     */
+    static byte[] encode(byte[] losslessImage, NewFormat chosenFormat, HashMap<String, Number> options,
+                         boolean usePipes) throws IOException {
+        return encode(losslessImage, losslessFormat, getPngPixels(losslessImage), chosenFormat, options, usePipes);
+    }
+
+    /**
+     *
+     * @return Width times height of the PNG image, from its header
+     */
+    private static long getPngPixels(byte[] png) throws IOException {
+        // Signature, then the IHDR chunk: length, type, width and height
+        if (png.length < 24)
+            throw new IOException(String.format("Not a PNG image: only %d bytes", png.length));
+        ByteBuffer header = ByteBuffer.wrap(png);
+        return (header.getInt(16) & 0xFFFFFFFFL) * (header.getInt(20) & 0xFFFFFFFFL);
+    }
+
+    /**
+     *
+     * @param image Image in a format the encoder reads
+     * @param imageExtension File extension of the image's format
+     * @param pixels Width times height of the image, which its deadline grows with
+     * @param usePipes Whether to stream the image to the encoder, or to go through temporary files
+     */
+    static byte[] encode(byte[] image, String imageExtension, long pixels, NewFormat chosenFormat,
+                         HashMap<String, Number> options, boolean usePipes) throws IOException {
+        long timeout = getTimeoutMillis(pixels);
+        return CodecCircuitBreaker.getShared().execute(chosenFormat.getId(),
+                () -> CodecScheduler.getShared().execute(chosenFormat.getId(), CodecScheduler.Lane.BULK,
+                        () -> run(image, imageExtension, chosenFormat, options, usePipes, timeout)));
+    }
+
+    private static byte[] run(byte[] image, String imageExtension, NewFormat chosenFormat,
+                              HashMap<String, Number> options, boolean usePipes, long timeout)
+            throws IOException {
         String formatExtension = chosenFormat.getFileExtension();
-        String pngFilePath = pngFile.getAbsolutePath();
-        String encodedFileName = pngFilePath.replace("png", formatExtension);
 
-        String encodingCommand = getCodecCommand(pngFilePath, encodedFileName, formatExtension,
-                true, options);
+        if (usePipes) {
+            try {
+                return pipe(getCodecCommand(STANDARD_STREAM, STANDARD_STREAM, formatExtension, true, options),
+                        image, timeout);
+            } catch (CodecException e) {
+                byte[] codeStream = retryThroughFiles(image, imageExtension, formatExtension, true, options,
+                        timeout, e);
+                probePipes(chosenFormat, e);
+                return codeStream;
+            }
+        }
 
-        execute(encodingCommand);
+        return throughFiles(image, imageExtension, formatExtension, true, options, timeout);
+    }
+
+    public static BufferedImage decodeByteStream(byte[] bitstream, NewFormat chosenFormat) throws IOException {
+        return decodeByteStream(bitstream, chosenFormat, pipeableFormats.contains(chosenFormat));
+    }
 
-        File encodedImageFile = new File(encodedFileName);
-        encodedImageFile.deleteOnExit();
+    static BufferedImage decodeByteStream(byte[] bitstream, NewFormat chosenFormat, boolean usePipes)
+            throws IOException {
+        long timeout = getTimeoutMillis((long) bitstream.length * DECODED_PIXELS_PER_BYTE);
+        return CodecCircuitBreaker.getShared().execute(chosenFormat.getId(),
+                () -> CodecScheduler.getShared().execute(chosenFormat.getId(), CodecScheduler.Lane.INTERACTIVE,
+                        () -> decode(bitstream, chosenFormat, usePipes, timeout)));
+    }
 
-        return Files.readAllBytes(encodedImageFile.toPath());
+    private static BufferedImage decode(byte[] bitstream, NewFormat chosenFormat, boolean usePipes, long timeout)
+            throws IOException {
+        String formatExtension = chosenFormat.getFileExtension();
+        byte[] losslessImage = null;
 
+        if (usePipes) {
+            try {
+                losslessImage = pipe(getCodecCommand(STANDARD_STREAM, STANDARD_STREAM, formatExtension, false,
+                        new HashMap<>()), bitstream, timeout);
+            } catch (CodecException e) {
+                losslessImage = retryThroughFiles(bitstream, formatExtension, losslessFormat, false,
+                        new HashMap<>(), timeout, e);
+                probePipes(chosenFormat, e);
+            }
+        }
+
+        if (losslessImage == null)
+            losslessImage = throughFiles(bitstream, formatExtension, losslessFormat, false, new HashMap<>(),
+                    timeout);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(losslessImage));
+        if (image == null)
+            throw new IOException(String.format("Could not read the image decoded from '%s'", formatExtension));
+        return image;
     }
 
-    private static void execute(String encodingCommand) throws IOException {
-        // Execute the command and wait for it to finish
-        Process compression = Runtime.getRuntime().exec(encodingCommand);
+    /**
+     *
+     * @return Whether the codec of the format is currently run with pipes, rather than temporary files
+     */
+    public static boolean usesPipes(NewFormat format) {
+        return pipeableFormats.contains(format);
+    }
+
+    /**
+     * Runs the codec through files on an input it failed on through pipes.
+     *
+     * @param pipeFailure Why the run through pipes failed, kept along with the failure of this run
+     */
+    private static byte[] retryThroughFiles(byte[] input, String inputExtension, String outputExtension,
+                                            boolean encoding, HashMap<String, Number> options, long timeout,
+                                            CodecException pipeFailure) throws IOException {
+        try {
+            return throughFiles(input, inputExtension, outputExtension, encoding, options, timeout);
+        } catch (IOException e) {
+            e.addSuppressed(pipeFailure);
+            throw e;
+        }
+    }
+
+    /**
+     * Called once the codecs of the format failed through pipes on an image, but not through files. Encodes and
+     * decodes a small image through pipes, unless that already succeeded once, and stops using pipes for the
+     * format if the codecs fail on it as well.
+     *
+     * @param pipeFailure Why the image failed through pipes
+     */
+    private static void probePipes(NewFormat format, CodecException pipeFailure) throws InterruptedIOException {
+        if (!pipeableFormats.contains(format) || probedFormats.contains(format))
+            return;
+
+        String formatExtension = format.getFileExtension();
+        byte[] probe = PnmWriter.write(new BufferedImage(8, 8, BufferedImage.TYPE_BYTE_GRAY));
+        long timeout = getTimeoutMillis(64);
+        try {
+            byte[] codeStream = pipe(getCodecCommand(STANDARD_STREAM, STANDARD_STREAM, formatExtension, true,
+                    new HashMap<>()), probe, timeout);
+            pipe(getCodecCommand(STANDARD_STREAM, STANDARD_STREAM, formatExtension, false, new HashMap<>()),
+                    codeStream, timeout);
+            probedFormats.add(format);
+            logger.debug("Codecs of '{}' failed through pipes on an image, but not on the probe: {}",
+                    formatExtension, pipeFailure.getMessage());
+        } catch (CodecException e) {
+            if (pipeableFormats.remove(format))
+                logger.warn("Codecs of '{}' can not use pipes, falling back to temporary files: {}",
+                        formatExtension, pipeFailure.getMessage());
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            logger.debug("Could not probe the pipes of the codecs of '{}': {}", formatExtension, e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the codec with the input on its stdin.
+     *
+     * @param timeout Milliseconds after which the codec is killed
+     * @return What the codec wrote to its stdout
+     * @throws CodecException If the codec failed
+     * @throws CodecTimeoutException If the codec did not finish in time
+     */
+    private static byte[] pipe(List<String> command, byte[] input, long timeout) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        Process process = new ProcessBuilder(command).start();
+
+        Future<?> stdin = processStreams.submit(() -> {
+            try (OutputStream outputStream = process.getOutputStream()) {
+                outputStream.write(input);
+            }
+            return null;
+        });
+        Future<byte[]> stdout = processStreams.submit(() -> readFully(process.getInputStream()));
+        Future<byte[]> stderr = processStreams.submit(() -> readFully(process.getErrorStream()));
+
+        try {
+            if (!CodecThreads.waitFor(process, timeout, TimeUnit.MILLISECONDS))
+                throw new CodecTimeoutException(command, timeout);
+            // The streams are closed once the codec exits, unless a process it started holds them
+            byte[] output = stdout.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            int exitValue = process.exitValue();
+            String errors = new String(stderr.get(Math.max(0, deadline - System.nanoTime()),
+                    TimeUnit.NANOSECONDS)).trim();
+
+            try {
+                stdin.get();
+            } catch (ExecutionException e) {
+                // The codec stopped reading, which its exit code and errors explain
+                if (exitValue == 0)
+                    throw new CodecException(String.format("'%s' did not read its input", command.get(0)));
+            }
+
+            if (exitValue != 0 || output.length == 0)
+                throw new CodecException(String.format("'%s' failed with exit code %d: %s",
+                        String.join(" ", command), exitValue, errors));
+            return output;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format("Interrupted while running '%s'", command.get(0)));
+        } catch (TimeoutException e) {
+            throw new CodecTimeoutException(command, timeout);
+        } catch (ExecutionException e) {
+            throw new IOException(String.format("Could not read the output of '%s'", command.get(0)), e.getCause());
+        } finally {
+            ProcessTrees.destroy(process);
+        }
+    }
+
+    /**
+     * Runs the codec on a temporary copy of the input, for codecs that can not use pipes.
+     *
+     * @return Contents of the file written by the codec
+     */
+    private static byte[] throughFiles(byte[] input, String inputExtension, String outputExtension,
+                                       boolean encoding, HashMap<String, Number> options, long timeout)
+            throws IOException {
+        Path tmpDir = ImodecPluginSet.TMP_DIR_PATH;
+        Files.createDirectories(tmpDir);
+        Path inputFile = Files.createTempFile(tmpDir, "codec-", "." + inputExtension);
+        Path outputFile = inputFile.resolveSibling(inputFile.getFileName().toString()
+                .replace("." + inputExtension, "-out." + outputExtension));
+
         try {
-            compression.waitFor();
-        } catch (InterruptedException ignored) {}
+            Files.write(inputFile, input);
+            execute(getCodecCommand(inputFile.toString(), outputFile.toString(),
+                    encoding ? outputExtension : inputExtension, encoding, options), timeout);
+            return Files.readAllBytes(outputFile);
+        } finally {
+            Files.deleteIfExists(inputFile);
+            Files.deleteIfExists(outputFile);
+        }
+    }
 
-        if (compression.exitValue() != 0) {
-            logger.error("Problem executing process: '{}' failed unexpectedly with error '{}'.\n" +
-                    "Error code: %s", encodingCommand, compression.exitValue());
-            throw new AssertionError("Unexpected error");
+    /**
+     *
+     * @param timeout Milliseconds after which the codec is killed
+     * @throws CodecTimeoutException If the codec did not finish in time
+     */
+    private static void execute(List<String> command, long timeout) throws IOException {
+        // Execute the command and wait for it to finish
+        Process process = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(new File("/dev/null")))
+                .redirectErrorStream(true)
+                .start();
+        try {
+            if (!CodecThreads.waitFor(process, timeout, TimeUnit.MILLISECONDS))
+                throw new CodecTimeoutException(command, timeout);
+            int exitValue = process.exitValue();
+            if (exitValue != 0)
+                throw new CodecException(String.format("'%s' failed with exit code %d",
+                        String.join(" ", command), exitValue));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format("Interrupted while running '%s'", command.get(0)));
+        } finally {
+            ProcessTrees.destroy(process);
         }
     }
 
-    private static String getCodecCommand(String inputPath, String outputPath,
-                                          String formatExtension, boolean encoding, HashMap<String, Number> options) {
-        assert new File(inputPath).exists(): "Input file does not exist!";
-        assert !(new File(outputPath).exists()): "Output file already exists!";
+    private static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        for (int read; (read = inputStream.read(buffer)) != -1; )
+            bytes.write(buffer, 0, read);
+        return bytes.toByteArray();
+    }
 
+    /**
+     *
+     * @param inputPath Input file, or "-" for stdin
+     * @param outputPath Output file, or "-" for stdout
+     * @return Command and arguments of the codec
+     */
+    private static List<String> getCodecCommand(String inputPath, String outputPath,
+                                                String formatExtension, boolean encoding,
+                                                HashMap<String, Number> options) {
         switch (formatExtension) {
             case "jxl":
                 if (encoding) {
@@ -67,54 +425,53 @@ public class NewFormatsCodecs {
                             .getQualityParamValue());
                     Number effort = options.getOrDefault("effort", NewFormat.JPEG_XL.getSpeedParamValue());
 
-                    return String.format("cjxl %s %s --effort=%s --distance=%s",
-                            inputPath, outputPath, effort, distance);
+                    return Arrays.asList("cjxl", inputPath, outputPath, "--effort=" + effort,
+                            "--distance=" + distance);
                 }
-                return String.format("djxl %s %s", inputPath, outputPath);
+                if (STANDARD_STREAM.equals(outputPath))
+                    return Arrays.asList("djxl", inputPath, outputPath, "--output_format=" + losslessFormat);
+                return Arrays.asList("djxl", inputPath, outputPath);
             case "avif":
                 if (encoding) {
                     Number quality = options.getOrDefault("quality", NewFormat.AVIF.getQualityParamValue()),
                             speed = options.getOrDefault("speed", NewFormat.AVIF.getSpeedParamValue());
-                    return String.format("cavif -o %s --quality %s --speed %s %s", outputPath, quality, speed,
-                            inputPath);
+                    return Arrays.asList("cavif", "-o", outputPath, "--quality", quality.toString(),
+                            "--speed", speed.toString(), inputPath);
                 }
-                return String.format("avif_decode -f %s %s", inputPath, outputPath);
+                return Arrays.asList("avif_decode", "-f", inputPath, outputPath);
             case "webp":
                 if (encoding) {
                     Number quality = options.getOrDefault("quality", NewFormat.WEBP.getQualityParamValue()),
                             speed = options.getOrDefault("speed", NewFormat.WEBP.getSpeedParamValue());
-                    return String.format("cwebp -q %s -m %s %s -o %s", quality, speed, inputPath, outputPath);
+                    return Arrays.asList("cwebp", "-quiet", "-q", quality.toString(), "-m", speed.toString(),
+                            "-o", outputPath, "--", inputPath);
                 }
-                return String.format("dwebp %s -o %s", inputPath, outputPath);
+                return Arrays.asList("dwebp", "-quiet", "-o", outputPath, "--", inputPath);
             default:
                 throw new IllegalArgumentException("Format is not valid!");
         }
 
     }
 
-    public static BufferedImage decodeByteStream(byte[] bitstream, NewFormat chosenFormat) throws IOException {
-        String encodedFileName = String.format("%s/%s.%s", ImodecPluginSet.TMP_DIR_PATH,
-                Arrays.hashCode(bitstream), chosenFormat.getFileExtension());
-        Files.write(Paths.get(encodedFileName), bitstream);
-        return decode(encodedFileName, chosenFormat.getFileExtension());
-    }
-
-    private static BufferedImage decode(String inputFilePath, String formatExtension) throws IOException {
-
-        String decodedFileName = inputFilePath.replace(formatExtension, losslessFormat);
-        File decodedImageFile = new File(decodedFileName);
-        if (decodedImageFile.exists())
-            return ImageIO.read(decodedImageFile);
+    /**
+     * A codec ran but did not succeed.
+     */
+    static class CodecException extends IOException {
 
-        String decodingCommand = getCodecCommand(inputFilePath, decodedFileName, formatExtension, false,
-                new HashMap<>());
-
-        execute(decodingCommand);
-
-        decodedImageFile.deleteOnExit();
+        CodecException(String message) {
+            super(message);
+        }
+    }
 
-        return ImageIO.read(decodedImageFile);
+    /**
+     * A codec was killed for not finishing in time. Unlike a {@link CodecException}, it is not a reason to go
+     * through temporary files instead of pipes.
+     */
+    static class CodecTimeoutException extends IOException {
 
+        CodecTimeoutException(List<String> command, long timeout) {
+            super(String.format("'%s' did not finish in %d ms", String.join(" ", command), timeout));
+        }
     }
 
 }
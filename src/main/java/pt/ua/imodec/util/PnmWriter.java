@@ -0,0 +1,89 @@
+package pt.ua.imodec.util;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes images as binary PGM (grayscale) or PPM (color), which the encoders read without decompressing them,
+ * unlike PNG.
+ */
+public class PnmWriter {
+
+    private PnmWriter() {}
+
+    /**
+     * Grayscale images of up to 16 bits become a PGM, with their samples as they are and the maximum value
+     * given by the bits of their color model (4095 for 12-bit frames, for instance); the others, including
+     * single-band images whose samples are not gray levels (e.g. indices into a palette), become an 8-bit PPM of
+     * their sRGB colors.
+     *
+     * @return The PGM or PPM file contents
+     */
+    public static byte[] write(BufferedImage image) {
+        Raster raster = image.getRaster();
+        int dataType = raster.getDataBuffer().getDataType();
+        ColorModel colorModel = image.getColorModel();
+
+        if (raster.getNumBands() == 1 && (dataType == DataBuffer.TYPE_BYTE || dataType == DataBuffer.TYPE_USHORT)
+                && colorModel instanceof ComponentColorModel
+                && colorModel.getColorSpace().getType() == ColorSpace.TYPE_GRAY)
+            return writeGray(raster, colorModel.getComponentSize(0));
+
+        return writeRgb(image);
+    }
+
+    /**
+     *
+     * @return The file extension of the given PNM contents
+     */
+    public static String getFileExtension(byte[] pnm) {
+        return pnm[1] == '5' ? "pgm" : "ppm";
+    }
+
+    private static byte[] writeGray(Raster raster, int bits) {
+        int width = raster.getWidth(), height = raster.getHeight();
+        int maxValue = (1 << Math.min(Math.max(bits, 1), 16)) - 1;
+        int bytesPerSample = maxValue > 255 ? 2 : 1;
+
+        byte[] header = header("P5", width, height, maxValue);
+        ByteBuffer pnm = ByteBuffer.allocate(header.length + width * height * bytesPerSample).put(header);
+
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            raster.getSamples(0, y, width, 1, 0, row);
+            for (int sample : row) {
+                // Samples are big endian
+                if (bytesPerSample == 2)
+                    pnm.putShort((short) Math.min(sample, maxValue));
+                else
+                    pnm.put((byte) Math.min(sample, maxValue));
+            }
+        }
+        return pnm.array();
+    }
+
+    private static byte[] writeRgb(BufferedImage image) {
+        int width = image.getWidth(), height = image.getHeight();
+
+        byte[] header = header("P6", width, height, 255);
+        ByteBuffer pnm = ByteBuffer.allocate(header.length + width * height * 3).put(header);
+
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int rgb : row)
+                pnm.put((byte) (rgb >> 16)).put((byte) (rgb >> 8)).put((byte) rgb);
+        }
+        return pnm.array();
+    }
+
+    private static byte[] header(String magic, int width, int height, int maxValue) {
+        return String.format("%s\n%d %d\n%d\n", magic, width, height, maxValue).getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,60 @@
+package pt.ua.imodec.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.stream.Stream;
+
+/**
+ * Kills processes along with the processes they started, which would otherwise be left running, holding the
+ * pipes of the codec open.
+ * <p>
+ * The descendants of a process can only be listed from Java 9 on (ProcessHandle), which is looked up by
+ * reflection since the plugin is built for Java 8. On Java 8 only the process itself is killed.
+ */
+class ProcessTrees {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProcessTrees.class);
+
+    private static final Method descendants, destroyForcibly;
+
+    static {
+        Method processDescendants = null, handleDestroyForcibly = null;
+        try {
+            processDescendants = Process.class.getMethod("descendants");
+            handleDestroyForcibly = Class.forName("java.lang.ProcessHandle").getMethod("destroyForcibly");
+        } catch (ReflectiveOperationException e) {
+            logger.debug("Processes started by the codecs can not be listed before Java 9");
+        }
+        descendants = processDescendants;
+        destroyForcibly = handleDestroyForcibly;
+    }
+
+    private ProcessTrees() {}
+
+    /**
+     * Kills the process and its descendants, which are listed first, since they are no longer the process'
+     * once it is gone. Does nothing to processes that already exited, so the process table is only walked for
+     * the processes that timed out or were interrupted.
+     */
+    static void destroy(Process process) {
+        if (!process.isAlive())
+            return;
+
+        if (descendants != null) {
+            try {
+                ((Stream<?>) descendants.invoke(process)).forEach(handle -> {
+                    try {
+                        destroyForcibly.invoke(handle);
+                    } catch (ReflectiveOperationException e) {
+                        logger.warn("Could not kill a process started by a codec", e);
+                    }
+                });
+            } catch (ReflectiveOperationException e) {
+                logger.warn("Could not list the processes started by a codec", e);
+            }
+        }
+        process.destroyForcibly();
+    }
+}
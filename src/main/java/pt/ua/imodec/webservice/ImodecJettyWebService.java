@@ -9,12 +9,14 @@ import org.slf4j.LoggerFactory;
 import pt.ua.dicoogle.sdk.StorageInputStream;
 import pt.ua.dicoogle.sdk.core.DicooglePlatformInterface;
 import pt.ua.dicoogle.sdk.core.PlatformCommunicatorInterface;
+import pt.ua.imodec.codecs.CodecRegistry;
 import pt.ua.imodec.storage.ImodecStoragePlugin;
 import pt.ua.imodec.util.*;
 import pt.ua.imodec.datastructs.formats.Format;
 import pt.ua.imodec.datastructs.formats.Native;
 import pt.ua.imodec.datastructs.formats.NewFormat;
 
+import javax.imageio.ImageIO;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -22,9 +24,7 @@ import javax.servlet.http.HttpServletResponse;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * Jetty Servlet-based web service, based on bioinformatics-ua/dicoogle-plugin-sample
@@ -37,7 +37,8 @@ public class ImodecJettyWebService extends HttpServlet implements PlatformCommun
     private static final String sopInstanceUIDParameterName = "siuid";
     private static final String transferSyntaxUIDParameterName = "tsuid";
     private static final String formatIdParameterName = "codec";
-    public static final String storageScheme = new ImodecStoragePlugin().getScheme();
+    private static final String frameParameterName = "frame";
+    public static final String storageScheme = ImodecStoragePlugin.SCHEME;
 
     private DicooglePlatformInterface platform;
 
@@ -63,9 +64,8 @@ public class ImodecJettyWebService extends HttpServlet implements PlatformCommun
         boolean isMultiFrame = dicomObject.getInt(Tag.NumberOfFrames) > 1;
 
         String tsUID = dicomObject.getString(Tag.TransferSyntaxUID);
-        Format chosenFormat = Arrays.stream(((Format[]) NewFormat.values()))
-                .filter(format -> format.getTransferSyntax().uid().equals(tsUID))
-                .findFirst()
+        Format chosenFormat = NewFormat.fromTransferSyntaxUID(tsUID)
+                .map(Format.class::cast)
                 .orElse(Native.UNCHANGED);
 
         if (isMultiFrame) {
@@ -97,15 +97,18 @@ public class ImodecJettyWebService extends HttpServlet implements PlatformCommun
 
                 return;
             } else if (chosenFormat instanceof NewFormat) {
-                response.setContentType("text/html;charset=utf-8");
-
-                PrintWriter printWriter = response.getWriter();
-
-                String output = "Displaying multi-frame dicom encoded with recent formats is not yet supported!";
-
-                printWriter.printf("<head/><body>%s</body>\n", output);
-                logger.warn(output);
-
+                // A single frame, read without the others through the storage's frame index
+                int frame = Integer.parseInt(Optional.ofNullable(request.getParameter(frameParameterName))
+                        .orElse("0"));
+                ImodecStoragePlugin imodecStorage = (ImodecStoragePlugin) this.platform
+                        .getStorageForSchema(storageScheme);
+                byte[] codeStream = imodecStorage.getEncodedFrame(extractRequestedUri(request), frame);
+                BufferedImage image = CodecRegistry.getShared().get((NewFormat) chosenFormat).decode(codeStream);
+
+                response.setContentType("image/png");
+                try (OutputStream servletOutputStream = new BufferedOutputStream(response.getOutputStream())) {
+                    ImageIO.write(image, "png", servletOutputStream);
+                }
                 return;
             }
         }
@@ -135,48 +138,42 @@ public class ImodecJettyWebService extends HttpServlet implements PlatformCommun
      * @throws IOException
      */
     private DicomInputStream extractRequestedDicomFromStorage(HttpServletRequest request) throws IOException {
+        return getDicomInputStream(extractRequestedUri(request));
+    }
+
+    /**
+     *
+     * @return URI of the stored object the request is for
+     */
+    private URI extractRequestedUri(HttpServletRequest request) {
         String sopInstanceUID = request.getParameter(sopInstanceUIDParameterName),
                 transferSyntaxUID = request.getParameter(transferSyntaxUIDParameterName),
                 codecId = request.getParameter(formatIdParameterName);
 
         if (transferSyntaxUID == null && codecId != null) {
-            Format format = Arrays.stream((Format[]) (NewFormat.values()))
-                    .filter(newFormat -> newFormat.getId().equals(codecId))
-                    .findFirst()
+            Format format = NewFormat.fromId(codecId)
+                    .map(Format.class::cast)
                     .orElse(Native.UNCHANGED);
 
             transferSyntaxUID = format.getTransferSyntax().uid();
         } else if (transferSyntaxUID == null)
             transferSyntaxUID = findNativeVersionTS(sopInstanceUID);
 
-        URI uri = URI.create(storageScheme + "://" + sopInstanceUID + "/" + transferSyntaxUID);
-
-        return getDicomInputStream(uri);
+        return ImodecStoragePlugin.toUri(sopInstanceUID, transferSyntaxUID);
     }
 
     private String findNativeVersionTS(String sopInstanceUID) {
-        String transferSyntaxUID;
-        Collection<Native> nativeUIDs = Arrays.stream(Native.values())
+        ImodecStoragePlugin imodecStorage = ((ImodecStoragePlugin) this.platform.getStorageForSchema(storageScheme));
+        Map<String, Long> storedVariants = imodecStorage.getStoredVariants(sopInstanceUID);
+
+        return Arrays.stream(Native.values())
                 .filter(aNative -> aNative.getTransferSyntax() != null)
-                .collect(Collectors.toList());
-
-        String imodecStorageScheme = new ImodecStoragePlugin().getScheme();
-        ImodecStoragePlugin imodecStorage = ((ImodecStoragePlugin) this.platform.getStorageForSchema(imodecStorageScheme));
-
-        transferSyntaxUID = nativeUIDs.stream().filter(aNative -> {
-                    try {
-                        return imodecStorage.containsURI(
-                                new URI(String.format("%s://%s/%s",
-                                        imodecStorageScheme, sopInstanceUID, aNative.getTransferSyntax().uid())
-                                )
-                        );
-                    } catch (URISyntaxException e) {
-                        throw new RuntimeException(e);
-                    }
-                }).findFirst()
-                .orElseThrow(NoSuchElementException::new) // TODO: 19/09/22 Give a better error message using logger perhaps
-                .getTransferSyntax().uid();
-        return transferSyntaxUID;
+                .map(aNative -> aNative.getTransferSyntax().uid())
+                .filter(storedVariants::containsKey)
+                .findFirst()
+                .orElseThrow(() -> new NoSuchElementException(
+                        String.format("No native version of sop instance uid='%s' was found at the storage!",
+                                sopInstanceUID)));
     }
 
     private DicomInputStream getDicomInputStream(URI uri) throws IOException {
@@ -0,0 +1,66 @@
+package pt.ua.imodec.util;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The threads that orchestrate the codec processes: the workers that encode frames, each waiting for a codec
+ * process at a time, and the threads that feed and drain the processes' streams.
+ * <p>
+ * Java 21 variant of the class, loaded from the multi-release jar instead of the one in {@code src/main/java}:
+ * the same work runs on virtual threads, a few kilobytes of stack each while blocked on a process, so the number
+ * of workers can be raised to thousands. Reading and writing the pipes still holds a carrier thread for the
+ * duration of each call, which the JDK compensates for.
+ */
+public class CodecThreads {
+
+    private CodecThreads() {}
+
+    /**
+     *
+     * @return Whether the threads made here are virtual
+     */
+    public static boolean areVirtual() {
+        return true;
+    }
+
+    /**
+     *
+     * @param name Prefix of the threads' names
+     * @param workers Most tasks run at a time
+     * @return A pool of virtual threads, which queues the tasks beyond the workers
+     */
+    public static ExecutorService newWorkerPool(String name, int workers) {
+        return Executors.newFixedThreadPool(workers, Thread.ofVirtual().name(name + "-", 1).factory());
+    }
+
+    /**
+     *
+     * @param name Prefix of the threads' names
+     * @return A virtual thread per task, for tasks that mostly block on a process' stream
+     */
+    public static ExecutorService newStreamPool(String name) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory());
+    }
+
+    /**
+     * Waits for the process to exit, for at most the given time. Unlike {@link Process#waitFor(long, TimeUnit)},
+     * which waits on a monitor, this parks a virtual thread without holding its carrier.
+     *
+     * @return Whether the process exited
+     */
+    public static boolean waitFor(Process process, long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            process.onExit().get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            // Never completes exceptionally
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
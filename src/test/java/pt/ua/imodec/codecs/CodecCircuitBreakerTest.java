@@ -0,0 +1,75 @@
+package pt.ua.imodec.codecs;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CodecCircuitBreakerTest {
+
+    private static final CodecScheduler.CodecTask<String> SUCCEEDING = () -> "done";
+    private static final CodecScheduler.CodecTask<String> FAILING = () -> {
+        throw new IOException("Codec failed");
+    };
+
+    @Test
+    void circuitOpensAfterFailuresInARow() throws Exception {
+        CodecCircuitBreaker breaker = new CodecCircuitBreaker(3, 60_000);
+
+        for (int i = 0; i < 2; i++)
+            assertThrows(IOException.class, () -> breaker.execute("avif", FAILING));
+        // A success resets the count
+        assertEquals("done", breaker.execute("avif", SUCCEEDING));
+        for (int i = 0; i < 2; i++)
+            assertThrows(IOException.class, () -> breaker.execute("avif", FAILING));
+        assertEquals(CodecCircuitBreaker.State.CLOSED, breaker.getState("avif"));
+
+        IOException failure = assertThrows(IOException.class, () -> breaker.execute("avif", FAILING));
+        assertFalse(failure instanceof CodecUnavailableException);
+        assertTrue(breaker.isOpen("avif"));
+        assertThrows(CodecUnavailableException.class, () -> breaker.execute("avif", SUCCEEDING));
+
+        // The other codecs are still run
+        assertEquals("done", breaker.execute("jxl", SUCCEEDING));
+    }
+
+    @Test
+    void trialClosesOrReopensTheCircuit() throws Exception {
+        CodecCircuitBreaker breaker = new CodecCircuitBreaker(1, 0);
+
+        assertThrows(IOException.class, () -> breaker.execute("webp", FAILING));
+        assertEquals(CodecCircuitBreaker.State.HALF_OPEN, breaker.getState("webp"));
+
+        // A failed trial opens the circuit again, an interrupted one lets another trial through
+        assertThrows(IOException.class, () -> breaker.execute("webp", FAILING));
+        assertThrows(InterruptedIOException.class, () -> breaker.execute("webp", () -> {
+            throw new InterruptedIOException();
+        }));
+        assertEquals(CodecCircuitBreaker.State.HALF_OPEN, breaker.getState("webp"));
+
+        assertEquals("done", breaker.execute("webp", SUCCEEDING));
+        assertEquals(CodecCircuitBreaker.State.CLOSED, breaker.getState("webp"));
+    }
+
+    @Test
+    void onlyOneTrialAtATime() throws Exception {
+        CodecCircuitBreaker breaker = new CodecCircuitBreaker(1, 0);
+        assertThrows(IOException.class, () -> breaker.execute("jxl", FAILING));
+
+        String result = breaker.execute("jxl", () -> {
+            assertEquals(CodecCircuitBreaker.State.OPEN, breaker.getState("jxl"));
+            assertThrows(CodecUnavailableException.class, () -> breaker.execute("jxl", SUCCEEDING));
+            return "trial";
+        });
+        assertEquals("trial", result);
+        assertEquals(CodecCircuitBreaker.State.CLOSED, breaker.getState("jxl"));
+    }
+
+    @Test
+    void invalidLimits() {
+        assertThrows(IllegalArgumentException.class, () -> new CodecCircuitBreaker(0, 1000));
+        assertThrows(IllegalArgumentException.class, () -> new CodecCircuitBreaker(1, -1));
+    }
+}
@@ -0,0 +1,163 @@
+package pt.ua.imodec.codecs;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import pt.ua.imodec.datastructs.formats.NewFormat;
+import pt.ua.imodec.util.validators.CodecsInstalledValidator;
+import pt.ua.imodec.util.validators.OSValidator;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CodecRegistryTest {
+
+    /**
+     * Stands for an in-process implementation of a format: it keeps the samples as they are.
+     */
+    static class RawCodec implements Codec {
+
+        private final NewFormat format;
+
+        RawCodec(NewFormat format) {
+            this.format = format;
+        }
+
+        @Override
+        public String getId() {
+            return format.getId();
+        }
+
+        @Override
+        public String getTransferSyntaxUID() {
+            return format.getTransferSyntax().uid();
+        }
+
+        @Override
+        public CodecCapabilities getCapabilities() {
+            return new CodecCapabilities(8, 1, true, true);
+        }
+
+        @Override
+        public int getPriority() {
+            return 1;
+        }
+
+        @Override
+        public byte[] encode(BufferedImage image, Map<String, Number> options) {
+            byte[] samples = new byte[image.getWidth() * image.getHeight()];
+            image.getRaster().getDataElements(0, 0, image.getWidth(), image.getHeight(), samples);
+            return samples;
+        }
+
+        @Override
+        public BufferedImage decode(byte[] codeStream) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (raw)", format.getId());
+        }
+    }
+
+    @Test
+    void commandLineCodecsAreLoaded() {
+        CodecRegistry registry = CodecRegistry.getShared();
+
+        for (NewFormat format : NewFormat.values()) {
+            Codec codec = registry.get(format);
+            assertTrue(codec instanceof CommandLineCodec);
+            assertSame(codec, registry.findByTransferSyntax(format.getTransferSyntax().uid()).orElse(null));
+            assertFalse(codec.getCapabilities().isInProcess());
+        }
+        assertFalse(registry.find("jpeg").isPresent());
+        assertFalse(registry.findByTransferSyntax("1.2.840.10008.1.2.1").isPresent());
+    }
+
+    @Test
+    void codecOfHighestPriorityIsUsed() {
+        CodecRegistry registry = CodecRegistry.load(Collections.singletonList(new CommandLineCodecProvider()));
+        Codec commandLineCodec = registry.get(NewFormat.WEBP);
+        Codec rawCodec = new RawCodec(NewFormat.WEBP);
+
+        registry.register(rawCodec);
+        assertSame(rawCodec, registry.get(NewFormat.WEBP));
+        assertSame(rawCodec, registry.findByTransferSyntax(NewFormat.WEBP.getTransferSyntax().uid()).orElse(null));
+        assertEquals(2, registry.getAll("webp").size());
+        // The other formats keep their codec
+        assertTrue(registry.get(NewFormat.JPEG_XL) instanceof CommandLineCodec);
+
+        registry.unregister(rawCodec);
+        assertSame(commandLineCodec, registry.get(NewFormat.WEBP));
+    }
+
+    @Test
+    void capabilities() {
+        BufferedImage gray = new BufferedImage(4, 4, BufferedImage.TYPE_USHORT_GRAY);
+        BufferedImage rgb = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+
+        assertTrue(new CodecCapabilities(16, 3, false, false).supports(gray));
+        assertFalse(new CodecCapabilities(8, 3, false, false).supports(gray));
+        assertTrue(new CodecCapabilities(8, 3, false, false).supports(rgb));
+        assertFalse(new CodecCapabilities(8, 1, false, false).supports(rgb));
+    }
+
+    @Test
+    void codecsThatKeepTheSamplesArePreferred() {
+        CodecRegistry registry = CodecRegistry.load(Collections.singletonList(new CommandLineCodecProvider()));
+        Codec commandLineCodec = registry.get(NewFormat.JPEG_XL);
+        Codec rawCodec = new RawCodec(NewFormat.JPEG_XL);
+        registry.register(rawCodec);
+
+        // The raw codec comes first, but only keeps 8-bit grayscale samples
+        assertSame(rawCodec, registry.get(NewFormat.JPEG_XL,
+                new BufferedImage(4, 4, BufferedImage.TYPE_BYTE_GRAY)));
+        assertSame(commandLineCodec, registry.get(NewFormat.JPEG_XL,
+                new BufferedImage(4, 4, BufferedImage.TYPE_USHORT_GRAY)));
+        assertSame(commandLineCodec, registry.get(NewFormat.JPEG_XL,
+                new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB)));
+
+        // With no codec that keeps them, the samples are reduced by the one of highest priority
+        Codec avifCodec = registry.get(NewFormat.AVIF);
+        assertSame(avifCodec, registry.get(NewFormat.AVIF, new BufferedImage(4, 4, BufferedImage.TYPE_USHORT_GRAY)));
+    }
+
+    /**
+     * Compares the encoding time of the codecs of each format, e.g. a command line one and an in-process one.
+     */
+    @Test
+    void compareCodecs() throws IOException {
+        Assumptions.assumeTrue(CodecsInstalledValidator.validate());
+        Assumptions.assumeTrue(OSValidator.validate());
+
+        CodecRegistry registry = CodecRegistry.load(Collections.singletonList(new CommandLineCodecProvider()));
+        for (NewFormat format : NewFormat.values())
+            registry.register(new RawCodec(format));
+
+        BufferedImage image = new BufferedImage(512, 512, BufferedImage.TYPE_BYTE_GRAY);
+        Random random = new Random(512);
+        for (int y = 0; y < 512; y++)
+            for (int x = 0; x < 512; x++)
+                image.getRaster().setSample(x, y, 0, (x + y + random.nextInt(16)) & 0xFF);
+
+        int frames = 5;
+        for (String id : registry.getIds()) {
+            for (Codec codec : registry.getAll(id)) {
+                long start = System.nanoTime();
+                int length = 0;
+                for (int i = 0; i < frames; i++)
+                    length = codec.encode(image, Collections.emptyMap()).length;
+                double millis = (System.nanoTime() - start) / 1e6 / frames;
+
+                assertTrue(length > 0);
+                System.out.printf("[CodecRegistry] %s [%s]: %.1f ms/frame, %d bytes%n", codec,
+                        codec.getCapabilities(), millis, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package pt.ua.imodec.codecs;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CodecSchedulerTest {
+
+    static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out");
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    void runsAreBoundedOverallAndPerCodec() throws Exception {
+        CodecScheduler scheduler = new CodecScheduler(3, 100, Collections.singletonMap("avif", 1),
+                CodecScheduler.DEFAULT_MIN_BULK_SHARE);
+        AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+        AtomicInteger runningAvif = new AtomicInteger(), maxRunningAvif = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            String codecId = i % 2 == 0 ? "avif" : "webp";
+            int result = i;
+            results.add(executor.submit(() -> scheduler.execute(codecId, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                if (codecId.equals("avif"))
+                    maxRunningAvif.accumulateAndGet(runningAvif.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                if (codecId.equals("avif"))
+                    runningAvif.decrementAndGet();
+                running.decrementAndGet();
+                return result;
+            })));
+        }
+        for (int i = 0; i < results.size(); i++)
+            assertEquals(i, (int) results.get(i).get());
+        executor.shutdown();
+
+        assertEquals(3, maxRunning.get());
+        assertEquals(1, maxRunningAvif.get());
+        CodecScheduler.Metrics metrics = scheduler.getMetrics();
+        assertEquals(64, metrics.getCompleted());
+        assertEquals(0, metrics.getRunning());
+        assertEquals(0, metrics.getQueueDepth());
+        System.out.printf("[CodecScheduler] %s%n", metrics);
+    }
+
+    @Test
+    void fullQueueHoldsBackNewRuns() throws Exception {
+        CodecScheduler scheduler = new CodecScheduler(1, 1, Collections.emptyMap(),
+                CodecScheduler.DEFAULT_MIN_BULK_SHARE);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(executor.submit(() -> scheduler.execute("jxl", () -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return "done";
+            })));
+        }
+
+        // One runs, one is queued and the last one waits for room in the queue
+        waitUntil(() -> scheduler.getMetrics().getBlocked() == 1);
+        CodecScheduler.Metrics metrics = scheduler.getMetrics();
+        assertEquals(1, metrics.getRunning());
+        assertEquals(1, metrics.getQueueDepth());
+        assertEquals(Collections.singletonMap("jxl", 1), metrics.getRunningByCodec());
+
+        release.countDown();
+        for (Future<String> result : results)
+            assertEquals("done", result.get());
+        executor.shutdown();
+        assertEquals(3, scheduler.getMetrics().getCompleted());
+    }
+
+    @Test
+    void interruptedRunsLeaveTheQueue() throws Exception {
+        CodecScheduler scheduler = new CodecScheduler(1, 10, Collections.emptyMap(),
+                CodecScheduler.DEFAULT_MIN_BULK_SHARE);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        Future<Object> running = executor.submit(() -> scheduler.execute("webp", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return null;
+        }));
+        waitUntil(() -> scheduler.getMetrics().getRunning() == 1);
+        Future<Object> queued = executor.submit(() -> scheduler.execute("webp", () -> null));
+        waitUntil(() -> scheduler.getMetrics().getQueueDepth() == 1);
+
+        queued.cancel(true);
+        waitUntil(() -> scheduler.getMetrics().getQueueDepth() == 0);
+        release.countDown();
+        running.get();
+        executor.shutdown();
+
+        Map<String, Integer> runningByCodec = scheduler.getMetrics().getRunningByCodec();
+        assertTrue(runningByCodec.isEmpty());
+        assertEquals(1, scheduler.getMetrics().getCompleted());
+    }
+
+    @Test
+    void invalidLimits() {
+        assertThrows(IllegalArgumentException.class, () -> new CodecScheduler(0, 1, Collections.emptyMap(), 0));
+        assertThrows(IllegalArgumentException.class,
+                () -> new CodecScheduler(1, 1, Collections.singletonMap("avif", 0), 0));
+        assertThrows(IllegalArgumentException.class, () -> new CodecScheduler(1, 1, Collections.emptyMap(), 1.5));
+    }
+
+    @Test
+    void interactiveRunsGoFirstButBulkKeepsItsShare() throws Exception {
+        CodecScheduler scheduler = new CodecScheduler(1, 100, Collections.emptyMap(), 0.2);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+
+        Future<Object> blocker = executor.submit(() -> scheduler.execute("jxl", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return null;
+        }));
+        waitUntil(() -> scheduler.getMetrics().getRunning() == 1);
+
+        List<CodecScheduler.Lane> admissions = Collections.synchronizedList(new ArrayList<>());
+        List<Future<Object>> results = new ArrayList<>();
+        for (CodecScheduler.Lane lane : new CodecScheduler.Lane[]{CodecScheduler.Lane.BULK,
+                CodecScheduler.Lane.INTERACTIVE}) {
+            for (int i = 0; i < 10; i++) {
+                results.add(executor.submit(() -> scheduler.execute("jxl", lane, () -> admissions.add(lane))));
+                int queued = results.size();
+                waitUntil(() -> scheduler.getMetrics().getQueueDepth() == queued);
+            }
+        }
+        assertEquals(10, scheduler.getMetrics().getQueueDepth(CodecScheduler.Lane.INTERACTIVE));
+
+        release.countDown();
+        blocker.get();
+        for (Future<Object> result : results)
+            result.get();
+        executor.shutdown();
+
+        // A bulk run every fifth, while both lanes wait, although the bulk runs were queued first
+        List<CodecScheduler.Lane> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            expected.add(i % 5 == 4 && i < 12 || i >= 12 ? CodecScheduler.Lane.BULK
+                    : CodecScheduler.Lane.INTERACTIVE);
+        assertEquals(expected, admissions);
+    }
+
+    /**
+     *
+     * @return 99th percentile of the latency of the views done one after the other, while ingest keeps all the
+     * runs busy
+     */
+    private static long p99ViewLatencyUnderIngest(CodecScheduler scheduler, CodecScheduler.Lane viewLane)
+            throws Exception {
+        int ingestThreads = 8, views = 100;
+        AtomicBoolean ingesting = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(ingestThreads);
+        CodecScheduler.CodecTask<Object> encode = () -> {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return null;
+        };
+        for (int i = 0; i < ingestThreads; i++)
+            executor.submit(() -> {
+                while (ingesting.get())
+                    scheduler.execute("avif", CodecScheduler.Lane.BULK, encode);
+                return null;
+            });
+        waitUntil(() -> scheduler.getMetrics().getQueueDepth(CodecScheduler.Lane.BULK) > 0);
+
+        long[] latencies = new long[views];
+        for (int i = 0; i < views; i++) {
+            long start = System.nanoTime();
+            scheduler.execute("jxl", viewLane, () -> null);
+            latencies[i] = System.nanoTime() - start;
+        }
+        ingesting.set(false);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        Arrays.sort(latencies);
+        return latencies[(int) Math.ceil(0.99 * views) - 1];
+    }
+
+    @Test
+    void viewsAreNotQueuedBehindIngest() throws Exception {
+        long fifo = p99ViewLatencyUnderIngest(
+                new CodecScheduler(2, 100, Collections.emptyMap(), 0.2), CodecScheduler.Lane.BULK);
+        CodecScheduler scheduler = new CodecScheduler(2, 100, Collections.emptyMap(), 0.2);
+        long prioritized = p99ViewLatencyUnderIngest(scheduler, CodecScheduler.Lane.INTERACTIVE);
+
+        System.out.printf("[CodecScheduler] p99 view latency under ingest: %.1f ms in arrival order, "
+                        + "%.1f ms interactive; %s%n", fifo / 1e6, prioritized / 1e6, scheduler.getMetrics());
+        assertTrue(prioritized < fifo);
+        assertTrue(scheduler.getMetrics().getP99Wait(CodecScheduler.Lane.INTERACTIVE, TimeUnit.NANOSECONDS)
+                < scheduler.getMetrics().getP99Wait(CodecScheduler.Lane.BULK, TimeUnit.NANOSECONDS));
+    }
+}
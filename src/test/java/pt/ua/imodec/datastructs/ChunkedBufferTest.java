@@ -0,0 +1,104 @@
+package pt.ua.imodec.datastructs;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkedBufferTest {
+
+    static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100];
+        int n;
+        while ((n = inputStream.read(buffer)) != -1)
+            bos.write(buffer, 0, n);
+        return bos.toByteArray();
+    }
+
+    @Test
+    void writeAcrossChunks() throws IOException {
+        byte[] data = randomBytes(1000);
+
+        ChunkedBuffer chunkedBuffer = new ChunkedBuffer(64);
+        chunkedBuffer.write(data, 0, 10);
+        chunkedBuffer.write(data[10]);
+        chunkedBuffer.write(data, 11, data.length - 11);
+        assertEquals(data.length, chunkedBuffer.size());
+
+        Blob blob = chunkedBuffer.toBlob();
+        assertEquals(data.length, blob.size());
+        assertArrayEquals(data, readAll(blob.newInputStream()));
+
+        // The views cover the content in order, and the last chunk carries no slack
+        ByteBuffer[] buffers = blob.asByteBuffers();
+        assertEquals(16, buffers.length);
+        assertEquals(1000 - 15 * 64, buffers[15].remaining());
+        assertThrows(UnsupportedOperationException.class, blob::asByteBuffer);
+        assertThrows(ReadOnlyBufferException.class, () -> buffers[0].put((byte) 0));
+
+        // Each view is independent of the others
+        InputStream inputStream = blob.newInputStream();
+        assertEquals(100, inputStream.skip(100));
+        assertEquals(data[100] & 0xFF, inputStream.read());
+        assertArrayEquals(data, readAll(blob.newInputStream()));
+
+        assertThrows(IllegalStateException.class, () -> chunkedBuffer.write(0));
+    }
+
+    @Test
+    void rangesAreReadAcrossChunks() {
+        byte[] data = randomBytes(1000);
+        ChunkedBuffer chunkedBuffer = new ChunkedBuffer(64);
+        chunkedBuffer.write(data, 0, data.length);
+        Blob blob = chunkedBuffer.toBlob();
+
+        byte[] range = new byte[200];
+        blob.read(100, range);
+        for (int i = 0; i < range.length; i++)
+            assertEquals(data[100 + i], range[i]);
+
+        byte[] lastByte = new byte[1];
+        blob.read(999, lastByte);
+        assertEquals(data[999], lastByte[0]);
+        assertThrows(IndexOutOfBoundsException.class, () -> blob.read(900, new byte[101]));
+    }
+
+    @Test
+    void emptyBuffer() throws IOException {
+        Blob blob = new ChunkedBuffer().toBlob();
+
+        assertEquals(0, blob.size());
+        assertEquals(-1, blob.newInputStream().read());
+        assertEquals(0, blob.asByteBuffer().remaining());
+    }
+
+    @Test
+    void pooledChunksAreReused() {
+        ChunkPool pool = new ChunkPool(64, 4);
+
+        ChunkedBuffer chunkedBuffer = new ChunkedBuffer(pool);
+        chunkedBuffer.write(randomBytes(256), 0, 256);
+        chunkedBuffer.toBlob();
+        chunkedBuffer.release();
+        assertEquals(4, pool.size());
+
+        ChunkedBuffer chunkedBuffer2 = new ChunkedBuffer(pool);
+        chunkedBuffer2.write(randomBytes(100), 0, 100);
+        // One chunk is still taken, the other was trimmed into an exact-size copy and given back
+        chunkedBuffer2.toBlob();
+        assertEquals(3, pool.size());
+    }
+}
@@ -0,0 +1,124 @@
+package pt.ua.imodec.datastructs;
+
+import org.junit.jupiter.api.Test;
+import pt.ua.imodec.util.Benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static pt.ua.imodec.util.TestCommons.usedMemory;
+
+class CompactKeyMapTest {
+
+    private static final String[] TRANSFER_SYNTAXES = {
+            "1.2.840.10008.1.2.1", "1.2.840.10008.1.2.4.110", "1.2.840.10008.1.2.4.201", "1.2.826.0.1.3680043.2.682.1"
+    };
+
+    /**
+     *
+     * @return Storage key with a SOP instance UID in the style of those generated by modalities
+     */
+    static String key(int i, String transferSyntaxUID) {
+        return String.format("imodec-mem://1.2.826.0.1.3680043.8.1055.1.20111103111204%09d.%d/%s",
+                i, i * 7919L % 100000, transferSyntaxUID);
+    }
+
+    @Test
+    void putGetRemove() {
+        CompactKeyMap<Integer> map = new CompactKeyMap<>();
+        int entries = 20000;
+
+        for (int i = 0; i < entries; i++)
+            assertNull(map.put(key(i, TRANSFER_SYNTAXES[i % 4]), i));
+        assertEquals(Integer.valueOf(0), map.put(key(0, TRANSFER_SYNTAXES[0]), 0));
+        assertEquals(entries, map.size());
+
+        for (int i = 0; i < entries; i++) {
+            assertEquals(Integer.valueOf(i), map.get(key(i, TRANSFER_SYNTAXES[i % 4])));
+            assertFalse(map.containsKey(key(i, TRANSFER_SYNTAXES[(i + 1) % 4])));
+        }
+
+        // Removed slots are skipped by the lookups, and reused
+        for (int i = 0; i < entries; i += 2)
+            assertEquals(Integer.valueOf(i), map.remove(key(i, TRANSFER_SYNTAXES[i % 4])));
+        for (int i = 0; i < entries; i++)
+            assertEquals(i % 2 == 0 ? null : Integer.valueOf(i), map.get(key(i, TRANSFER_SYNTAXES[i % 4])));
+        for (int i = 0; i < entries; i += 2)
+            map.put(key(i, TRANSFER_SYNTAXES[i % 4]), -i);
+        assertEquals(Integer.valueOf(-10), map.get(key(10, TRANSFER_SYNTAXES[2])));
+        assertEquals(entries, map.size());
+
+        // Keys are decoded back to the same strings
+        assertEquals(entries, map.keySet().size());
+        assertTrue(map.keySet().contains(key(12345, TRANSFER_SYNTAXES[1])));
+    }
+
+    @Test
+    void keysThatCanNotBePacked() {
+        CompactKeyMap<String> map = new CompactKeyMap<>();
+        String[] keys = {"key0", "imodec-mem://1.2.abc/1.2.840.10008.1.2.1", "imodec-mem://1.2.3/",
+                "imodec-mem://" + new String(new char[65]).replace('\0', '1') + "/1.2.840.10008.1.2.1"};
+
+        for (String key : keys)
+            map.put(key, key);
+        map.put("imodec-mem://1.2.3/1.2.840.10008.1.2.1", "packed");
+
+        for (String key : keys)
+            assertEquals(key, map.get(key));
+        assertEquals(5, map.keySet().size());
+        assertTrue(map.keySet().contains("imodec-mem://1.2.3/1.2.840.10008.1.2.1"));
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get("key0"));
+    }
+
+    /**
+     * Compares the memory per entry and the lookup time with a String-keyed HashMap.
+     */
+    @Test
+    @Benchmark
+    void compareWithHashMap() {
+        int entries = 500000;
+
+        measure("HashMap", entries, () -> {
+            Map<String, Object> map = new HashMap<>();
+            for (int i = 0; i < entries; i++)
+                map.put(key(i, TRANSFER_SYNTAXES[i % 4]), Boolean.TRUE);
+            return map::get;
+        });
+        measure("CompactKeyMap", entries, () -> {
+            CompactKeyMap<Object> map = new CompactKeyMap<>();
+            for (int i = 0; i < entries; i++)
+                map.put(key(i, TRANSFER_SYNTAXES[i % 4]), Boolean.TRUE);
+            return map::get;
+        });
+    }
+
+    /**
+     *
+     * @param build Fills a map with the given number of entries and returns its lookup function
+     */
+    private static void measure(String name, int entries, Supplier<Function<String, Object>> build) {
+        long before = usedMemory();
+        Function<String, Object> map = build.get();
+        long memory = usedMemory() - before;
+
+        String[] keys = new String[entries];
+        for (int i = 0; i < entries; i++)
+            keys[i] = key(i, TRANSFER_SYNTAXES[i % 4]);
+
+        int lookups = 5000000, hits = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++)
+            hits += map.apply(keys[(int) ((i * 2654435761L) % entries)]) != null ? 1 : 0;
+        double nanosPerLookup = (double) (System.nanoTime() - start) / lookups;
+
+        assertEquals(lookups, hits);
+        System.out.printf("[%s] %d entries: ~%d bytes/entry, %.0f ns/lookup%n", name, entries,
+                memory / entries, nanosPerLookup);
+    }
+}
@@ -0,0 +1,92 @@
+package pt.ua.imodec.datastructs;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompactVariantMapTest {
+
+    private static final String[] TRANSFER_SYNTAXES = {
+            "1.2.840.10008.1.2.1", "1.2.840.10008.1.2.4.110", "1.2.840.10008.1.2.4.201", "1.2.826.0.1.3680043.2.682.1"
+    };
+
+    /**
+     *
+     * @return SOP instance UID in the style of those generated by modalities
+     */
+    static String uid(int i) {
+        return String.format("1.2.826.0.1.3680043.8.1055.1.20111103111204%09d.%d", i, i * 7919L % 100000);
+    }
+
+    @Test
+    void putGetRemove() {
+        CompactVariantMap<String> map = new CompactVariantMap<>();
+        int uids = 20000;
+
+        for (int i = 0; i < uids; i++) {
+            for (int variant = 0; variant <= i % 4; variant++)
+                assertEquals(-1, map.put(uid(i), TRANSFER_SYNTAXES[variant], i + variant));
+        }
+        assertEquals(0, map.put(uid(0), TRANSFER_SYNTAXES[0], 42));
+        assertEquals(uids / 4 * (1 + 2 + 3 + 4), map.size());
+
+        for (int i = 1; i < uids; i++) {
+            Map<String, Long> expected = new HashMap<>();
+            for (int variant = 0; variant <= i % 4; variant++)
+                expected.put(TRANSFER_SYNTAXES[variant], (long) i + variant);
+            assertEquals(expected, map.get(uid(i)));
+        }
+        assertEquals(Collections.singletonMap(TRANSFER_SYNTAXES[0], 42L), map.get(uid(0)));
+        assertTrue(map.get(uid(uids)).isEmpty());
+
+        // The UID leaves the map with its last variant
+        assertTrue(map.setAttachment(uid(3), "series"));
+        assertFalse(map.setAttachment(uid(uids), "series"));
+        for (int variant = 0; variant < 3; variant++)
+            assertNull(map.remove(uid(3), TRANSFER_SYNTAXES[variant]));
+        assertEquals("series", map.getAttachment(uid(3)));
+        assertEquals("series", map.remove(uid(3), TRANSFER_SYNTAXES[3]));
+        assertFalse(map.containsKey(uid(3)));
+        assertNull(map.remove(uid(3), TRANSFER_SYNTAXES[3]));
+    }
+
+    @Test
+    void newVariantsGetTheAttachmentOfTheUid() {
+        CompactVariantMap<String> map = new CompactVariantMap<>();
+
+        map.put("1.2.3", TRANSFER_SYNTAXES[0], 1000);
+        map.setAttachment("1.2.3", "series");
+        map.put("1.2.3", TRANSFER_SYNTAXES[1], 300);
+
+        assertNull(map.remove("1.2.3", TRANSFER_SYNTAXES[0]));
+        assertEquals("series", map.remove("1.2.3", TRANSFER_SYNTAXES[1]));
+    }
+
+    @Test
+    void uidsThatCanNotBePacked() {
+        CompactVariantMap<String> map = new CompactVariantMap<>();
+        String[] uids = {"1.2.abc", "", new String(new char[65]).replace('\0', '1')};
+
+        for (String uid : uids) {
+            map.put(uid, TRANSFER_SYNTAXES[0], 1000);
+            map.put(uid, TRANSFER_SYNTAXES[1], 300);
+            assertTrue(map.setAttachment(uid, uid));
+        }
+
+        for (String uid : uids) {
+            assertEquals(2, map.get(uid).size());
+            assertEquals(uid, map.getAttachment(uid));
+            assertNull(map.remove(uid, TRANSFER_SYNTAXES[0]));
+            assertEquals(uid, map.remove(uid, TRANSFER_SYNTAXES[1]));
+            assertFalse(map.containsKey(uid));
+        }
+
+        map.put("1.2.3", TRANSFER_SYNTAXES[0], 1);
+        map.clear();
+        assertEquals(0, map.size());
+    }
+}
@@ -0,0 +1,65 @@
+package pt.ua.imodec.datastructs;
+
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.UID;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.io.DicomOutputStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameIndexTest {
+
+    /**
+     *
+     * @return An object of encapsulated pixel data with the given fragments, one per frame, as written to a file
+     */
+    static byte[] mockEncapsulatedFile(byte[] basicOffsetTable, byte[]... fragments) throws IOException {
+        DicomObject dicomObject = new BasicDicomObject();
+        dicomObject.initFileMetaInformation(UID.SecondaryCaptureImageStorage, "2.25.20.1", UID.JPEGLSLossless);
+        dicomObject.putString(Tag.SOPInstanceUID, VR.UI, "2.25.20.1");
+        dicomObject.putString(Tag.NumberOfFrames, VR.IS, String.valueOf(fragments.length));
+
+        DicomElement pixelData = dicomObject.putFragments(Tag.PixelData, VR.OB, false);
+        pixelData.addFragment(basicOffsetTable);
+        for (byte[] fragment : fragments)
+            pixelData.addFragment(fragment);
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        try (DicomOutputStream outputStream = new DicomOutputStream(file)) {
+            outputStream.writeDicomFile(dicomObject);
+        }
+        return file.toByteArray();
+    }
+
+    @Test
+    void basicOffsetTable() {
+        byte[] table = FrameIndex.toBasicOffsetTable(new int[]{10, 7, 4});
+
+        // Each fragment is padded to an even length and preceded by its item header
+        assertArrayEquals(new long[]{0, 18, 34}, FrameIndex.parseBasicOffsetTable(table));
+        assertEquals(0, FrameIndex.parseBasicOffsetTable(new byte[0]).length);
+    }
+
+    @Test
+    void framesAreReadWhereTheyWereIndexed() throws IOException {
+        byte[][] fragments = {{1, 2, 3, 4}, {5, 6}, {7, 8, 9, 10, 11, 12}};
+
+        for (byte[] basicOffsetTable : new byte[][]{new byte[0], FrameIndex.toBasicOffsetTable(new int[]{4, 2, 6})}) {
+            byte[] file = mockEncapsulatedFile(basicOffsetTable, fragments);
+            FrameIndex frameIndex = FrameIndex.read(new ByteArrayInputStream(file)).orElseThrow(AssertionError::new);
+
+            assertEquals(fragments.length, frameIndex.getNumberOfFrames());
+            Blob blob = new ByteBufferBlob(file);
+            for (int i = 0; i < fragments.length; i++)
+                assertArrayEquals(fragments[i], frameIndex.readFrame(blob, i));
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package pt.ua.imodec.datastructs;
+
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.UID;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.DicomOutputStream;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import pt.ua.imodec.util.DicomUtils;
+import pt.ua.imodec.util.PnmWriter;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NativeFramesTest {
+
+    static DicomObject mockObject(String transferSyntaxUID, String photometricInterpretation, int samplesPerPixel,
+                                  int bitsAllocated, int frames, byte[] pixelData, boolean bigEndian) {
+        DicomObject dicomObject = new BasicDicomObject();
+        dicomObject.putString(Tag.SOPInstanceUID, VR.UI, "2.25.1.1.1");
+        dicomObject.putString(Tag.TransferSyntaxUID, VR.UI, transferSyntaxUID);
+        dicomObject.putInt(Tag.Rows, VR.US, 2);
+        dicomObject.putInt(Tag.Columns, VR.US, 3);
+        dicomObject.putInt(Tag.SamplesPerPixel, VR.US, samplesPerPixel);
+        dicomObject.putInt(Tag.BitsAllocated, VR.US, bitsAllocated);
+        dicomObject.putInt(Tag.BitsStored, VR.US, bitsAllocated);
+        dicomObject.putInt(Tag.PixelRepresentation, VR.US, 0);
+        dicomObject.putString(Tag.PhotometricInterpretation, VR.CS, photometricInterpretation);
+        dicomObject.putString(Tag.NumberOfFrames, VR.IS, String.valueOf(frames));
+        dicomObject.putBytes(Tag.PixelData, bitsAllocated > 8 ? VR.OW : VR.OB, pixelData, bigEndian);
+        return dicomObject;
+    }
+
+    static byte[] sequence(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte) i;
+        return bytes;
+    }
+
+    static DicomObject withPlanarConfiguration(DicomObject dicomObject) {
+        dicomObject.putInt(Tag.PlanarConfiguration, VR.US, 1);
+        return dicomObject;
+    }
+
+    @Test
+    void framesAreViewsAtTheirOffsets() {
+        NativeFrames frames = new NativeFrames(mockObject("1.2.840.10008.1.2.1", "MONOCHROME2", 1, 8, 4,
+                sequence(24), false));
+
+        assertEquals(4, frames.getNumberOfFrames());
+        assertEquals(6, frames.getFrameLength());
+
+        ByteBuffer frame = frames.getFrame(2);
+        assertEquals(6, frame.remaining());
+        assertEquals(12, frame.get(0));
+        assertTrue(frame.isReadOnly());
+        assertThrows(IndexOutOfBoundsException.class, () -> frames.getFrame(4));
+
+        BufferedImage image = frames.getImage(3).orElseThrow(AssertionError::new);
+        assertEquals(3, image.getWidth());
+        assertEquals(23, image.getRaster().getSample(2, 1, 0));
+    }
+
+    @Test
+    void samplesFollowTheByteOrder() {
+        byte[] pixelData = new byte[24];
+        ByteBuffer.wrap(pixelData).putShort(0, (short) 1000).putShort(12, (short) 4095);
+
+        NativeFrames frames = new NativeFrames(mockObject("1.2.840.10008.1.2.2", "MONOCHROME2", 1, 16, 2,
+                pixelData, true));
+
+        assertEquals(1000, frames.getImage(0).orElseThrow(AssertionError::new).getRaster().getSample(0, 0, 0));
+        assertEquals(4095, frames.getImage(1).orElseThrow(AssertionError::new).getRaster().getSample(0, 0, 0));
+    }
+
+    @Test
+    void interleavedRgb() {
+        NativeFrames frames = new NativeFrames(mockObject("1.2.840.10008.1.2.1", "RGB", 3, 8, 1,
+                sequence(18), false));
+
+        BufferedImage image = frames.getImage(0).orElseThrow(AssertionError::new);
+        assertEquals(0x030405, image.getRGB(1, 0) & 0xFFFFFF);
+    }
+
+    @Test
+    void planarRgb() {
+        NativeFrames frames = new NativeFrames(withPlanarConfiguration(
+                mockObject("1.2.840.10008.1.2.1", "RGB", 3, 8, 1, sequence(18), false)));
+
+        BufferedImage image = frames.getImage(0).orElseThrow(AssertionError::new);
+        assertEquals(0x01070D, image.getRGB(1, 0) & 0xFFFFFF);
+    }
+
+    @Test
+    void samplesAreReducedToBitsStored() {
+        byte[] pixelData = new byte[12];
+        ByteBuffer.wrap(pixelData).order(ByteOrder.LITTLE_ENDIAN)
+                .putShort(0, (short) 0xF805)    // Overlay bit set above the 12 stored bits
+                .putShort(2, (short) 0x0FFF);   // -1 in 12 bits
+
+        DicomObject unsigned = mockObject("1.2.840.10008.1.2", "MONOCHROME1", 1, 16, 1, pixelData, false);
+        unsigned.putInt(Tag.BitsStored, VR.US, 12);
+        WritableRaster raster = new NativeFrames(unsigned).getImage(0).orElseThrow(AssertionError::new).getRaster();
+        assertEquals(0x805, raster.getSample(0, 0, 0));
+        assertEquals(0xFFF, raster.getSample(1, 0, 0));
+
+        DicomObject signed = mockObject("1.2.840.10008.1.2", "MONOCHROME2", 1, 16, 1, pixelData, false);
+        signed.putInt(Tag.BitsStored, VR.US, 12);
+        signed.putInt(Tag.PixelRepresentation, VR.US, 1);
+        raster = new NativeFrames(signed).getImage(0).orElseThrow(AssertionError::new).getRaster();
+        assertEquals(DataBuffer.TYPE_SHORT, raster.getDataBuffer().getDataType());
+        assertEquals(-2043, raster.getSample(0, 0, 0));
+        assertEquals(-1, raster.getSample(1, 0, 0));
+
+        DicomObject signed8 = mockObject("1.2.840.10008.1.2", "MONOCHROME2", 1, 8, 2, pixelData, false);
+        signed8.putInt(Tag.PixelRepresentation, VR.US, 1);
+        raster = new NativeFrames(signed8).getImage(0).orElseThrow(AssertionError::new).getRaster();
+        assertEquals(-8, raster.getSample(1, 0, 0));
+    }
+
+    @Test
+    void signedSamplesAreShiftedForTheEncoders() {
+        byte[] pixelData = new byte[12];
+        ByteBuffer.wrap(pixelData).order(ByteOrder.LITTLE_ENDIAN)
+                .putShort(0, (short) 0xF805)    // -2043 in 12 bits
+                .putShort(2, (short) 0x0FFF)    // -1
+                .putShort(4, (short) 0x07FF);   // 2047
+
+        DicomObject signed = mockObject("1.2.840.10008.1.2", "MONOCHROME2", 1, 16, 1, pixelData, false);
+        signed.putInt(Tag.BitsStored, VR.US, 12);
+        signed.putInt(Tag.PixelRepresentation, VR.US, 1);
+        signed.putString(Tag.RescaleIntercept, VR.DS, "0");
+        NativeFrames frames = new NativeFrames(signed);
+        assertEquals(2048, frames.getUnsignedShift());
+
+        BufferedImage image = frames.getUnsignedImage(0).orElseThrow(AssertionError::new);
+        WritableRaster raster = image.getRaster();
+        assertEquals(DataBuffer.TYPE_USHORT, raster.getDataBuffer().getDataType());
+        assertEquals(12, image.getColorModel().getComponentSize(0));
+        assertEquals(5, raster.getSample(0, 0, 0));
+        assertEquals(2047, raster.getSample(1, 0, 0));
+        assertEquals(4095, raster.getSample(2, 0, 0));
+
+        byte[] pgm = PnmWriter.write(image);
+        assertTrue(new String(pgm, StandardCharsets.US_ASCII).startsWith("P5\n3 2\n4095\n"));
+
+        DicomObject signed8 = mockObject("1.2.840.10008.1.2", "MONOCHROME2", 1, 8, 2, pixelData, false);
+        signed8.putInt(Tag.PixelRepresentation, VR.US, 1);
+        signed8.putString(Tag.RescaleIntercept, VR.DS, "0");
+        raster = new NativeFrames(signed8).getUnsignedImage(0).orElseThrow(AssertionError::new).getRaster();
+        assertEquals(DataBuffer.TYPE_BYTE, raster.getDataBuffer().getDataType());
+        assertEquals(120, raster.getSample(1, 0, 0));
+    }
+
+    @Test
+    void signedSamplesWithoutAModalityLutAreNotShifted() {
+        DicomObject noRescale = mockObject("1.2.840.10008.1.2", "MONOCHROME2", 1, 16, 1, new byte[12], false);
+        noRescale.putInt(Tag.PixelRepresentation, VR.US, 1);
+        assertEquals(0, new NativeFrames(noRescale).getUnsignedShift());
+
+        DicomObject mr = mockObject("1.2.840.10008.1.2", "MONOCHROME2", 1, 16, 1, new byte[12], false);
+        mr.putInt(Tag.PixelRepresentation, VR.US, 1);
+        mr.putString(Tag.SOPClassUID, VR.UI, UID.MRImageStorage);
+        mr.putString(Tag.RescaleIntercept, VR.DS, "0");
+        assertEquals(0, new NativeFrames(mr).getUnsignedShift());
+
+        // Enhanced objects are rescaled per frame, in their functional groups
+        DicomObject enhanced = mockObject("1.2.840.10008.1.2", "MONOCHROME2", 1, 16, 1, new byte[12], false);
+        enhanced.putInt(Tag.PixelRepresentation, VR.US, 1);
+        enhanced.putString(Tag.RescaleIntercept, VR.DS, "0");
+        enhanced.putNestedDicomObject(Tag.SharedFunctionalGroupsSequence, new BasicDicomObject());
+        assertEquals(0, new NativeFrames(enhanced).getUnsignedShift());
+    }
+
+    @Test
+    void unsignedSamplesAreNotShifted() {
+        DicomObject dicomObject = mockObject("1.2.840.10008.1.2.1", "MONOCHROME2", 1, 8, 1, sequence(6), false);
+        dicomObject.putInt(Tag.BitsStored, VR.US, 6);
+        NativeFrames frames = new NativeFrames(dicomObject);
+
+        assertEquals(0, frames.getUnsignedShift());
+        BufferedImage image = frames.getUnsignedImage(0).orElseThrow(AssertionError::new);
+        assertEquals(6, image.getColorModel().getComponentSize(0));
+        assertEquals(5, image.getRaster().getSample(2, 1, 0));
+    }
+
+    /**
+     * Compares reading the frames directly with reading them with the DICOM image reader.
+     */
+    @Test
+    void compareWithImageReader() throws IOException {
+        Assumptions.assumeTrue(ImageIO.getImageReadersByFormatName("DICOM").hasNext());
+
+        int frames = 16, size = 512;
+        byte[] pixelData = new byte[frames * size * size * 2];
+        new Random(7).nextBytes(pixelData);
+        DicomObject dicomObject = mockObject("1.2.840.10008.1.2.1", "MONOCHROME2", 1, 16, frames,
+                pixelData, false);
+        dicomObject.putInt(Tag.Rows, VR.US, size);
+        dicomObject.putInt(Tag.Columns, VR.US, size);
+        dicomObject.putString(Tag.SOPClassUID, VR.UI, "1.2.840.10008.5.1.4.1.1.7.3");
+        dicomObject.initFileMetaInformation("1.2.840.10008.1.2.1");
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (DicomOutputStream outputStream = new DicomOutputStream(encoded)) {
+            outputStream.writeDicomFile(dicomObject);
+        }
+
+        long start = System.nanoTime();
+        BufferedImage[] expected = new BufferedImage[frames];
+        for (int i = 0; i < frames; i++) {
+            DicomInputStream inputStream = new DicomInputStream(new ByteArrayInputStream(encoded.toByteArray()));
+            expected[i] = DicomUtils.loadDicomImage(inputStream, i);
+        }
+        double readerMillis = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        NativeFrames nativeFrames = new NativeFrames(dicomObject);
+        BufferedImage[] actual = new BufferedImage[frames];
+        for (int i = 0; i < frames; i++)
+            actual[i] = nativeFrames.getImage(i).orElseThrow(AssertionError::new);
+        double directMillis = (System.nanoTime() - start) / 1e6;
+
+        for (int i = 0; i < frames; i++)
+            assertArrayEquals(expected[i].getRaster().getSamples(0, 0, size, size, 0, (int[]) null),
+                    actual[i].getRaster().getSamples(0, 0, size, size, 0, (int[]) null));
+
+        System.out.printf("[NativeFrames] %d frames of %dx%d: image reader %.1f ms, direct %.1f ms%n",
+                frames, size, size, readerMillis, directMillis);
+    }
+
+    @Test
+    void encapsulatedPixelDataIsNotNative() {
+        DicomObject dicomObject = mockObject("1.2.840.10008.1.2.4.50", "RGB", 3, 8, 1, sequence(18), false);
+
+        assertFalse(NativeFrames.isNative(dicomObject));
+        assertThrows(IllegalArgumentException.class, () -> new NativeFrames(dicomObject));
+    }
+}
@@ -0,0 +1,297 @@
+package pt.ua.imodec.storage;
+
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.UID;
+import org.dcm4che2.data.VR;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pt.ua.imodec.ImodecPluginSet;
+import pt.ua.imodec.codecs.CodecCircuitBreaker;
+import pt.ua.imodec.datastructs.Blob;
+import pt.ua.imodec.datastructs.SlabAllocator;
+import pt.ua.imodec.datastructs.formats.Native;
+import pt.ua.imodec.datastructs.formats.NewFormat;
+import pt.ua.imodec.storage.engines.HeapStorageEngine;
+import pt.ua.imodec.storage.engines.MappedSegmentStorageEngine;
+import pt.ua.imodec.storage.engines.OffHeapSlabStorageEngine;
+import pt.ua.imodec.storage.engines.StorageEngine;
+import pt.ua.imodec.util.Benchmark;
+import pt.ua.imodec.util.validators.CodecsInstalledValidator;
+import pt.ua.imodec.util.validators.OSValidator;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImodecStoragePluginTest {
+
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16};
+    private static final int STORES_PER_RUN = 2000;
+
+    @TempDir
+    Path storageDir;
+
+    @BeforeAll
+    static void setFormat() {
+        ImodecPluginSet.chosenFormat = Native.UNCHANGED;
+    }
+
+    @AfterAll
+    static void resetFormat() {
+        ImodecPluginSet.chosenFormat = null;
+    }
+
+    /**
+     *
+     * @param sopInstanceUID UID of the object
+     * @return A small single-frame, uncompressed dicom object
+     */
+    static DicomObject mockDicomObject(String sopInstanceUID) {
+        DicomObject dicomObject = new BasicDicomObject();
+
+        dicomObject.initFileMetaInformation(UID.SecondaryCaptureImageStorage, sopInstanceUID,
+                UID.ExplicitVRLittleEndian);
+        dicomObject.putString(Tag.SOPClassUID, VR.UI, UID.SecondaryCaptureImageStorage);
+        dicomObject.putString(Tag.SOPInstanceUID, VR.UI, sopInstanceUID);
+        dicomObject.putString(Tag.StudyInstanceUID, VR.UI, "2.25.1");
+        dicomObject.putString(Tag.SeriesInstanceUID, VR.UI, "2.25.1.1");
+        dicomObject.putString(Tag.PhotometricInterpretation, VR.CS, "MONOCHROME2");
+        dicomObject.putInt(Tag.Rows, VR.US, 64);
+        dicomObject.putInt(Tag.Columns, VR.US, 64);
+        dicomObject.putInt(Tag.SamplesPerPixel, VR.US, 1);
+        dicomObject.putInt(Tag.BitsAllocated, VR.US, 8);
+        dicomObject.putInt(Tag.BitsStored, VR.US, 8);
+        dicomObject.putInt(Tag.HighBit, VR.US, 7);
+        dicomObject.putInt(Tag.PixelRepresentation, VR.US, 0);
+        dicomObject.putBytes(Tag.PixelData, VR.OW, new byte[64 * 64]);
+
+        return dicomObject;
+    }
+
+    /**
+     * Stores a batch of distinct objects with an increasing number of threads and reports the throughput.
+     */
+    static void measureStoreThroughput(ImodecStoragePlugin storage, String engineName) throws Exception {
+        int run = 0;
+
+        for (int threads : THREAD_COUNTS) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Callable<URI>> stores = new ArrayList<>();
+            for (int i = 0; i < STORES_PER_RUN; i++) {
+                DicomObject dicomObject = mockDicomObject(String.format("2.25.%d.%d", run, i));
+                stores.add(() -> storage.store(dicomObject));
+            }
+
+            long start = System.nanoTime();
+            List<Future<URI>> uris = executor.invokeAll(stores);
+            double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+            executor.shutdown();
+
+            for (Future<URI> uri : uris)
+                assertTrue(storage.containsURI(uri.get()));
+
+            System.out.printf("[%s] threads=%d: %.0f stores/s%n", engineName, threads,
+                    STORES_PER_RUN / elapsedSeconds);
+            run++;
+        }
+    }
+
+    @Test
+    @Benchmark
+    void concurrentStores() throws Exception {
+        measureStoreThroughput(new ImodecStoragePlugin(), "memory");
+
+        ImodecStoragePlugin storage = new ImodecStoragePlugin();
+        storage.setEngine(new MappedSegmentStorageEngine(storageDir, 1 << 24));
+        measureStoreThroughput(storage, "mapped");
+        storage.close();
+    }
+
+    @Test
+    void duplicateStoresAreSingleFlight() throws Exception {
+        AtomicInteger puts = new AtomicInteger();
+        ImodecStoragePlugin storage = new ImodecStoragePlugin();
+        storage.setEngine(new HeapStorageEngine() {
+            @Override
+            public void put(String key, Blob data) {
+                puts.incrementAndGet();
+                super.put(key, data);
+            }
+        });
+
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch startGate = new CountDownLatch(1);
+        List<Future<URI>> uris = new ArrayList<>();
+
+        for (int i = 0; i < threads; i++) {
+            DicomObject sameObject = mockDicomObject("2.25.123456789");
+            uris.add(executor.submit(() -> {
+                startGate.await();
+                return storage.store(sameObject);
+            }));
+        }
+        startGate.countDown();
+
+        URI firstUri = uris.get(0).get();
+        for (Future<URI> uri : uris)
+            assertEquals(firstUri, uri.get());
+        executor.shutdown();
+
+        assertEquals(1, puts.get());
+        assertTrue(storage.containsURI(firstUri));
+    }
+
+    @Test
+    void concurrentReadsAndRemoves() throws InterruptedException {
+        ImodecStoragePlugin storage = new ImodecStoragePlugin();
+        List<URI> uris = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            uris.add(storage.store(mockDicomObject("2.25.999." + i)));
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (URI uri : uris) {
+            executor.submit(() -> {
+                storage.at(uri).iterator().next().getInputStream().close();
+                return null;
+            });
+            executor.submit(() -> storage.remove(uri));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        for (URI uri : uris)
+            assertFalse(storage.containsURI(uri));
+    }
+
+    @Test
+    void storedObjectsAreIndexed() throws Exception {
+        ImodecStoragePlugin storage = new ImodecStoragePlugin();
+        URI uri = storage.store(mockDicomObject("2.25.42.1"));
+        storage.store(mockDicomObject("2.25.42.2"));
+
+        assertEquals(ImodecStoragePlugin.toUri("2.25.42.1", UID.ExplicitVRLittleEndian), uri);
+        assertEquals(Collections.singleton(UID.ExplicitVRLittleEndian),
+                storage.getStoredVariants("2.25.42.1").keySet());
+        assertEquals(storage.at(uri).iterator().next().getSize(),
+                (long) storage.getStoredVariants("2.25.42.1").get(UID.ExplicitVRLittleEndian));
+        assertEquals(new HashSet<>(Arrays.asList("2.25.42.1", "2.25.42.2")), storage.getInstancesOfSeries("2.25.1.1"));
+        assertEquals(Collections.singleton("2.25.1.1"), storage.getSeriesOfStudy("2.25.1"));
+
+        storage.remove(uri);
+        assertTrue(storage.getStoredVariants("2.25.42.1").isEmpty());
+        assertEquals(Collections.singleton("2.25.42.2"), storage.getInstancesOfSeries("2.25.1.1"));
+
+        // Objects recovered by a persistent engine are indexed as well
+        MappedSegmentStorageEngine engine = new MappedSegmentStorageEngine(storageDir, 1 << 24);
+        storage.setEngine(engine);
+        storage.store(mockDicomObject("2.25.42.3"));
+        ImodecStoragePlugin restartedStorage = new ImodecStoragePlugin();
+        engine.close();
+        restartedStorage.setEngine(new MappedSegmentStorageEngine(storageDir, 1 << 24));
+        assertFalse(restartedStorage.getStoredVariants("2.25.42.3").isEmpty());
+    }
+
+    @Test
+    void framesAreReadOneAtATime() throws Exception {
+        DicomObject dicomObject = mockDicomObject("2.25.43.1");
+        dicomObject.putString(Tag.TransferSyntaxUID, VR.UI, UID.JPEGLSLossless);
+        dicomObject.putString(Tag.NumberOfFrames, VR.IS, "3");
+        byte[][] frames = {{1, 2, 3, 4}, {5, 6}, {7, 8, 9, 10, 11, 12}};
+        DicomElement pixelData = dicomObject.putFragments(Tag.PixelData, VR.OB, false);
+        pixelData.addFragment(new byte[0]);
+        for (byte[] frame : frames)
+            pixelData.addFragment(frame);
+
+        for (StorageEngine engine : new StorageEngine[]{new HeapStorageEngine(),
+                new MappedSegmentStorageEngine(storageDir, 1 << 24)}) {
+            ImodecStoragePlugin storage = new ImodecStoragePlugin();
+            storage.setEngine(engine);
+            URI uri = storage.store(dicomObject);
+
+            for (int i = frames.length - 1; i >= 0; i--)
+                assertArrayEquals(frames[i], storage.getEncodedFrame(uri, i));
+            assertThrows(IndexOutOfBoundsException.class, () -> storage.getEncodedFrame(uri, frames.length));
+            storage.close();
+        }
+
+        ImodecStoragePlugin storage = new ImodecStoragePlugin();
+        URI uri = storage.store(mockDicomObject("2.25.43.2"));
+        assertThrows(IllegalArgumentException.class, () -> storage.getEncodedFrame(uri, 0));
+    }
+
+    @Test
+    void storesBeyondTheOffHeapBudgetFail() {
+        ImodecStoragePlugin storage = new ImodecStoragePlugin();
+        storage.setEngine(new OffHeapSlabStorageEngine(SlabAllocator.SLAB_SIZE));
+
+        DicomObject tooBig = mockDicomObject("2.25.45.1");
+        tooBig.putBytes(Tag.PixelData, VR.OW, new byte[SlabAllocator.SLAB_SIZE]);
+        assertThrows(RuntimeException.class, () -> storage.store(tooBig));
+        assertFalse(storage.containsURI(ImodecStoragePlugin.toUri("2.25.45.1", UID.ExplicitVRLittleEndian)));
+
+        // The objects that fit are still stored
+        URI uri = storage.store(mockDicomObject("2.25.45.2"));
+        assertTrue(storage.containsURI(uri));
+    }
+
+    @Test
+    void objectsAreStoredAsTheyAreWhileTheirCodecFails() throws Exception {
+        Assumptions.assumeTrue(OSValidator.validate());
+        CodecCircuitBreaker breaker = CodecCircuitBreaker.getShared();
+        CodecCircuitBreaker failingBreaker = new CodecCircuitBreaker(1, 60_000);
+        assertThrows(IOException.class, () -> failingBreaker.execute(NewFormat.JPEG_XL.getId(), () -> {
+            throw new IOException("Codec failed");
+        }));
+
+        CodecCircuitBreaker.setShared(failingBreaker);
+        ImodecPluginSet.chosenFormat = NewFormat.JPEG_XL;
+        try {
+            ImodecStoragePlugin storage = new ImodecStoragePlugin();
+            storage.setEngine(new MappedSegmentStorageEngine(storageDir, 1 << 24));
+            URI uri = storage.store(mockDicomObject("2.25.44.1"));
+
+            assertEquals(ImodecStoragePlugin.toUri("2.25.44.1", UID.ExplicitVRLittleEndian), uri);
+            assertTrue(storage.containsURI(uri));
+            assertEquals(Collections.singleton(uri), storage.getDeferredEncodings());
+            assertEquals(0, storage.retryDeferredEncodings());
+            assertEquals(Collections.singleton(UID.ExplicitVRLittleEndian),
+                    storage.getStoredVariants("2.25.44.1").keySet());
+
+            // Still encoded after a restart
+            storage.close();
+            storage = new ImodecStoragePlugin();
+            storage.setEngine(new MappedSegmentStorageEngine(storageDir, 1 << 24));
+            assertEquals(Collections.singleton(uri), storage.getDeferredEncodings());
+
+            Assumptions.assumeTrue(CodecsInstalledValidator.validate());
+            CodecCircuitBreaker.setShared(breaker);
+            assertEquals(1, storage.retryDeferredEncodings());
+            assertTrue(storage.getDeferredEncodings().isEmpty());
+            // The object as it was is the one indexed by Dicoogle, so it is kept
+            assertTrue(storage.containsURI(uri));
+            assertTrue(storage.containsURI(ImodecStoragePlugin.toUri("2.25.44.1",
+                    NewFormat.JPEG_XL.getTransferSyntax().uid())));
+
+            storage.close();
+            storage = new ImodecStoragePlugin();
+            storage.setEngine(new MappedSegmentStorageEngine(storageDir, 1 << 24));
+            assertTrue(storage.getDeferredEncodings().isEmpty());
+            storage.close();
+        } finally {
+            CodecCircuitBreaker.setShared(breaker);
+            ImodecPluginSet.chosenFormat = Native.UNCHANGED;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package pt.ua.imodec.storage;
+
+import org.junit.jupiter.api.Test;
+import pt.ua.imodec.util.Benchmark;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static pt.ua.imodec.util.TestCommons.usedMemory;
+
+class StorageIndexTest {
+
+    @Test
+    void indexesVariantsAndHierarchy() {
+        StorageIndex index = new StorageIndex();
+
+        index.add("1.1", "1.2.840.10008.1.2.1", 1000, "9", "9.1");
+        index.add("1.1", "1.2.840.10008.1.2.4.110", 300, "9", "9.1");
+        index.add("1.2", "1.2.840.10008.1.2.1", 1000, "9", "9.1");
+        index.add("1.3", "1.2.840.10008.1.2.1", 1000, "9", "9.2");
+
+        assertEquals(2, index.getVariants("1.1").size());
+        assertEquals(Long.valueOf(300), index.getVariants("1.1").get("1.2.840.10008.1.2.4.110"));
+        assertEquals(new HashSet<>(Arrays.asList("1.1", "1.2")), index.getInstancesOfSeries("9.1"));
+        assertEquals(new HashSet<>(Arrays.asList("9.1", "9.2")), index.getSeriesOfStudy("9"));
+
+        // The instance stays in its series while it has a variant left
+        index.remove("1.1", "1.2.840.10008.1.2.1");
+        assertEquals(Collections.singleton("1.2.840.10008.1.2.4.110"), index.getVariants("1.1").keySet());
+        assertTrue(index.getInstancesOfSeries("9.1").contains("1.1"));
+
+        index.remove("1.1", "1.2.840.10008.1.2.4.110");
+        assertTrue(index.getVariants("1.1").isEmpty());
+        assertEquals(Collections.singleton("1.2"), index.getInstancesOfSeries("9.1"));
+
+        // Empty series leave their study
+        index.remove("1.3", "1.2.840.10008.1.2.1");
+        assertTrue(index.getInstancesOfSeries("9.2").isEmpty());
+        assertEquals(Collections.singleton("9.1"), index.getSeriesOfStudy("9"));
+    }
+
+    @Test
+    void hierarchyCanBeSetLater() {
+        StorageIndex index = new StorageIndex();
+
+        index.add("1.1", "1.2.840.10008.1.2.1", 1000, null, null);
+        assertEquals(1, index.getVariants("1.1").size());
+        assertTrue(index.getSeriesOfStudy("9").isEmpty());
+
+        index.setHierarchy("1.1", "9", "9.1");
+        assertEquals(Collections.singleton("1.1"), index.getInstancesOfSeries("9.1"));
+
+        // Instances which are no longer stored are not added
+        index.setHierarchy("1.2", "9", "9.2");
+        assertEquals(Collections.singleton("9.1"), index.getSeriesOfStudy("9"));
+    }
+
+    /**
+     * Compares the memory per instance, with two transfer syntaxes each, with String-keyed maps of the
+     * transfer syntaxes of each instance, as the keys of the stored objects give them.
+     */
+    @Test
+    @Benchmark
+    void memoryPerInstance() {
+        int instances = 200000;
+        String[] keys = new String[instances * 2];
+        for (int i = 0; i < instances; i++) {
+            String sopInstanceUID = String.format("1.2.826.0.1.3680043.8.1055.1.20111103111204%09d.%d", i,
+                    i * 7919L % 100000);
+            keys[2 * i] = "imodec-mem://" + sopInstanceUID + "/1.2.840.10008.1.2.1";
+            keys[2 * i + 1] = "imodec-mem://" + sopInstanceUID + "/1.2.840.10008.1.2.4.110";
+        }
+
+        long before = usedMemory();
+        Map<String, Map<String, Long>> maps = new ConcurrentHashMap<>();
+        for (String key : keys) {
+            String[] uids = key.substring("imodec-mem://".length()).split("/");
+            maps.computeIfAbsent(uids[0], sop -> new HashMap<>(4)).put(uids[1], 1000L + key.length());
+        }
+        System.out.printf("[maps] %d instances: ~%d bytes/instance%n", instances,
+                (usedMemory() - before) / instances);
+        assertEquals(2, maps.get(keys[0].split("/")[2]).size());
+        maps = null;
+
+        before = usedMemory();
+        StorageIndex index = new StorageIndex();
+        for (String key : keys) {
+            String[] uids = key.substring("imodec-mem://".length()).split("/");
+            index.add(uids[0], uids[1], 1000L + key.length(), null, null);
+        }
+        System.out.printf("[StorageIndex] %d instances: ~%d bytes/instance%n", instances,
+                (usedMemory() - before) / instances);
+
+        assertEquals(2, index.getVariants(keys[0].split("/")[2]).size());
+    }
+}
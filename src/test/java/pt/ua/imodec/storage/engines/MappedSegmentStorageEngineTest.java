@@ -0,0 +1,270 @@
+package pt.ua.imodec.storage.engines;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pt.ua.imodec.datastructs.Blob;
+import pt.ua.imodec.datastructs.ByteBufferBlob;
+import pt.ua.imodec.util.Benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.NoSuchElementException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedSegmentStorageEngineTest {
+
+    private static final long SEGMENT_SIZE = 1 << 16;
+
+    @TempDir
+    Path storageDir;
+
+    static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    static Blob randomData(int size) {
+        return new ByteBufferBlob(randomBytes(size));
+    }
+
+    static byte[] readAll(Blob blob) throws IOException {
+        return readAll(blob.newInputStream());
+    }
+
+    static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = inputStream.read(buffer)) != -1)
+            bos.write(buffer, 0, n);
+        return bos.toByteArray();
+    }
+
+    @Test
+    void putGetRemove() throws IOException {
+        try (MappedSegmentStorageEngine engine = new MappedSegmentStorageEngine(storageDir, SEGMENT_SIZE)) {
+            Blob data = randomData(1000);
+
+            assertFalse(engine.contains("imodec-mem://1.2.3/1.2.840.10008.1.2.1"));
+            engine.put("imodec-mem://1.2.3/1.2.840.10008.1.2.1", data);
+
+            assertTrue(engine.contains("imodec-mem://1.2.3/1.2.840.10008.1.2.1"));
+            assertEquals(1000, engine.size("imodec-mem://1.2.3/1.2.840.10008.1.2.1"));
+            assertArrayEquals(randomBytes(1000), readAll(engine.get("imodec-mem://1.2.3/1.2.840.10008.1.2.1")));
+
+            engine.remove("imodec-mem://1.2.3/1.2.840.10008.1.2.1");
+            assertFalse(engine.contains("imodec-mem://1.2.3/1.2.840.10008.1.2.1"));
+            assertThrows(NoSuchElementException.class, () -> engine.get("imodec-mem://1.2.3/1.2.840.10008.1.2.1"));
+        }
+    }
+
+    @Test
+    void rollsOverSegments() throws IOException {
+        try (MappedSegmentStorageEngine engine = new MappedSegmentStorageEngine(storageDir, SEGMENT_SIZE)) {
+            // Some objects fill several segments, the last one is bigger than a whole segment
+            int[] sizes = {30000, 30000, 30000, (int) SEGMENT_SIZE * 2};
+
+            for (int i = 0; i < sizes.length; i++)
+                engine.put("key" + i, randomData(sizes[i]));
+
+            for (int i = 0; i < sizes.length; i++)
+                assertArrayEquals(randomBytes(sizes[i]), readAll(engine.get("key" + i)));
+        }
+    }
+
+    @Test
+    void recoversAfterRestart() throws IOException {
+        try (MappedSegmentStorageEngine engine = new MappedSegmentStorageEngine(storageDir, SEGMENT_SIZE)) {
+            for (int i = 0; i < 10; i++)
+                engine.put("key" + i, randomData(10000 + i));
+            engine.remove("key3");
+            engine.put("key5", randomData(42));
+        }
+
+        try (MappedSegmentStorageEngine engine = new MappedSegmentStorageEngine(storageDir, SEGMENT_SIZE)) {
+            assertFalse(engine.contains("key3"));
+            assertArrayEquals(randomBytes(42), readAll(engine.get("key5")));
+            assertArrayEquals(randomBytes(10009), readAll(engine.get("key9")));
+
+            // Appending after the recovery must not overwrite the recovered records
+            engine.put("key10", randomData(100));
+            assertArrayEquals(randomBytes(10000), readAll(engine.get("key0")));
+            assertArrayEquals(randomBytes(100), readAll(engine.get("key10")));
+        }
+    }
+
+    @Test
+    void recoversFromSnapshotAndTail() throws IOException {
+        try (MappedSegmentStorageEngine engine = new MappedSegmentStorageEngine(storageDir, SEGMENT_SIZE)) {
+            for (int i = 0; i < 10; i++)
+                engine.put("key" + i, randomData(10000 + i));
+            engine.snapshot();
+
+            // Records appended after the snapshot are found by scanning the tail of the segments
+            engine.remove("key3");
+            engine.put("key5", randomData(42));
+            for (int i = 10; i < 20; i++)
+                engine.put("key" + i, randomData(10000 + i));
+
+            // Simulates a crash, which leaves the previous snapshot in place
+            Files.copy(storageDir.resolve("index.snapshot"), storageDir.resolve("crash.snapshot"));
+        }
+        Files.move(storageDir.resolve("crash.snapshot"), storageDir.resolve("index.snapshot"),
+                StandardCopyOption.REPLACE_EXISTING);
+
+        try (MappedSegmentStorageEngine engine = new MappedSegmentStorageEngine(storageDir, SEGMENT_SIZE)) {
+            assertFalse(engine.contains("key3"));
+            assertArrayEquals(randomBytes(42), readAll(engine.get("key5")));
+            for (int i = 10; i < 20; i++)
+                assertArrayEquals(randomBytes(10000 + i), readAll(engine.get("key" + i)));
+        }
+
+        // A corrupted snapshot is ignored
+        Files.write(storageDir.resolve("index.snapshot"), new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+        try (MappedSegmentStorageEngine engine = new MappedSegmentStorageEngine(storageDir, SEGMENT_SIZE)) {
+            assertFalse(engine.contains("key3"));
+            assertArrayEquals(randomBytes(10019), readAll(engine.get("key19")));
+        }
+    }
+
+    /**
+     * Compares the time from opening the storage to the first read, with and without the index snapshot.
+     */
+    @Test
+    @Benchmark
+    void timeToFirstRead() throws IOException {
+        int objects = 50000;
+        try (MappedSegmentStorageEngine engine = new MappedSegmentStorageEngine(storageDir, 1 << 24)) {
+            for (int i = 0; i < objects; i++)
+                engine.put(String.format("imodec-mem://2.25.%d/1.2.840.10008.1.2.1", i), randomData(100));
+        }
+
+        long start = System.nanoTime();
+        try (MappedSegmentStorageEngine engine = new MappedSegmentStorageEngine(storageDir, 1 << 24)) {
+            assertArrayEquals(randomBytes(100), readAll(engine.get("imodec-mem://2.25.0/1.2.840.10008.1.2.1")));
+            System.out.printf("Time to first read of %d objects, from the snapshot: %.1f ms%n", objects,
+                    (System.nanoTime() - start) / 1e6);
+        }
+
+        Files.delete(storageDir.resolve("index.snapshot"));
+        start = System.nanoTime();
+        try (MappedSegmentStorageEngine engine = new MappedSegmentStorageEngine(storageDir, 1 << 24)) {
+            assertArrayEquals(randomBytes(100), readAll(engine.get("imodec-mem://2.25.0/1.2.840.10008.1.2.1")));
+            System.out.printf("Time to first read of %d objects, scanning the segments: %.1f ms%n", objects,
+                    (System.nanoTime() - start) / 1e6);
+        }
+    }
+
+    @Test
+    void tornRecordEndsRecovery() throws IOException {
+        try (MappedSegmentStorageEngine engine = new MappedSegmentStorageEngine(storageDir, SEGMENT_SIZE)) {
+            for (int i = 0; i < 3; i++)
+                engine.put("key" + i, randomData(1000));
+        }
+        Files.delete(storageDir.resolve("index.snapshot"));
+
+        // Flips a byte in the data of key1, as if its record was not completely written before a crash
+        int recordSize = 20 + "key0".length() + 1000;
+        try (RandomAccessFile segment = new RandomAccessFile(storageDir.resolve("segment-000000.seg").toFile(), "rw")) {
+            segment.seek(recordSize + 500);
+            int b = segment.read();
+            segment.seek(recordSize + 500);
+            segment.write(b ^ 0xFF);
+        }
+
+        try (MappedSegmentStorageEngine engine = new MappedSegmentStorageEngine(storageDir, SEGMENT_SIZE)) {
+            assertArrayEquals(randomBytes(1000), readAll(engine.get("key0")));
+            assertFalse(engine.contains("key1"));
+            assertFalse(engine.contains("key2"));
+
+            engine.put("key3", randomData(100));
+        }
+
+        try (MappedSegmentStorageEngine engine = new MappedSegmentStorageEngine(storageDir, SEGMENT_SIZE)) {
+            assertArrayEquals(randomBytes(1000), readAll(engine.get("key0")));
+            assertArrayEquals(randomBytes(100), readAll(engine.get("key3")));
+        }
+    }
+
+    @Test
+    void recordsAfterATornOneStayLost() throws IOException {
+        try (MappedSegmentStorageEngine engine = new MappedSegmentStorageEngine(storageDir, SEGMENT_SIZE)) {
+            for (int i = 0; i < 3; i++)
+                engine.put("key" + i, randomData(1000));
+        }
+        Files.delete(storageDir.resolve("index.snapshot"));
+
+        // Zeroes the header of key1, as if it was still being written when key2 was complete
+        int recordSize = 20 + "key0".length() + 1000;
+        try (RandomAccessFile segment = new RandomAccessFile(storageDir.resolve("segment-000000.seg").toFile(), "rw")) {
+            segment.seek(recordSize);
+            segment.write(new byte[20]);
+        }
+
+        // A record of the same size as key1 would end right where key2 starts, if it was written in its place
+        try (MappedSegmentStorageEngine engine = new MappedSegmentStorageEngine(storageDir, SEGMENT_SIZE)) {
+            assertFalse(engine.contains("key2"));
+            engine.put("key3", randomData(1000));
+        }
+        Files.delete(storageDir.resolve("index.snapshot"));
+
+        try (MappedSegmentStorageEngine engine = new MappedSegmentStorageEngine(storageDir, SEGMENT_SIZE)) {
+            assertArrayEquals(randomBytes(1000), readAll(engine.get("key3")));
+            assertFalse(engine.contains("key1"));
+            assertFalse(engine.contains("key2"));
+        }
+    }
+
+    /**
+     * Compares the throughput of concurrent stores that wait for the disk (group-committed) and that do not.
+     */
+    @Test
+    @Benchmark
+    void groupCommitThroughput() throws Exception {
+        int threads = 16, storesPerThread = 200;
+
+        for (boolean durable : new boolean[]{false, true}) {
+            Path directory = storageDir.resolve("durable-" + durable);
+            try (MappedSegmentStorageEngine engine = new MappedSegmentStorageEngine(directory, 1 << 24, durable)) {
+                ExecutorService executor = Executors.newFixedThreadPool(threads);
+                List<Callable<Void>> stores = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    int thread = t;
+                    stores.add(() -> {
+                        for (int i = 0; i < storesPerThread; i++)
+                            engine.put(thread + "/" + i, randomData(4096));
+                        return null;
+                    });
+                }
+
+                long start = System.nanoTime();
+                for (Future<Void> future : executor.invokeAll(stores))
+                    future.get();
+                double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+                executor.shutdown();
+
+                System.out.printf("durable=%s, threads=%d: %.0f stores/s%n", durable, threads,
+                        threads * storesPerThread / elapsedSeconds);
+            }
+
+            try (MappedSegmentStorageEngine engine = new MappedSegmentStorageEngine(directory, 1 << 24, durable)) {
+                for (int t = 0; t < threads; t++)
+                    assertTrue(engine.contains(t + "/" + (storesPerThread - 1)));
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package pt.ua.imodec.storage.engines;
+
+import org.junit.jupiter.api.Test;
+import pt.ua.imodec.datastructs.Blob;
+import pt.ua.imodec.datastructs.SlabAllocator;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static pt.ua.imodec.storage.engines.MappedSegmentStorageEngineTest.*;
+
+class OffHeapSlabStorageEngineTest {
+
+    @Test
+    void putGetRemove() throws IOException {
+        try (OffHeapSlabStorageEngine engine = new OffHeapSlabStorageEngine(SlabAllocator.SLAB_SIZE * 4L)) {
+            // From below the smallest slot to several of the biggest ones
+            int[] sizes = {0, 1, 1000, 5000, 1 << 20, (3 << 20) + 12345};
+
+            for (int i = 0; i < sizes.length; i++)
+                engine.put("key" + i, randomData(sizes[i]));
+
+            for (int i = 0; i < sizes.length; i++) {
+                assertEquals(sizes[i], engine.size("key" + i));
+                assertArrayEquals(randomBytes(sizes[i]), readAll(engine.get("key" + i)));
+            }
+
+            engine.remove("key2");
+            assertFalse(engine.contains("key2"));
+            assertThrows(NoSuchElementException.class, () -> engine.get("key2"));
+        }
+    }
+
+    @Test
+    void removedMemoryIsReusedOnceItsViewsAreCollected() throws Exception {
+        try (OffHeapSlabStorageEngine engine = new OffHeapSlabStorageEngine(SlabAllocator.SLAB_SIZE)) {
+            // One slab of 1MB slots: four objects fit, a fifth one does not
+            for (int i = 0; i < 4; i++)
+                engine.put("key" + i, randomData(1 << 20));
+            assertThrows(IOException.class, () -> engine.put("key4", randomData(1 << 20)));
+
+            // Removed while read, so its memory is kept for the reader
+            Blob removed = engine.get("key0");
+            engine.remove("key0");
+            assertThrows(IOException.class, () -> engine.put("key4", randomData(1 << 20)));
+            assertArrayEquals(randomBytes(1 << 20), readAll(removed));
+
+            removed = null;
+            for (int attempt = 0; attempt < 50 && engine.getStatistics().getUsedSlotBytes() > 3L << 20; attempt++) {
+                System.gc();
+                Thread.sleep(20);
+            }
+            engine.put("key4", randomData((1 << 20) - 1));
+            assertArrayEquals(randomBytes((1 << 20) - 1), readAll(engine.get("key4")));
+
+            SlabAllocator.Statistics statistics = engine.getStatistics();
+            assertEquals(SlabAllocator.SLAB_SIZE, statistics.getReservedBytes());
+            assertEquals(4L << 20, statistics.getUsedSlotBytes());
+            assertEquals(0.0, statistics.getExternalFragmentation());
+            assertTrue(statistics.getInternalFragmentation() > 0);
+        }
+    }
+
+    @Test
+    void removedMemoryIsReusedAtOnceWhenNotRead() throws IOException {
+        try (OffHeapSlabStorageEngine engine = new OffHeapSlabStorageEngine(SlabAllocator.SLAB_SIZE)) {
+            for (int i = 0; i < 4; i++)
+                engine.put("key" + i, randomData(1 << 20));
+
+            engine.remove("key0");
+            // Replacing an object frees the previous one as well
+            engine.put("key1", randomData(1 << 20));
+            engine.put("key4", randomData(1 << 20));
+            assertEquals(1 << 20, engine.size("key4"));
+            assertThrows(NoSuchElementException.class, () -> engine.size("key0"));
+        }
+    }
+}
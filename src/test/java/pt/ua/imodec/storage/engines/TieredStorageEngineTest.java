@@ -0,0 +1,136 @@
+package pt.ua.imodec.storage.engines;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pt.ua.imodec.datastructs.Blob;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static pt.ua.imodec.storage.engines.MappedSegmentStorageEngineTest.*;
+
+class TieredStorageEngineTest {
+
+    @TempDir
+    Path storageDir;
+
+    @Test
+    void evictsLeastRecentlyUsedAndPromotesOnRead() throws IOException {
+        HeapStorageEngine hot = new HeapStorageEngine();
+        MappedSegmentStorageEngine cold = new MappedSegmentStorageEngine(storageDir, 1 << 20);
+
+        try (TieredStorageEngine engine = new TieredStorageEngine(hot, cold, 3000)) {
+            engine.put("key0", randomData(1000));
+            engine.put("key1", randomData(1001));
+            engine.put("key2", randomData(998));
+            assertFalse(cold.contains("key0"));
+
+            // key0 becomes the most recently used, so key1 is the one evicted
+            readAll(engine.get("key0"));
+            engine.put("key3", randomData(500));
+            assertTrue(hot.contains("key0"));
+            assertFalse(hot.contains("key1"));
+            assertTrue(cold.contains("key1"));
+
+            // Reads are transparent, and the cold object is promoted back
+            assertTrue(engine.contains("key1"));
+            assertEquals(1001, engine.size("key1"));
+            assertArrayEquals(randomBytes(1001), readAll(engine.get("key1")));
+            assertTrue(hot.contains("key1"));
+            assertFalse(hot.contains("key2"));
+
+            for (int i = 0; i < 4; i++)
+                assertTrue(engine.contains("key" + i));
+        }
+    }
+
+    @Test
+    void replacedAndRemovedObjectsLeaveNoStaleCopy() throws IOException {
+        HeapStorageEngine hot = new HeapStorageEngine();
+        MappedSegmentStorageEngine cold = new MappedSegmentStorageEngine(storageDir, 1 << 20);
+
+        try (TieredStorageEngine engine = new TieredStorageEngine(hot, cold, 1500)) {
+            engine.put("key0", randomData(1000));
+            engine.put("key1", randomData(1000));
+            assertTrue(cold.contains("key0"));
+
+            engine.put("key0", randomData(42));
+            assertFalse(cold.contains("key0"));
+            assertArrayEquals(randomBytes(42), readAll(engine.get("key0")));
+
+            // Too big for the hot tier
+            engine.put("key2", randomData(2000));
+            assertFalse(hot.contains("key2"));
+            assertArrayEquals(randomBytes(2000), readAll(engine.get("key2")));
+
+            engine.remove("key1");
+            engine.remove("key2");
+            assertFalse(engine.contains("key1"));
+            assertThrows(NoSuchElementException.class, () -> engine.get("key2"));
+        }
+    }
+
+    @Test
+    void objectsBeingEvictedAreStillFound() throws Exception {
+        CountDownLatch copying = new CountDownLatch(1);
+        CountDownLatch copied = new CountDownLatch(1);
+        HeapStorageEngine cold = new HeapStorageEngine() {
+            @Override
+            public void put(String key, Blob data) {
+                copying.countDown();
+                try {
+                    copied.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                super.put(key, data);
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try (TieredStorageEngine engine = new TieredStorageEngine(new HeapStorageEngine(), cold, 1500)) {
+            engine.put("key0", randomData(1000));
+            Future<?> eviction = executor.submit(() -> {
+                engine.put("key1", randomData(1000));
+                return null;
+            });
+
+            // key0 is being copied to the cold tier
+            copying.await();
+            try {
+                assertTrue(engine.contains("key0"));
+                assertEquals(1000, engine.size("key0"));
+                assertArrayEquals(randomBytes(1000), readAll(engine.get("key0")));
+                assertTrue(engine.keys().contains("key0"));
+            } finally {
+                copied.countDown();
+            }
+            eviction.get();
+            assertTrue(cold.contains("key0"));
+            assertArrayEquals(randomBytes(1000), readAll(engine.get("key0")));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void hotObjectsSurviveRestart() throws IOException {
+        try (TieredStorageEngine engine = new TieredStorageEngine(new HeapStorageEngine(),
+                new MappedSegmentStorageEngine(storageDir, 1 << 20), 1500)) {
+            engine.put("key0", randomData(1000));
+            engine.put("key1", randomData(1000));
+        }
+
+        try (TieredStorageEngine engine = new TieredStorageEngine(new HeapStorageEngine(),
+                new MappedSegmentStorageEngine(storageDir, 1 << 20), 1500)) {
+            assertArrayEquals(randomBytes(1000), readAll(engine.get("key0")));
+            assertArrayEquals(randomBytes(1000), readAll(engine.get("key1")));
+        }
+    }
+}
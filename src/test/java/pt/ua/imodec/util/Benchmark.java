@@ -0,0 +1,18 @@
+package pt.ua.imodec.util;
+
+import org.junit.jupiter.api.Tag;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the tests which measure (throughput, memory, ...) rather than check behavior. They are left out of the
+ * build, and run with the benchmarks profile: "mvn test -Pbenchmarks".
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Tag("benchmark")
+public @interface Benchmark {
+}
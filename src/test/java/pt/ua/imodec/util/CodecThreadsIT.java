@@ -0,0 +1,31 @@
+package pt.ua.imodec.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Run by failsafe on Java 21 or later (profile java21), against the packaged jar rather than the compiled classes,
+ * which must load the Java 21 variant of {@link CodecThreads}.
+ */
+class CodecThreadsIT {
+
+    @Test
+    void packagedJarRunsOnVirtualThreads() throws Exception {
+        assertTrue(CodecThreads.class.getProtectionDomain().getCodeSource().getLocation().getPath()
+                .endsWith(".jar"));
+        assertTrue(CodecThreads.areVirtual());
+
+        ExecutorService pool = CodecThreads.newWorkerPool("imodec-it", 2);
+        try {
+            Thread worker = pool.submit(Thread::currentThread).get();
+            // Thread.isVirtual() is not in the Java 8 API the tests are compiled against
+            assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(worker));
+            assertTrue(worker.getName().startsWith("imodec-it-"));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
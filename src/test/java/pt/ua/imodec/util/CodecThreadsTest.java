@@ -0,0 +1,57 @@
+package pt.ua.imodec.util;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import pt.ua.imodec.util.validators.OSValidator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CodecThreadsTest {
+
+    @Test
+    void workersAreBoundedAndNamed() throws Exception {
+        int workers = 3;
+        AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+        ExecutorService pool = CodecThreads.newWorkerPool("imodec-test", workers);
+
+        List<Future<String>> names = new ArrayList<>();
+        for (int i = 0; i < 32; i++)
+            names.add(pool.submit(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(2);
+                running.decrementAndGet();
+                assertTrue(Thread.currentThread().isDaemon());
+                return Thread.currentThread().getName();
+            }));
+        for (Future<String> name : names)
+            assertTrue(name.get().startsWith("imodec-test-"));
+        pool.shutdown();
+
+        assertEquals(workers, maxRunning.get());
+    }
+
+    @Test
+    void processesAreWaitedForWithADeadline() throws Exception {
+        Assumptions.assumeTrue(OSValidator.validate());
+
+        Process quick = new ProcessBuilder("true").start();
+        assertTrue(CodecThreads.waitFor(quick, 10, TimeUnit.SECONDS));
+        assertEquals(0, quick.exitValue());
+
+        Process slow = new ProcessBuilder("sleep", "10").start();
+        try {
+            long start = System.nanoTime();
+            assertFalse(CodecThreads.waitFor(slow, 50, TimeUnit.MILLISECONDS));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        } finally {
+            slow.destroyForcibly();
+        }
+    }
+}
@@ -1,18 +1,24 @@
 package pt.ua.imodec.util;
 
 import org.apache.commons.io.FileUtils;
+import org.dcm4che2.data.BasicDicomObject;
 import org.dcm4che2.data.ConfigurationError;
 import org.dcm4che2.data.DicomElement;
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.UID;
+import org.dcm4che2.data.VR;
 import org.dcm4che2.imageio.ImageReaderFactory;
 import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.DicomOutputStream;
 import org.dcm4che2.io.StopTagInputHandler;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
+import pt.ua.imodec.datastructs.FrameIterator;
 import pt.ua.imodec.datastructs.MergeIterator;
 import pt.ua.imodec.datastructs.formats.NewFormat;
 import pt.ua.imodec.util.validators.EncodeabilityValidator;
@@ -22,6 +28,8 @@ import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
 import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
@@ -334,7 +342,8 @@ class DicomUtilsTest {
                 int numberOfFrames = dicomObject.getInt(Tag.NumberOfFrames);
                 DicomElement pixelDataElement = dicomObject.get(Tag.PixelData);
                 for (int i = 0; i < numberOfFrames; i++) {
-                    byte[] frameCodeStream = pixelDataElement.getDicomObject(i).getBytes(Tag.Item);
+                    // The first fragment is the offset table
+                    byte[] frameCodeStream = pixelDataElement.getFragment(i + 1);
                     BufferedImage decodedImage = NewFormatsCodecs.decodeByteStream(frameCodeStream, NewFormat.JPEG_XL);
                     BufferedImage originalImage = DicomUtils.loadDicomImage(new DicomInputStream(dicomFile), i);
 
@@ -353,6 +362,119 @@ class DicomUtilsTest {
 
     }
 
+    @Test
+    void encodedFramesAreReadOneAtATime() throws IOException {
+        DicomObject dicomObject = new BasicDicomObject();
+        dicomObject.initFileMetaInformation(UID.SecondaryCaptureImageStorage, "2.25.1",
+                NewFormat.JPEG_XL.getTransferSyntax().uid());
+        dicomObject.putString(Tag.NumberOfFrames, VR.IS, "3");
+        List<byte[]> codeStreams = Arrays.asList(new byte[]{1, 2, 3}, new byte[]{4, 5}, new byte[]{6, 7, 8, 9, 10});
+
+        assertEquals(10, DicomUtils.putEncodedFrames(dicomObject, codeStreams));
+        DicomElement pixelData = dicomObject.get(Tag.PixelData);
+        assertEquals(4, pixelData.countItems());
+        // Offsets of the items of the frames, padded to an even length, from the first one
+        assertArrayEquals(new byte[]{0, 0, 0, 0, 12, 0, 0, 0, 22, 0, 0, 0}, pixelData.getFragment(0));
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (DicomOutputStream outputStream = new DicomOutputStream(encoded)) {
+            outputStream.writeDicomFile(dicomObject);
+        }
+        for (int i = 0; i < codeStreams.size(); i++) {
+            try (DicomInputStream inputStream = new DicomInputStream(
+                    new ByteArrayInputStream(encoded.toByteArray()))) {
+                byte[] codeStream = DicomUtils.readEncodedFrame(inputStream, i);
+                assertArrayEquals(codeStreams.get(i), Arrays.copyOf(codeStream, codeStreams.get(i).length));
+                assertEquals(0, codeStream.length % 2);
+            }
+        }
+    }
+
+    @Test
+    void deriveVariant() throws IOException {
+        DicomObject source = new BasicDicomObject();
+        source.initFileMetaInformation(UID.SecondaryCaptureImageStorage, "2.25.1", UID.ExplicitVRLittleEndian);
+        source.putString(Tag.PatientID, VR.LO, "1234");
+        source.putBytes(Tag.PixelData, VR.OB, new byte[1024]);
+
+        DicomObject variant = DicomUtils.deriveVariant(source);
+        assertFalse(variant.contains(Tag.PixelData));
+        assertEquals("1234", variant.getString(Tag.PatientID));
+
+        variant.putString(Tag.TransferSyntaxUID, VR.UI, UID.ImplicitVRLittleEndian);
+        variant.putBytes(Tag.PixelData, VR.OB, new byte[]{1, 2, 3});
+        assertEquals(UID.ExplicitVRLittleEndian, source.getString(Tag.TransferSyntaxUID));
+        assertEquals(1024, source.getBytes(Tag.PixelData).length);
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (DicomOutputStream outputStream = new DicomOutputStream(encoded)) {
+            outputStream.writeDicomFile(variant);
+        }
+        try (DicomInputStream inputStream = new DicomInputStream(new ByteArrayInputStream(encoded.toByteArray()))) {
+            DicomObject written = inputStream.readDicomObject();
+            assertEquals("1234", written.getString(Tag.PatientID));
+            assertArrayEquals(new byte[]{1, 2, 3}, written.getBytes(Tag.PixelData));
+        }
+    }
+
+    @Test
+    void updateUnsignedAttributes() {
+        DicomObject dicomObject = new BasicDicomObject();
+        dicomObject.putInt(Tag.PixelRepresentation, VR.US, 1);
+        dicomObject.putString(Tag.RescaleIntercept, VR.DS, "-1024");
+        dicomObject.putString(Tag.RescaleSlope, VR.DS, "0.5");
+        dicomObject.putInt(Tag.PixelPaddingValue, VR.SS, -2000);
+
+        DicomUtils.updateUnsignedAttributes(dicomObject, 2048);
+
+        // A stored value of 0 was -2048, which is still -2048 * 0.5 - 1024 once rescaled
+        assertEquals(0, dicomObject.getInt(Tag.PixelRepresentation));
+        assertEquals(-2048.0, dicomObject.getDouble(Tag.RescaleIntercept, 0));
+        assertEquals(0.5, dicomObject.getDouble(Tag.RescaleSlope, 1));
+        assertEquals(48, dicomObject.getInt(Tag.PixelPaddingValue));
+        assertFalse(dicomObject.contains(Tag.SmallestImagePixelValue));
+    }
+
+    /**
+     * Takes the attributes that describe signed frames shifted into the unsigned range out of the object.
+     *
+     * @param shift What was added to the samples, or 0 if they were not shifted, in which case none are taken
+     * @return The attributes taken out
+     */
+    private static DicomObject removeShiftedAttributes(DicomObject dicomObject, int shift) {
+        DicomObject shiftedAttributes = new BasicDicomObject();
+        if (shift == 0)
+            return shiftedAttributes;
+
+        for (int tag : new int[]{Tag.PixelRepresentation, Tag.RescaleIntercept, Tag.RescaleSlope,
+                Tag.SmallestImagePixelValue, Tag.LargestImagePixelValue, Tag.PixelPaddingValue}) {
+            DicomElement element = dicomObject.remove(tag);
+            if (element != null)
+                shiftedAttributes.add(element);
+        }
+        return shiftedAttributes;
+    }
+
+    /**
+     * Checks that the shifted attributes of the encoded object describe the same modality values as the original
+     * ones (see {@link DicomUtils#updateUnsignedAttributes(DicomObject, int)}).
+     */
+    private static void assertSameModalityValues(DicomObject original, DicomObject encoded, int shift) {
+        if (shift == 0) {
+            assertTrue(encoded.isEmpty());
+            return;
+        }
+
+        double slope = original.getDouble(Tag.RescaleSlope, 1);
+        assertEquals(0, encoded.getInt(Tag.PixelRepresentation));
+        assertEquals(slope, encoded.getDouble(Tag.RescaleSlope, 1));
+        assertEquals(original.getDouble(Tag.RescaleIntercept, 0),
+                encoded.getDouble(Tag.RescaleIntercept, 0) + shift * slope, 1e-6);
+        for (int tag : new int[]{Tag.SmallestImagePixelValue, Tag.LargestImagePixelValue, Tag.PixelPaddingValue})
+            if (original.contains(tag))
+                assertEquals(original.getInt(tag) + shift, encoded.getInt(tag));
+    }
+
     @ParameterizedTest
     @ValueSource(strings = {TestCommons.DICOM_DATASET_DIR})
     void encodeIteratorDicomObjectWithAllTs(String datasetDir) {
@@ -370,6 +492,10 @@ class DicomUtilsTest {
 
             DicomObject originalDicomObject = assertDoesNotThrow(() -> dicomInputStream2.readDicomObject());
 
+            // Signed frames with a Modality LUT are encoded as unsigned ones
+            int unsignedShift = new FrameIterator(originalDicomObject, true).getUnsignedShift();
+            DicomObject shiftedAttributes = removeShiftedAttributes(dicomObjectMeta, unsignedShift);
+
             Iterator<DicomObject> encodedDicomObjects = DicomUtils.encodeIteratorDicomObjectWithAllTs(originalDicomObject);
 
             while (encodedDicomObjects.hasNext()) {
@@ -377,6 +503,8 @@ class DicomUtilsTest {
                 assertNotNull(encodedDicomObject);
 
                 encodedDicomObject.remove(Tag.PixelData);
+                assertSameModalityValues(shiftedAttributes, removeShiftedAttributes(encodedDicomObject,
+                        unsignedShift), unsignedShift);
                 DicomElement lossyStatusElement = encodedDicomObject.remove(Tag.LossyImageCompression);
                 DicomElement lossyMethodElement = encodedDicomObject.remove(Tag.LossyImageCompressionMethod);
                 DicomElement lossyRatioElement = encodedDicomObject.remove(Tag.LossyImageCompressionRatio);
@@ -414,8 +542,11 @@ class DicomUtilsTest {
             DicomInputStream dicomInputStream = assertDoesNotThrow(() -> new DicomInputStream(dicomFile));
 
             DicomObject dicomObjectMeta = assertDoesNotThrow(() -> dicomInputStream.readDicomObject());
+            // Signed frames with a Modality LUT are encoded as unsigned ones
+            int unsignedShift = new FrameIterator(dicomObjectMeta, true).getUnsignedShift();
             dicomObjectMeta.remove(Tag.TransferSyntaxUID);
             dicomObjectMeta.remove(Tag.PixelData);
+            DicomObject shiftedAttributes = removeShiftedAttributes(dicomObjectMeta, unsignedShift);
 
             Iterator<DicomInputStream> encodedDicomObjects = DicomUtils.encodeIteratorDicomInputStreamWithAllTs(dicomFile);
 
@@ -425,6 +556,8 @@ class DicomUtilsTest {
                 assertNotNull(encodedDicomObject);
 
                 encodedDicomObject.remove(Tag.PixelData);
+                assertSameModalityValues(shiftedAttributes, removeShiftedAttributes(encodedDicomObject,
+                        unsignedShift), unsignedShift);
                 DicomElement lossyStatusElement = encodedDicomObject.remove(Tag.LossyImageCompression);
                 DicomElement lossyMethodElement = encodedDicomObject.remove(Tag.LossyImageCompressionMethod);
                 DicomElement lossyRatioElement = encodedDicomObject.remove(Tag.LossyImageCompressionRatio);
@@ -0,0 +1,144 @@
+package pt.ua.imodec.util;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import pt.ua.imodec.datastructs.formats.NewFormat;
+import pt.ua.imodec.util.validators.CodecsInstalledValidator;
+import pt.ua.imodec.util.validators.OSValidator;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameEncoderTest {
+
+    @Test
+    void keepsFrameOrder() throws IOException {
+        int frames = 200, workers = 4;
+        AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+
+        try (FrameEncoder frameEncoder = new FrameEncoder(workers)) {
+            List<byte[]> codeStreams = frameEncoder.encode(IntStream.range(0, frames).iterator(),
+                    (frameIndex, frame) -> {
+                        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        try {
+                            Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+                        } catch (InterruptedException ignored) {
+                        }
+                        running.decrementAndGet();
+                        return ByteBuffer.allocate(8).putInt(frameIndex).putInt(frame).array();
+                    });
+
+            assertEquals(frames, codeStreams.size());
+            for (int i = 0; i < frames; i++) {
+                assertEquals(i, ByteBuffer.wrap(codeStreams.get(i)).getInt());
+                assertEquals(i, ByteBuffer.wrap(codeStreams.get(i)).getInt(4));
+            }
+        }
+        assertTrue(maxRunning.get() <= workers);
+    }
+
+    @Test
+    void failedFrameFailsTheObject() {
+        try (FrameEncoder frameEncoder = new FrameEncoder(2)) {
+            IOException exception = assertThrows(IOException.class,
+                    () -> frameEncoder.encode(IntStream.range(0, 50).iterator(), (frameIndex, frame) -> {
+                        if (frameIndex == 10)
+                            throw new IOException("Frame " + frameIndex);
+                        return new byte[1];
+                    }));
+            assertEquals("Frame 10", exception.getMessage());
+        }
+    }
+
+    @Test
+    void eachFrameIsTakenOnceForAllCodecs() throws IOException {
+        int frames = 20;
+        AtomicInteger framesTaken = new AtomicInteger();
+        Iterator<Integer> frameIterator = IntStream.range(0, frames).peek(frame -> framesTaken.incrementAndGet())
+                .boxed().iterator();
+
+        List<FrameEncoder.FrameCodec<Integer>> codecs = new ArrayList<>();
+        for (int codec = 0; codec < 3; codec++) {
+            int codecIndex = codec;
+            codecs.add((frameIndex, frame) -> new byte[]{(byte) codecIndex, (byte) (int) frame});
+        }
+
+        try (FrameEncoder frameEncoder = new FrameEncoder(4)) {
+            List<List<byte[]>> codeStreams = frameEncoder.encode(frameIterator, codecs);
+
+            assertEquals(frames, framesTaken.get());
+            assertEquals(3, codeStreams.size());
+            for (int codec = 0; codec < 3; codec++)
+                for (int i = 0; i < frames; i++)
+                    assertArrayEquals(new byte[]{(byte) codec, (byte) i}, codeStreams.get(codec).get(i));
+        }
+    }
+
+    @Test
+    void codecsOfAFrameRunConcurrently() throws IOException {
+        // Every codec waits for the others to start, which they only do if they are not run one after the other
+        CountDownLatch started = new CountDownLatch(3);
+        FrameEncoder.FrameCodec<Integer> codec = (frameIndex, frame) -> {
+            started.countDown();
+            try {
+                return new byte[]{(byte) (started.await(10, TimeUnit.SECONDS) ? 1 : 0)};
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        };
+
+        try (FrameEncoder frameEncoder = new FrameEncoder(3)) {
+            List<List<byte[]>> codeStreams = frameEncoder.encode(Collections.singletonList(0).iterator(),
+                    Arrays.asList(codec, codec, codec));
+
+            for (List<byte[]> codecStreams : codeStreams)
+                assertEquals(1, codecStreams.get(0)[0]);
+        }
+    }
+
+    /**
+     * Encodes the same frames into JPEG XL with an increasing number of workers.
+     */
+    @Test
+    void framesPerSecondByWorkers() throws IOException {
+        Assumptions.assumeTrue(CodecsInstalledValidator.validate());
+        Assumptions.assumeTrue(OSValidator.validate());
+
+        int frames = 32;
+
+        List<BufferedImage> images = new ArrayList<>(frames);
+        for (int i = 0; i < frames; i++)
+            images.add(ImageUtilsTest.createRandomImage());
+
+        HashMap<String, Number> options = new HashMap<>();
+        options.put("effort", 3);
+
+        for (int workers = 1; workers <= FrameEncoder.DEFAULT_WORKERS; workers *= 2) {
+            long start = System.nanoTime();
+
+            try (FrameEncoder frameEncoder = new FrameEncoder(workers)) {
+                List<byte[]> codeStreams = frameEncoder.encode(images.iterator(),
+                        (frameIndex, frame) -> NewFormatsCodecs.encode(frame, NewFormat.JPEG_XL, options));
+                assertEquals(frames, codeStreams.size());
+            }
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("[FrameEncoder] %d workers: %.1f frames/s%n", workers, frames / seconds);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package pt.ua.imodec.util;
+
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.UID;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.DicomOutputStream;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import pt.ua.imodec.codecs.CodecCircuitBreaker;
+import pt.ua.imodec.datastructs.Blob;
+import pt.ua.imodec.datastructs.ByteBufferBlob;
+import pt.ua.imodec.datastructs.FrameIndex;
+import pt.ua.imodec.datastructs.formats.NewFormat;
+import pt.ua.imodec.util.validators.CodecsInstalledValidator;
+import pt.ua.imodec.util.validators.OSValidator;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MultiFrameStreamEncoderTest {
+
+    /**
+     *
+     * @return A native multi-frame object of random 8-bit grayscale frames, as written to a file
+     */
+    static byte[] mockMultiFrameFile(int frames, int size) throws IOException {
+        DicomObject dicomObject = new BasicDicomObject();
+        dicomObject.initFileMetaInformation(UID.SecondaryCaptureImageStorage, "2.25.19.1",
+                UID.ExplicitVRLittleEndian);
+        dicomObject.putString(Tag.SOPClassUID, VR.UI, UID.SecondaryCaptureImageStorage);
+        dicomObject.putString(Tag.SOPInstanceUID, VR.UI, "2.25.19.1");
+        dicomObject.putString(Tag.PhotometricInterpretation, VR.CS, "MONOCHROME2");
+        dicomObject.putString(Tag.NumberOfFrames, VR.IS, String.valueOf(frames));
+        dicomObject.putInt(Tag.Rows, VR.US, size);
+        dicomObject.putInt(Tag.Columns, VR.US, size);
+        dicomObject.putInt(Tag.SamplesPerPixel, VR.US, 1);
+        dicomObject.putInt(Tag.BitsAllocated, VR.US, 8);
+        dicomObject.putInt(Tag.BitsStored, VR.US, 8);
+        dicomObject.putInt(Tag.HighBit, VR.US, 7);
+        dicomObject.putInt(Tag.PixelRepresentation, VR.US, 0);
+
+        byte[] pixelData = new byte[frames * size * size];
+        new Random(frames).nextBytes(pixelData);
+        dicomObject.putBytes(Tag.PixelData, VR.OB, pixelData);
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        try (DicomOutputStream outputStream = new DicomOutputStream(file)) {
+            outputStream.writeDicomFile(dicomObject);
+        }
+        return file.toByteArray();
+    }
+
+    @Test
+    void onlyNativeMultiFrameObjectsAreStreamed() throws IOException {
+        try (DicomInputStream inputStream = new DicomInputStream(new ByteArrayInputStream(
+                mockMultiFrameFile(1, 16)))) {
+            DicomObject header = DicomUtils.readNonPixelData(inputStream);
+            assertFalse(MultiFrameStreamEncoder.canEncode(header, inputStream));
+
+            // The object can still be read as a whole
+            DicomUtils.readPixelData(inputStream, header);
+            assertEquals(16 * 16, header.getBytes(Tag.PixelData).length);
+        }
+
+        try (DicomInputStream inputStream = new DicomInputStream(new ByteArrayInputStream(
+                mockMultiFrameFile(4, 16)))) {
+            assertTrue(MultiFrameStreamEncoder.canEncode(DicomUtils.readNonPixelData(inputStream), inputStream));
+        }
+    }
+
+    @Test
+    void framesReadBeforeAFailureAreKept() throws IOException {
+        CodecCircuitBreaker breaker = CodecCircuitBreaker.getShared();
+        CodecCircuitBreaker failingBreaker = new CodecCircuitBreaker(1, 60_000);
+        assertThrows(IOException.class, () -> failingBreaker.execute(NewFormat.JPEG_XL.getId(), () -> {
+            throw new IOException("Codec failed");
+        }));
+
+        byte[] file = mockMultiFrameFile(4, 16);
+        CodecCircuitBreaker.setShared(failingBreaker);
+        try (DicomInputStream inputStream = new DicomInputStream(new ByteArrayInputStream(file))) {
+            DicomObject header = DicomUtils.readNonPixelData(inputStream);
+            int pixelDataLength = inputStream.valueLength();
+            ByteArrayOutputStream readFrames = new ByteArrayOutputStream();
+            assertThrows(IOException.class, () -> MultiFrameStreamEncoder.encode(header, inputStream,
+                    new ByteArrayOutputStream(), NewFormat.JPEG_XL, new HashMap<>(), readFrames));
+
+            // The frames that were read and the rest of the stream make up the pixel data
+            assertTrue(readFrames.size() > 0);
+            byte[] rest = new byte[pixelDataLength - readFrames.size()];
+            inputStream.readFully(rest);
+            readFrames.write(rest);
+            assertArrayEquals(Arrays.copyOfRange(file, file.length - pixelDataLength, file.length),
+                    readFrames.toByteArray());
+        } finally {
+            CodecCircuitBreaker.setShared(breaker);
+        }
+    }
+
+    @Test
+    void framesAreWrittenAsTheyAreEncoded() throws IOException {
+        Assumptions.assumeTrue(CodecsInstalledValidator.validate());
+        Assumptions.assumeTrue(OSValidator.validate());
+
+        int frames = 64, size = 256;
+        byte[] file = mockMultiFrameFile(frames, size);
+        HashMap<String, Number> options = new HashMap<>();
+        options.put("distance", 0.0);
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        FrameIndex frameIndex;
+        long start = System.nanoTime();
+        try (DicomInputStream inputStream = new DicomInputStream(new ByteArrayInputStream(file))) {
+            DicomObject header = DicomUtils.readNonPixelData(inputStream);
+            frameIndex = MultiFrameStreamEncoder.encode(header, inputStream, encoded, NewFormat.JPEG_XL, options);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        DicomObject encodedObject;
+        try (DicomInputStream inputStream = new DicomInputStream(new ByteArrayInputStream(encoded.toByteArray()))) {
+            encodedObject = inputStream.readDicomObject();
+        }
+        assertEquals(NewFormat.JPEG_XL.getTransferSyntax().uid(), encodedObject.getString(Tag.TransferSyntaxUID));
+        assertEquals("01", encodedObject.getString(Tag.LossyImageCompression));
+
+        // The offset table, then a fragment per frame
+        DicomElement pixelData = encodedObject.get(Tag.PixelData);
+        assertEquals(frames + 1, pixelData.countItems());
+
+        Blob blob = new ByteBufferBlob(encoded.toByteArray());
+        assertEquals(frames, frameIndex.getNumberOfFrames());
+        for (int i = 0; i < frames; i++)
+            assertArrayEquals(pixelData.getFragment(i + 1), frameIndex.readFrame(blob, i));
+
+        BufferedImage lastFrame = NewFormatsCodecs.decodeByteStream(pixelData.getFragment(frames), NewFormat.JPEG_XL);
+        for (int x = 0; x < size; x += 17)
+            assertEquals(file[file.length - size * size + (size - 1) * size + x] & 0xFF,
+                    lastFrame.getRaster().getSample(x, size - 1, 0));
+
+        System.out.printf("[MultiFrameStreamEncoder] %d frames of %dx%d: %.1f frames/s, %d KiB written%n",
+                frames, size, size, frames / seconds, encoded.size() / 1024);
+    }
+}
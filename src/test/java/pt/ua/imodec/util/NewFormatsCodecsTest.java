@@ -3,17 +3,22 @@ package pt.ua.imodec.util;
 import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import pt.ua.imodec.codecs.CodecCircuitBreaker;
 import pt.ua.imodec.datastructs.formats.NewFormat;
 import pt.ua.imodec.util.validators.CodecsInstalledValidator;
 import pt.ua.imodec.util.validators.OSValidator;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class NewFormatsCodecsTest {
@@ -63,4 +68,102 @@ class NewFormatsCodecsTest {
         }
 
     }
-}
\ No newline at end of file
+
+    @Test
+    void pipesAndFilesGiveTheSameImages() {
+        BufferedImage originalImage = ImageUtilsTest.createRandomImage();
+        HashMap<String, Number> options = new HashMap<>();
+        options.put("distance", 0.0);
+
+        for (NewFormat format : NewFormat.values()) {
+            byte[] png = assertDoesNotThrow(() -> toPNG(originalImage));
+            byte[] piped = assertDoesNotThrow(() -> NewFormatsCodecs.encode(png, format, options, true));
+            byte[] throughFiles = assertDoesNotThrow(() -> NewFormatsCodecs.encode(png, format, options, false));
+
+            BufferedImage decodedPiped = assertDoesNotThrow(
+                    () -> NewFormatsCodecs.decodeByteStream(piped, format, true));
+            BufferedImage decodedThroughFiles = assertDoesNotThrow(
+                    () -> NewFormatsCodecs.decodeByteStream(throughFiles, format, false));
+            assertTrue(assertDoesNotThrow(() -> ImageUtilsTest.compare(decodedPiped, decodedThroughFiles)));
+        }
+    }
+
+    /**
+     * Compares the latency per frame, and the bytes written to disk, of streaming the frames to the codecs
+     * and of going through temporary files.
+     */
+    @Test
+    void pipesVersusFiles() {
+        int frames = 16;
+        byte[][] pngs = new byte[frames][];
+        for (int i = 0; i < frames; i++) {
+            BufferedImage image = ImageUtilsTest.createRandomImage();
+            pngs[i] = assertDoesNotThrow(() -> toPNG(image));
+        }
+
+        for (NewFormat format : new NewFormat[]{NewFormat.JPEG_XL, NewFormat.WEBP}) {
+            for (boolean usePipes : new boolean[]{false, true}) {
+                long diskBytes = 0, start = System.nanoTime();
+
+                for (byte[] png : pngs) {
+                    byte[] codeStream = assertDoesNotThrow(
+                            () -> NewFormatsCodecs.encode(png, format, new HashMap<>(), usePipes));
+                    if (!usePipes)
+                        diskBytes += png.length + codeStream.length;
+                }
+
+                System.out.printf("[%s, %s] %.1f ms/frame, %d KiB written to disk%n", format.getFileExtension(),
+                        usePipes ? "pipes" : "files", (System.nanoTime() - start) / 1e6 / frames, diskBytes >> 10);
+            }
+        }
+    }
+
+    @Test
+    void runsPastTheirDeadlineAreKilled() {
+        byte[] png = assertDoesNotThrow(() -> toPNG(ImageUtilsTest.createRandomImage()));
+        // The timeouts are counted by a breaker of their own
+        CodecCircuitBreaker breaker = CodecCircuitBreaker.getShared();
+        CodecCircuitBreaker.setShared(new CodecCircuitBreaker(CodecCircuitBreaker.DEFAULT_FAILURE_THRESHOLD,
+                CodecCircuitBreaker.DEFAULT_OPEN_MILLIS));
+
+        NewFormatsCodecs.setTimeouts(1, 1000);
+        try {
+            assertEquals(1001, NewFormatsCodecs.getTimeoutMillis(1_000_000));
+
+            for (boolean usePipes : new boolean[]{true, false})
+                assertThrows(NewFormatsCodecs.CodecTimeoutException.class,
+                        () -> NewFormatsCodecs.encode(png, NewFormat.JPEG_XL, new HashMap<>(), usePipes));
+            // Timing out is not a reason to stop using pipes
+            assertTrue(NewFormatsCodecs.usesPipes(NewFormat.JPEG_XL));
+        } finally {
+            NewFormatsCodecs.setTimeouts(NewFormatsCodecs.DEFAULT_TIMEOUT_MILLIS,
+                    NewFormatsCodecs.DEFAULT_TIMEOUT_MILLIS_PER_MEGAPIXEL);
+            CodecCircuitBreaker.setShared(breaker);
+        }
+    }
+
+    @Test
+    void imagesTheCodecFailsOnDoNotStopThePipes() {
+        CodecCircuitBreaker breaker = CodecCircuitBreaker.getShared();
+        CodecCircuitBreaker.setShared(new CodecCircuitBreaker(CodecCircuitBreaker.DEFAULT_FAILURE_THRESHOLD,
+                CodecCircuitBreaker.DEFAULT_OPEN_MILLIS));
+
+        try {
+            byte[] notACodeStream = new byte[1000];
+            for (NewFormat format : new NewFormat[]{NewFormat.JPEG_XL, NewFormat.WEBP})
+                assertThrows(IOException.class, () -> NewFormatsCodecs.decodeByteStream(notACodeStream, format,
+                        true));
+
+            assertTrue(NewFormatsCodecs.usesPipes(NewFormat.JPEG_XL));
+            assertTrue(NewFormatsCodecs.usesPipes(NewFormat.WEBP));
+        } finally {
+            CodecCircuitBreaker.setShared(breaker);
+        }
+    }
+
+    private static byte[] toPNG(BufferedImage image) throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        return png.toByteArray();
+    }
+}
@@ -0,0 +1,119 @@
+package pt.ua.imodec.util;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PnmWriterTest {
+
+    static BufferedImage randomGrayImage(int type, int size) {
+        BufferedImage image = new BufferedImage(size, size, type);
+        Random random = new Random(size);
+        int maxValue = type == BufferedImage.TYPE_USHORT_GRAY ? 4096 : 256;
+
+        for (int y = 0; y < size; y++)
+            for (int x = 0; x < size; x++)
+                image.getRaster().setSample(x, y, 0, random.nextInt(maxValue));
+        return image;
+    }
+
+    /**
+     *
+     * @return Length of the header of a PNM file, which ends after its 4th token
+     */
+    private static int headerLength(byte[] pnm) {
+        int tokens = 0;
+        for (int i = 1; i < pnm.length; i++) {
+            if (Character.isWhitespace(pnm[i]) && !Character.isWhitespace(pnm[i - 1]) && ++tokens == 4)
+                return i + 1;
+        }
+        throw new AssertionError("Incomplete header");
+    }
+
+    @Test
+    void grayscale() {
+        BufferedImage image = randomGrayImage(BufferedImage.TYPE_BYTE_GRAY, 16);
+        byte[] pgm = PnmWriter.write(image);
+
+        assertEquals("pgm", PnmWriter.getFileExtension(pgm));
+        assertEquals("P5\n16 16\n255\n", new String(pgm, 0, headerLength(pgm), StandardCharsets.US_ASCII));
+        assertEquals(image.getRaster().getSample(3, 2, 0), pgm[headerLength(pgm) + 2 * 16 + 3] & 0xFF);
+    }
+
+    @Test
+    void sixteenBitGrayscale() {
+        BufferedImage image = randomGrayImage(BufferedImage.TYPE_USHORT_GRAY, 16);
+        byte[] pgm = PnmWriter.write(image);
+
+        assertEquals("P5\n16 16\n65535\n", new String(pgm, 0, headerLength(pgm), StandardCharsets.US_ASCII));
+        assertEquals(headerLength(pgm) + 16 * 16 * 2, pgm.length);
+        assertEquals(image.getRaster().getSample(5, 7, 0),
+                ByteBuffer.wrap(pgm).getShort(headerLength(pgm) + 2 * (7 * 16 + 5)) & 0xFFFF);
+    }
+
+    @Test
+    void color() {
+        BufferedImage image = new BufferedImage(4, 2, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(1, 1, 0x123456);
+        byte[] ppm = PnmWriter.write(image);
+
+        assertEquals("ppm", PnmWriter.getFileExtension(ppm));
+        assertEquals("P6\n4 2\n255\n", new String(ppm, 0, headerLength(ppm), StandardCharsets.US_ASCII));
+        int pixel = headerLength(ppm) + 3 * (4 + 1);
+        assertArrayEquals(new byte[]{0x12, 0x34, 0x56}, new byte[]{ppm[pixel], ppm[pixel + 1], ppm[pixel + 2]});
+    }
+
+    @Test
+    void paletteColor() {
+        byte[] reds = {0, (byte) 0xFF}, greens = {0, 0x12}, blues = {0, 0x34};
+        BufferedImage image = new BufferedImage(4, 2, BufferedImage.TYPE_BYTE_INDEXED,
+                new IndexColorModel(8, 2, reds, greens, blues));
+        image.getRaster().setSample(1, 1, 0, 1);
+        byte[] ppm = PnmWriter.write(image);
+
+        // The indices are not gray levels, so their colors are written instead
+        assertEquals("ppm", PnmWriter.getFileExtension(ppm));
+        assertEquals("P6\n4 2\n255\n", new String(ppm, 0, headerLength(ppm), StandardCharsets.US_ASCII));
+        int pixel = headerLength(ppm) + 3 * (4 + 1);
+        assertArrayEquals(new byte[]{(byte) 0xFF, 0x12, 0x34},
+                new byte[]{ppm[pixel], ppm[pixel + 1], ppm[pixel + 2]});
+    }
+
+    /**
+     * Compares the CPU time per frame of writing the intermediate image as PNG and as PNM.
+     */
+    @Test
+    void comparePngWithPnm() throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        BufferedImage[] images = {ImageUtilsTest.createRandomImage(),
+                randomGrayImage(BufferedImage.TYPE_USHORT_GRAY, 512)};
+
+        for (BufferedImage image : images) {
+            int frames = 20;
+
+            long start = threads.getCurrentThreadCpuTime();
+            for (int i = 0; i < frames; i++)
+                ImageIO.write(image, "png", new ByteArrayOutputStream());
+            long pngNanos = (threads.getCurrentThreadCpuTime() - start) / frames;
+
+            start = threads.getCurrentThreadCpuTime();
+            for (int i = 0; i < frames; i++)
+                assertNotNull(PnmWriter.write(image));
+            long pnmNanos = (threads.getCurrentThreadCpuTime() - start) / frames;
+
+            System.out.printf("[PnmWriter] %dx%d, type %d: PNG %.2f ms/frame, PNM %.2f ms/frame of CPU%n",
+                    image.getWidth(), image.getHeight(), image.getType(), pngNanos / 1e6, pnmNanos / 1e6);
+        }
+    }
+}
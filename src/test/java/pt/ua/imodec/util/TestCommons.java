@@ -3,4 +3,14 @@ package pt.ua.imodec.util;
 public class TestCommons {
 
     static final String DICOM_DATASET_DIR = "~/ic-encoders-eval/images/dataset_dicom/";
+
+    /**
+     *
+     * @return Bytes of heap in use, after collecting the garbage
+     */
+    public static long usedMemory() {
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
 }